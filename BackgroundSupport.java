@@ -1,43 +1,465 @@
+// src/guidemo/BackgroundLoader.java
+
+package guidemo;
+
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+/**
+ * Reads background images from files on a background thread and installs them in a
+ * DrawPanel.  A large photo is never decoded at full resolution: ImageReadParam source
+ * subsampling drops rows and columns while the file is read, so that the image is only
+ * as big as it needs to be to cover the panel.  For a photo that is much bigger than the
+ * panel, a coarser preview is read and shown first, and then replaced by the real image.
+ * Only the most recent load counts; choosing another file aborts the one in progress.
+ * <p>The loader also renders Mandelbrot backgrounds (see MandelbrotRenderer) at the size
+ * of the panel, first at a coarse resolution and then in full, and renders them again
+ * when the panel changes size.  While the new picture is computed, the panel stretches
+ * the old one.
+ */
+public class BackgroundLoader {
+
+	/**
+	 * The preview is subsampled this many times more than the final image.
+	 */
+	public static final int PREVIEW_FACTOR = 4;
+
+	/**
+	 * The coarse pass of a Mandelbrot background computes one pixel in each block of
+	 * this size.
+	 */
+	public static final int MANDELBROT_PREVIEW_STEP = 8;
+
+	private final DrawPanel panel;
+	private final AtomicInteger generation = new AtomicInteger();  // Incremented for each load.
+	private volatile ImageReader reader;  // The reader that is in use, so that it can be aborted.
+	private int undoSavedFor = -1;  // The load for which the panel's state was last saved for undo.
+	private int unrecordedGeneration = -1;  // A load that is not recorded for undo, such as a render after a resize.
+	private int imageGeneration = -1;   // The last image load, until its image has been installed or it has failed.
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Background image loader");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public BackgroundLoader(DrawPanel panel) {
+		this.panel = panel;
+		panel.addComponentListener(new ComponentAdapter() {
+			public void componentResized(ComponentEvent evt) {
+				// Render the Mandelbrot background again at the new size, unless an image that
+				// will replace it is being loaded.
+				MandelbrotRenderer m = BackgroundLoader.this.panel.getMandelbrot();
+				if (m != null && imageGeneration != generation.get())
+					loadMandelbrot(m, false);
+			}
+		});
+	}
+
+	/**
+	 * Stop any load that is in progress, so that it won't replace a background that is
+	 * set in some other way.  Must be called on the event-dispatch thread.
+	 */
+	public void cancel() {
+		generation.incrementAndGet();
+		ImageReader r = reader;
+		if (r != null)
+			r.abort();
+	}
+
+	/**
+	 * Start rendering a Mandelbrot background at the size of the panel.  Must be called on
+	 * the event-dispatch thread.  A coarse version is shown as soon as it is ready, and is
+	 * replaced by the full picture.  Showing the coarse version saves the panel's previous
+	 * state for undo.  Starting another load or resizing the panel stops the
+	 * rendering after the tiles that are being computed.
+	 */
+	public void loadMandelbrot(MandelbrotRenderer mandelbrot) {
+		loadMandelbrot(mandelbrot, true);
+	}
+
+	private void loadMandelbrot(final MandelbrotRenderer mandelbrot, boolean undoable) {
+		final int id = generation.incrementAndGet();
+		if (!undoable)
+			unrecordedGeneration = id;
+		final int width = Math.max(1, panel.getWidth());
+		final int height = Math.max(1, panel.getHeight());
+		ImageReader r = reader;
+		if (r != null && undoable)  // A resize is not started while an image is loading; see the constructor.
+			r.abort();
+		executor.submit(new Runnable() {
+			public void run() {
+				BooleanSupplier canceled = new BooleanSupplier() {
+					public boolean getAsBoolean() {
+						return id != generation.get();
+					}
+				};
+				ForkJoinPool pool = ForkJoinPool.commonPool();
+				BufferedImage coarse = mandelbrot.render(width, height, MANDELBROT_PREVIEW_STEP, pool, canceled);
+				if (coarse == null)
+					return;
+				install(id, mandelbrot, coarse);
+				BufferedImage img = mandelbrot.render(width, height, 1, pool, canceled);
+				if (img != null)
+					install(id, mandelbrot, img);
+			}
+		});
+	}
+
+	/**
+	 * Start loading an image file as the background of the panel.  Must be called on the
+	 * event-dispatch thread.  The panel keeps its current background until the preview
+	 * (or the image) has been read; its state is saved for undo just before that.  If
+	 * the file can't be read, an error message is shown over the panel and the background
+	 * is not changed.
+	 * @param file the image file; can't be null.
+	 */
+	public void load(final File file) {
+		final int id = generation.incrementAndGet();
+		imageGeneration = id;
+		final int width = Math.max(1, panel.getWidth());
+		final int height = Math.max(1, panel.getHeight());
+		ImageReader r = reader;
+		if (r != null)
+			r.abort();  // An earlier load is still running, but its result is not wanted.
+		BufferedImage cached = ImageCache.getShared().get(ImageCache.fileKey(file, width + "x" + height));
+		if (cached != null) {
+			imageGeneration = -1;
+			saveUndoState(id);
+			panel.setBackgroundImage(cached, file.getAbsolutePath());
+			return;
+		}
+		executor.submit(new Runnable() {
+			public void run() {
+				if (id == generation.get())
+					read(id, file, width, height);
+			}
+		});
+	}
+
+	/**
+	 * Start loading one of the program's image resources, such as a built-in background,
+	 * as the background of the panel.  Must be called on the event-dispatch thread.  An
+	 * image that is in the ImageCache is installed at once; otherwise it is read by
+	 * Util.getBufferedImageResource on the loader thread, which puts it in the cache.
+	 * As for load(File), the panel's state is saved for undo just before the image is
+	 * shown.  A resource that is missing or can't be read leaves the panel with no
+	 * background image, without a message, as setBackgroundImage(null) does.
+	 */
+	public void loadResource(String pathToResource) {
+		loadResource(pathToResource, true);
+	}
+
+	/**
+	 * Start loading an image resource as the first background of the panel, as GuiDemo
+	 * does when it starts.  This is the same as loadResource(), except that the change is
+	 * not recorded for undo.  Like any load, it is canceled by cancel() and by starting
+	 * another load, so it never replaces a background that has been chosen in the meantime.
+	 */
+	public void loadInitialResource(String pathToResource) {
+		loadResource(pathToResource, false);
+	}
+
+	private void loadResource(final String pathToResource, boolean undoable) {
+		final int id = generation.incrementAndGet();
+		imageGeneration = id;
+		if (!undoable)
+			unrecordedGeneration = id;
+		ImageReader r = reader;
+		if (r != null)
+			r.abort();
+		BufferedImage cached = ImageCache.getShared().get(ImageCache.resourceKey(pathToResource));
+		if (cached != null) {
+			imageGeneration = -1;
+			saveUndoState(id);
+			panel.setBackgroundImage(cached, pathToResource);
+			return;
+		}
+		executor.submit(new Runnable() {
+			public void run() {
+				if (id != generation.get())
+					return;
+				BufferedImage img = Util.getBufferedImageResource(pathToResource);
+				install(id, img, img == null ? null : pathToResource, true);
+			}
+		});
+	}
+
+	/**
+	 * Read the file, showing a preview first if the image is much larger than the panel.
+	 * Called on the loader thread.
+	 */
+	private void read(int id, File file, int width, int height) {
+		Profiling.LoadEvent event = Profiling.LoadEvent.start();
+		ImageInputStream in = null;
+		ImageReader r = null;
+		AbortListener aborted = new AbortListener();
+		try {
+			in = ImageIO.createImageInputStream(file);
+			if (in == null)
+				throw new IOException();
+			r = createReader(in);
+			r.addIIOReadProgressListener(aborted);
+			reader = r;
+			int imageWidth = r.getWidth(0);
+			int imageHeight = r.getHeight(0);
+			int subsampling = subsampling(imageWidth, imageHeight, width, height);
+			if (subsampling > 1) {
+				int coarse = Math.min(subsampling * PREVIEW_FACTOR, Math.min(imageWidth, imageHeight));
+				BufferedImage preview = read(r, coarse);
+				if (id != generation.get() || aborted.aborted)
+					return;
+				install(id, Util.toCompatibleImage(preview), file.getAbsolutePath(), false);
+			}
+			BufferedImage img = read(r, subsampling);
+			if (id != generation.get() || aborted.aborted)
+				return;  // The image may be only partly decoded, so it must not go into the cache.
+			img = Util.toCompatibleImage(img);
+			ImageCache.getShared().put(ImageCache.fileKey(file, width + "x" + height), img);
+			event.record("background", file.getPath(), img.getWidth(), img.getHeight(), file.length(), false);
+			install(id, img, file.getAbsolutePath(), true);
+		}
+		catch (Exception e) {
+			showError(id);
+		}
+		finally {
+			reader = null;
+			if (r != null)
+				r.dispose();
+			if (in != null) {
+				try {
+					in.close();
+				}
+				catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the background of the panel on the event-dispatch thread, unless another load
+	 * has been started in the meantime.  The image is the last one of its load if done
+	 * is true, and not a preview.
+	 */
+	private void install(final int id, final BufferedImage img, final String source, final boolean done) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (id == generation.get()) {
+					if (done)
+						imageGeneration = -1;
+					saveUndoState(id);
+					panel.setBackgroundImage(img, source);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Tell the user, on the event-dispatch thread, that an image could not be read,
+	 * unless another load has been started in the meantime.
+	 */
+	private void showError(final int id) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (id == generation.get()) {
+					imageGeneration = -1;
+					JOptionPane.showMessageDialog(panel, "Sorry, couldn't read the file.");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records whether a read was aborted.  An aborted ImageReader returns the part of
+	 * the image that it has decoded so far, which must not be used.
+	 */
+	private static class AbortListener implements IIOReadProgressListener {
+		volatile boolean aborted;
+		public void readAborted(ImageReader source) {
+			aborted = true;
+		}
+		public void sequenceStarted(ImageReader source, int minIndex) { }
+		public void sequenceComplete(ImageReader source) { }
+		public void imageStarted(ImageReader source, int imageIndex) { }
+		public void imageProgress(ImageReader source, float percentageDone) { }
+		public void imageComplete(ImageReader source) { }
+		public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) { }
+		public void thumbnailProgress(ImageReader source, float percentageDone) { }
+		public void thumbnailComplete(ImageReader source) { }
+	}
+
+	private void install(final int id, final MandelbrotRenderer mandelbrot, final BufferedImage img) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				if (id == generation.get()) {
+					saveUndoState(id);
+					panel.setMandelbrotBackground(mandelbrot, img);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Save the panel's state for undo before the first image of a load is shown, but not
+	 * before later images of the same load or for a load that is not undoable.
+	 */
+	private void saveUndoState(int id) {
+		if (id != undoSavedFor && id != unrecordedGeneration) {
+			panel.saveUndoState();
+			undoSavedFor = id;
+		}
+	}
+
+	/**
+	 * Read an image file, subsampled so that it is no smaller than a given size.  This is
+	 * the same as ImageIO.read for an image that is not larger than twice that size in
+	 * both directions, but it uses much less memory for a big photo.  The image is
+	 * kept in the shared ImageCache and must not be modified.
+	 * @param file the image file.
+	 * @param width the smallest useful width, such as the width of the component where
+	 *    the image will be drawn.
+	 * @param height the smallest useful height.
+	 * @return the image, in the pixel format given by Util.toCompatibleImage.
+	 * @throws IOException if the file can't be read or is not in a format known to ImageIO.
+	 */
+	public static BufferedImage read(File file, int width, int height) throws IOException {
+		Profiling.LoadEvent event = Profiling.LoadEvent.start();
+		String key = ImageCache.fileKey(file, width + "x" + height);
+		BufferedImage cached = ImageCache.getShared().get(key);
+		if (cached != null) {
+			event.record("background", file.getPath(), cached.getWidth(), cached.getHeight(), 0, true);
+			return cached;
+		}
+		ImageInputStream in = ImageIO.createImageInputStream(file);
+		if (in == null)
+			throw new IOException("Can't open " + file);
+		try {
+			ImageReader r = createReader(in);
+			try {
+				int subsampling = subsampling(r.getWidth(0), r.getHeight(0), width, height);
+				BufferedImage img = Util.toCompatibleImage(read(r, subsampling));
+				ImageCache.getShared().put(key, img);
+				event.record("background", file.getPath(), img.getWidth(), img.getHeight(), file.length(), false);
+				return img;
+			}
+			finally {
+				r.dispose();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the largest subsampling factor that keeps an image of size imageWidth by
+	 * imageHeight at least as big as width by height, or 1 if the image is already smaller.
+	 */
+	static int subsampling(int imageWidth, int imageHeight, int width, int height) {
+		int s = Math.min(imageWidth / Math.max(1, width), imageHeight / Math.max(1, height));
+		return Math.max(1, s);
+	}
+
+	private static ImageReader createReader(ImageInputStream in) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext())
+			throw new IOException("Unknown image format");
+		ImageReader r = readers.next();
+		r.setInput(in, false, true);  // Not seek-forward-only, so the image can be read twice.
+		return r;
+	}
+
+	private static BufferedImage read(ImageReader r, int subsampling) throws IOException {
+		ImageReadParam param = r.getDefaultReadParam();
+		if (subsampling > 1)
+			param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		BufferedImage img = r.read(0, param);
+		if (img == null)
+			throw new IOException("The image was not read");
+		return img;
+	}
+
+}
+
+
 
 // src/guidemo/BackgroundSupport.java
 
 package guidemo;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.ArrayList;
 
 public class BackgroundSupport {
 
     private final DrawPanel drawPanel;
     private final SimpleFileChooser fileChooser;
     private final JCheckBoxMenuItem gradientOverlayCheckbox;
+    private final BackgroundLoader loader;  // Reads custom background images off the event-dispatch thread.
     String[] bkOptions = {"Mandelbrot", "Earthrise", "Sunset", "Cloud", "Eagle_nebula"};
     String[] extraBkOptions = {"Custom...", "Color..."};
+    private final ArrayList<Action> bkActions = new ArrayList<>();       // One action for each option, shared
+    private final ArrayList<Action> extraBkActions = new ArrayList<>();  //    by the menu and the toolbar.
 
     public BackgroundSupport(DrawPanel drawPanel, SimpleFileChooser fileChooser, JCheckBoxMenuItem overlayCheckbox) {
+        this(drawPanel, fileChooser, overlayCheckbox, new BackgroundLoader(drawPanel));
+    }
+
+    /**
+     * Use a loader that is shared with other BackgroundSupports for the same panel, so that
+     * choosing a file from the toolbar cancels a load that was started from the menu.
+     */
+    public BackgroundSupport(DrawPanel drawPanel, SimpleFileChooser fileChooser, JCheckBoxMenuItem overlayCheckbox,
+                             BackgroundLoader loader) {
         this.drawPanel = drawPanel;
         this.fileChooser = fileChooser;
         this.gradientOverlayCheckbox = overlayCheckbox;
+        this.loader = loader;
+        for (String opt : bkOptions)
+            bkActions.add(new ChooseBackgroundAction(opt));
+        for (String extraOpt : extraBkOptions)
+            extraBkActions.add(new ChooseBackgroundAction(extraOpt));
     }
 
     JMenu makeMenu() {
         JMenu menu = new JMenu("Background");
-        for (String opt : bkOptions) {
-            menu.add(new ChooseBackgroundAction(opt));
+        for (Action action : bkActions) {
+            menu.add(action);
         }
         menu.addSeparator();
-        for (String extraOpt : extraBkOptions) {
-            menu.add(new ChooseBackgroundAction(extraOpt));
+        for (Action action : extraBkActions) {
+            menu.add(action);
             menu.addSeparator();
         }
         menu.add(gradientOverlayCheckbox);
         gradientOverlayCheckbox.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent evt) {
+                drawPanel.saveUndoState();
                 if (gradientOverlayCheckbox.isSelected())
                     drawPanel.setGradientOverlayColor(Color.WHITE);
                 else
@@ -49,12 +471,12 @@ public class BackgroundSupport {
 
     public JToolBar makeToolbar() {
         JToolBar backgroundToolbar = new JToolBar(JToolBar.HORIZONTAL);
-        for (String opt : bkOptions) {
-            backgroundToolbar.add(new ChooseBackgroundAction(opt));
+        for (Action action : bkActions) {
+            backgroundToolbar.add(action);
         }
         backgroundToolbar.addSeparator();
-        for (String extraOpt : extraBkOptions) {
-            backgroundToolbar.add(new ChooseBackgroundAction(extraOpt));
+        for (Action action : extraBkActions) {
+            backgroundToolbar.add(action);
             backgroundToolbar.addSeparator(new Dimension(15, 0));
         }
         return backgroundToolbar;
@@ -62,10 +484,11 @@ public class BackgroundSupport {
 
     /**
      * An object of type ChooseBackgroundAction represents an action through which the
-     * user selects the background of the picture.  There are three types of background:
+     * user selects the background of the picture.  There are four types of background:
      * solid color background ("Color..." command), an image selected by the user from
-     * the file system ("Custom..." command), and four built-in image resources
-     * (Mandelbrot, Earthrise, Sunset, and Eagle_nebula).
+     * the file system ("Custom..." command), a Mandelbrot set that is computed at the size
+     * of the panel, in a view that the user chooses in a MandelbrotDialog, and four
+     * built-in image resources (Earthrise, Sunset, Cloud, and Eagle_nebula).
      */
     private class ChooseBackgroundAction extends AbstractAction {
         String text;
@@ -74,16 +497,16 @@ public class BackgroundSupport {
             super(text);
             this.text = text;
 
+            // Icons are loaded in the background; a blank placeholder is shown until they arrive.
             if (!text.equals("Custom...") && !text.equals("Color...")) {
-                putValue(Action.SMALL_ICON,
-                        Util.iconFromResource("resources/images/" + text.toLowerCase() + "_thumbnail.jpeg"));
+                ResourceLoader.getShared().setIcon(this,
+                        "resources/images/" + text.toLowerCase() + "_thumbnail.jpeg");
             }
             if (text.equals("Color...")) {
                 putValue(Action.SMALL_ICON, new ImageIcon(makeColorIcon()));
                 putValue(Action.SHORT_DESCRIPTION, "<html>Use a solid color for background<br>instead of an image.</html>");
             } else if (text.equals("Custom...")) {
-                putValue(Action.SMALL_ICON,
-                        Util.iconFromResource("resources/action_icons/fileopen.png"));
+                ResourceLoader.getShared().setIcon(this, "resources/action_icons/fileopen.png");
             } else {
                 putValue(Action.SHORT_DESCRIPTION, "Use this image as the background.");
             }
@@ -112,816 +535,7103 @@ public class BackgroundSupport {
         public void actionPerformed(ActionEvent evt) {
             if (text.equals("Custom...")) {
                 File inputFile = fileChooser.getInputFile(drawPanel, "Select Background Image");
-                if (inputFile != null) {
-                    try {
-                        BufferedImage img = ImageIO.read(inputFile);
-                        if (img == null)
-                            throw new Exception();
-                        drawPanel.setBackgroundImage(img);
-                    } catch (Exception e) {
-                        JOptionPane.showMessageDialog(drawPanel, "Sorry, couldn't read the file.");
-                    }
-                }
+                if (inputFile != null)
+                    loader.load(inputFile);  // Shows an error message if the file can't be read.
             } else if (text.equals("Color...")) {
                 Color c = JColorChooser.showDialog(drawPanel, "Select Color for Background", drawPanel.getBackground());
                 if (c != null) {
+                    loader.cancel();
+                    drawPanel.saveUndoState();
                     drawPanel.setBackground(c);
                     drawPanel.setBackgroundImage(null);
                 }
+            } else if (text.equals("Mandelbrot")) {
+                // Rendered at the size of the panel, and again whenever the panel is resized.
+                // The dialog starts from the view that is shown now, if any, so it can be refined.
+                MandelbrotRenderer view = MandelbrotDialog.showDialog(drawPanel, drawPanel.getMandelbrot());
+                if (view != null)
+                    loader.loadMandelbrot(view);
             } else {
-                Image bg = Util.getImageResource("resources/images/" + text.toLowerCase() + ".jpeg");
-                drawPanel.setBackgroundImage(bg);
+                // Decoded once, off the event-dispatch thread, then taken from the ImageCache
+                // when the user switches back to it.
+                loader.loadResource("resources/images/" + text.toLowerCase() + ".jpeg");
             }
         }
     }
 }
 
 
-// src/guidemo/DrawPanel.java
+// src/guidemo/BatchRenderer.java
 
 package guidemo;
 
-import java.applet.AudioClip;
-import java.awt.*;
-import java.awt.event.*;
-import javax.swing.*;
+import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
 
 /**
- * A panel that can display a background image, a gradient over the image that changes
- * from almost transparent at the top to almost opaque at the bottom, a multiline text,
- * and a list of small images on top of everything else.  The small images are placed by
- * clicking with the mouse.  The image that is placed is determined by the currentDrawImage
- * property; if this property is null, then clicking an existing image with the mouse will
- * remove that image.  
+ * Renders pictures without a window, from scene descriptions stored in files.  Each
+ * scene is drawn by a DrawPanel that is never shown on the screen, using the same
+ * paintComponent code that draws the panel in GuiDemo.  Scenes are rendered in
+ * parallel by a pool of threads, each with its own DrawPanel.  Scene files are handed
+ * to the pool through a bounded queue, so that any number of files can be processed
+ * without holding all of them in memory.
+ * <p>A scene description is a Java properties file.  All of the properties are optional:
+ * <pre>
+ *   output=saying.png           (the output file, ending with .png or .jpeg; by default, the
+ *                                name of the description file with the extension changed to .png)
+ *   encoder=png-default         (one of the ImageEncoder presets, such as jpeg-web or png-fast)
+ *   width=800                   (the size of the image)
+ *   height=600
+ *   text=First line\nSecond line
+ *   text.fontName=Serif
+ *   text.fontSize=30
+ *   text.bold=false
+ *   text.italic=false
+ *   text.justify=left           (left, center, or right)
+ *   text.color=#000000
+ *   text.lineHeight=1
+ *   background=resources/images/earthrise.jpeg   (a resource or a file)
+ *   mandelbrot=-0.6 0 1 256     (center x and y, zoom, and iterations of a Mandelbrot
+ *                                background, used instead of the background image)
+ *   backgroundColor=#404040
+ *   gradient.color=#FFFFFF      (or none, for no gradient overlay)
+ *   gradient.horizontal=false
+ *   gradient.mode=linear        (linear, radial, or multi_stop)
+ *   gradient.alpha=50,200
+ *   gradient.stops=0 #FFFFFF32, 0.5 #FF000080, 1 #0000FFC8
+ *   stamps=bell 100 200, star 300 40, resources/icons/tux.png 10 10
+ * </pre>
+ * Colors are given as #RRGGBB or #RRGGBBAA.  A stamp name without a "/" or "." refers
+ * to one of the icons in resources/icons.
+ * <p>The main routine runs the renderer from the command line, for example:
+ * <pre>
+ *   java guidemo.BatchRenderer -threads 8 -out rendered scenes/
+ * </pre>
+ * where the arguments after the options are scene files or directories of scene files
+ * (files whose names end with ".properties").
  */
-public class DrawPanel extends JPanel {
-	
-	private TextItem text = new TextItem(); // The TextItem displayed in this image.
-	                                        // It can be retrieved with getTextItem but can't be set.
-	
-	private Image backgroundImage = null;  // Seven properties that have "get" and "set" methods.
-	private Color borderColor = Color.DARK_GRAY;
-	private int borderThickness = 3;
-	private Color gradientOverlayColor = Color.WHITE;
-	private boolean horizontalOverlay = false;
-	private BufferedImage currentDrawImage;
-	
-	private ArrayList<ImageItem> images = new ArrayList<ImageItem>();  // three objects for internal use only
-
-	public DrawPanel() {
-		setPreferredSize(new Dimension(800,600));
-		setBackground(Color.DARK_GRAY);
-		setBorder(BorderFactory.createLineBorder(borderColor, borderThickness));
-		setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
-		addMouseListener( new MouseAdapter() {
-			AudioClip clink = Util.getSound("resources/sounds/clink.wav");
-			AudioClip lase = Util.getSound("resources/sounds/lase.wav");
-			public void mousePressed(MouseEvent evt) {
-				int x = evt.getX();
-				int y = evt.getY();
-				if (currentDrawImage != null) {
-					if (clink != null)
-						clink.play();
-					images.add( new ImageItem(currentDrawImage, x, y));
-					repaint();
-				}
+public class BatchRenderer {
+
+	public static void main(String[] args) {
+		if (System.getProperty("java.awt.headless") == null)
+			System.setProperty("java.awt.headless", "true");
+		int threads = Runtime.getRuntime().availableProcessors();
+		int queueSize = 2 * threads;
+		File outputDir = null;
+		List<File> sceneFiles = new ArrayList<File>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-threads"))
+					threads = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-queue"))
+					queueSize = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-out"))
+					outputDir = new File(args[++i]);
 				else {
-					for (int i = images.size()-1; i >= 0; i--)
-						if (images.get(i).contains(x,y)) {
-							if (lase != null)
-								lase.play();
-							images.remove(i);
-							repaint();
-							break;
+					File f = new File(args[i]);
+					if (f.isDirectory()) {
+						File[] files = f.listFiles();
+						if (files != null) {
+							for (File file : files) {
+								if (file.getName().endsWith(".properties"))
+									sceneFiles.add(file);
+							}
 						}
+					}
+					else
+						sceneFiles.add(f);
 				}
 			}
-		});
-	}
-	
-	protected void paintComponent(Graphics g1) {
-		super.paintComponent(g1);
-		Graphics2D g2 = (Graphics2D)g1;
-		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-		if (backgroundImage != null)
-			g2.drawImage(backgroundImage,0,0,getWidth(),getHeight(),this);
-		if (gradientOverlayColor != null) {
-			int r = gradientOverlayColor.getRed();
-			int b = gradientOverlayColor.getBlue();
-			int g = gradientOverlayColor.getGreen();
-			Color startColor = new Color(r,g,b,50);
-			Color endColor = new Color(r,g,b,200);
-			if (horizontalOverlay)
-				g2.setPaint(new GradientPaint(0,0,startColor,getWidth(),0,endColor,false));
-			else
-				g2.setPaint(new GradientPaint(0,0,startColor,0,getHeight(),endColor,false));
-			g2.fillRect(0,0,getWidth(),getHeight());
 		}
-		text.draw(g2, getWidth()/2, getHeight()/2);
-		for (ImageItem img : images)
-			img.draw(g2);
+		catch (Exception e) {
+			sceneFiles.clear();
+		}
+		if (sceneFiles.isEmpty()) {
+			System.out.println("Usage: java guidemo.BatchRenderer [-threads N] [-queue N] [-out dir] scene-file-or-directory ...");
+			return;
+		}
+		if (outputDir != null)
+			outputDir.mkdirs();
+		BatchRenderer renderer = new BatchRenderer(threads, queueSize);
+		long start = System.nanoTime();
+		int count;
+		try {
+			count = renderer.renderAll(sceneFiles, outputDir);
+		}
+		catch (InterruptedException e) {
+			return;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Rendered %d of %d images in %.2f seconds (%.1f images per second, %d threads)%n",
+				count, sceneFiles.size(), seconds, count / seconds, threads);
 	}
 
-	public Image getBackgroundImage() {
-		return backgroundImage;
-	}
+	private final int threadCount;
+	private final int queueCapacity;
 
-	public void setBackgroundImage(Image backgroundImage) {
-		this.backgroundImage = backgroundImage;
-		repaint();
-	}
+	private final ConcurrentHashMap<String,BufferedImage> images = new ConcurrentHashMap<String,BufferedImage>();
+	             // Backgrounds and stamps, loaded once and shared by all the scenes that use them.
 
-	public Color getBorderColor() {
-		return borderColor;
-	}
+	private final ThreadLocal<DrawPanel> panels = new ThreadLocal<DrawPanel>() {
+		protected DrawPanel initialValue() {
+			return new DrawPanel();
+		}
+	};
 
-	public void setBorderColor(Color borderColor) {
-		this.borderColor = borderColor;
-		setBorder(BorderFactory.createLineBorder(borderColor, borderThickness));
-		repaint();
+	/**
+	 * Create a renderer.
+	 * @param threadCount the number of scenes that are rendered at the same time.
+	 * @param queueCapacity the number of scenes that can be waiting for a thread.
+	 */
+	public BatchRenderer(int threadCount, int queueCapacity) {
+		if (threadCount < 1 || queueCapacity < 0)
+			throw new IllegalArgumentException("Need at least one thread and a non-negative queue size.");
+		this.threadCount = threadCount;
+		this.queueCapacity = queueCapacity;
 	}
 
-	public int getBorderThickness() {
-		return borderThickness;
+	/**
+	 * Render a list of scene files, writing an image file for each one.  Scenes that
+	 * can't be read or written are reported on System.err and skipped.
+	 * @param outputDir the directory for output files whose names are not absolute, or
+	 *    null to put them in the same directory as the scene file.
+	 * @return the number of images that were written.
+	 */
+	public int renderAll(List<File> sceneFiles, final File outputDir) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+		final Semaphore slots = new Semaphore(threadCount + queueCapacity);
+		final AtomicInteger written = new AtomicInteger();
+		try {
+			for (final File sceneFile : sceneFiles) {
+				slots.acquire();  // Wait for room in the queue.
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							renderFile(sceneFile, outputDir);
+							written.incrementAndGet();
+						}
+						catch (Exception e) {
+							System.err.println("Can't render " + sceneFile + ": " + e);
+						}
+						finally {
+							slots.release();
+						}
+					}
+				});
+			}
+		}
+		finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+		return written.get();
 	}
 
-	public void setBorderThickness(int borderThickness) {
-		this.borderThickness = borderThickness;
-		setBorder(BorderFactory.createLineBorder(borderColor, borderThickness));
-		repaint();
+	/**
+	 * Draw a scene, using the DrawPanel that belongs to the current thread.
+	 */
+	public BufferedImage render(Scene scene) {
+		DrawPanel panel = panels.get();
+		panel.setScene(scene);
+		panel.setSize(scene.getWidth(), scene.getHeight());
+		return panel.copyImage();
 	}
 
-	public Color getGradientOverlayColor() {
-		return gradientOverlayColor;
+	private void renderFile(File sceneFile, File outputDir) throws IOException {
+		Properties description = new Properties();
+		try (InputStream in = new FileInputStream(sceneFile)) {
+			description.load(in);
+		}
+		Scene scene = readScene(description);
+		String name = sceneFile.getName().replaceFirst("\\.properties$", "") + ".png";
+		File output = new File(description.getProperty("output", name));
+		if (!output.isAbsolute())
+			output = new File(outputDir != null ? outputDir : sceneFile.getAbsoluteFile().getParentFile(), output.getPath());
+		String fileName = output.getName().toLowerCase();
+		ImageEncoder encoder;
+		if (description.getProperty("encoder") != null)
+			encoder = ImageEncoder.preset(description.getProperty("encoder").trim());
+		else if (fileName.endsWith(".png"))
+			encoder = new ImageEncoder("PNG");
+		else if (fileName.endsWith(".jpeg") || fileName.endsWith(".jpg"))
+			encoder = new ImageEncoder("JPEG");
+		else
+			throw new IOException("The output file name must end with .png or .jpeg.");
+		encoder.write(render(scene), output);
 	}
 
-	public void setGradientOverlayColor(Color gradientOverlayColor) {
-		this.gradientOverlayColor = gradientOverlayColor;
-		repaint();
+	/**
+	 * Make a Scene from a scene description, as described in the comment on this class.
+	 */
+	public Scene readScene(Properties p) throws IOException {
+		Scene scene = new Scene();
+		scene.setSize(Integer.parseInt(p.getProperty("width", "800").trim()),
+				Integer.parseInt(p.getProperty("height", "600").trim()));
+		TextItem text = new TextItem();
+		if (p.getProperty("text") != null)
+			text.setText(p.getProperty("text"));
+		text.setFontName(p.getProperty("text.fontName", text.getFontName()));
+		text.setFontSize(Integer.parseInt(p.getProperty("text.fontSize", "" + text.getFontSize()).trim()));
+		text.setBold(Boolean.parseBoolean(p.getProperty("text.bold", "false").trim()));
+		text.setItalic(Boolean.parseBoolean(p.getProperty("text.italic", "false").trim()));
+		String justify = p.getProperty("text.justify", "left").trim().toLowerCase();
+		text.setJustify(justify.equals("center") ? TextItem.CENTER : justify.equals("right") ? TextItem.RIGHT : TextItem.LEFT);
+		text.setColor(parseColor(p.getProperty("text.color", "#000000")));
+		text.setLineHeightMultiplier(Double.parseDouble(p.getProperty("text.lineHeight", "1").trim()));
+		scene.setTextItem(text);
+		if (p.getProperty("mandelbrot") != null) {
+			String[] view = p.getProperty("mandelbrot").trim().split("\\s+");
+			if (view.length != 4)
+				throw new IllegalArgumentException("mandelbrot needs center x, center y, zoom, and iterations");
+			MandelbrotRenderer mandelbrot = new MandelbrotRenderer(Double.parseDouble(view[0]),
+					Double.parseDouble(view[1]), Double.parseDouble(view[2]), Integer.parseInt(view[3]));
+			scene.setMandelbrot(mandelbrot);
+			scene.setBackgroundImage(mandelbrot.render(scene.getWidth(), scene.getHeight()));
+		}
+		else if (p.getProperty("background") != null) {
+			scene.setBackgroundImage(getImage(p.getProperty("background").trim()));
+			scene.setBackgroundSource(p.getProperty("background").trim());
+		}
+		scene.setBackgroundColor(parseColor(p.getProperty("backgroundColor", "#404040")));
+		scene.setGradientOverlayColor(parseColor(p.getProperty("gradient.color", "#FFFFFF")));
+		scene.setHorizontalOverlay(Boolean.parseBoolean(p.getProperty("gradient.horizontal", "false").trim()));
+		String mode = p.getProperty("gradient.mode", "linear").trim().toLowerCase();
+		scene.setGradientOverlayMode(mode.equals("radial") ? GradientOverlay.RADIAL
+				: mode.equals("multi_stop") ? GradientOverlay.MULTI_STOP : GradientOverlay.LINEAR);
+		String[] alpha = p.getProperty("gradient.alpha", "50,200").split(",");
+		scene.setGradientOverlayAlpha(Integer.parseInt(alpha[0].trim()), Integer.parseInt(alpha[1].trim()));
+		if (p.getProperty("gradient.stops") != null) {
+			String[] stops = p.getProperty("gradient.stops").split(",");
+			float[] fractions = new float[stops.length];
+			Color[] colors = new Color[stops.length];
+			for (int i = 0; i < stops.length; i++) {
+				String[] parts = stops[i].trim().split("\\s+");
+				fractions[i] = Float.parseFloat(parts[0]);
+				colors[i] = parseColor(parts[1]);
+			}
+			new GradientOverlay(GradientOverlay.MULTI_STOP, fractions, colors, false); // Checks the stops.
+			scene.setGradientOverlayStops(fractions, colors);
+		}
+		if (p.getProperty("stamps") != null) {
+			ArrayList<ImageItem> stamps = new ArrayList<ImageItem>();
+			for (String stamp : p.getProperty("stamps").split(",")) {
+				String[] parts = stamp.trim().split("\\s+");
+				String name = parts[0];
+				if (name.indexOf('/') < 0 && name.indexOf('.') < 0)
+					name = "resources/icons/" + name + ".png";
+				stamps.add(new ImageItem(getImage(name), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+			}
+			scene.setStamps(stamps);
+		}
+		return scene;
 	}
 
-	public boolean isHorizontalOverlay() {
-		return horizontalOverlay;
+	/**
+	 * Parse a color of the form #RRGGBB or #RRGGBBAA; "none" means null.
+	 */
+	private static Color parseColor(String s) {
+		s = s.trim();
+		if (s.equalsIgnoreCase("none"))
+			return null;
+		if (!s.startsWith("#") || (s.length() != 7 && s.length() != 9))
+			throw new IllegalArgumentException("Illegal color: " + s);
+		int rgb = Integer.parseInt(s.substring(1, 7), 16);
+		int alpha = s.length() == 9 ? Integer.parseInt(s.substring(7), 16) : 255;
+		return new Color((alpha << 24) | rgb, true);
 	}
 
-	public void setHorizontalOverlay(boolean horizontalOverlay) {
-		this.horizontalOverlay = horizontalOverlay;
-		repaint();
+	/**
+	 * Get an image from a resource or, if there is no such resource, from a file.  Each
+	 * image is only loaded once.
+	 */
+	private BufferedImage getImage(String name) throws IOException {
+		BufferedImage img = images.get(name);
+		if (img == null) {
+			img = Util.getBufferedImageResource(name);
+			if (img == null) {
+				Profiling.LoadEvent event = Profiling.LoadEvent.start();
+				File file = new File(name);
+				img = ImageIO.read(file);
+				if (img == null)
+					throw new IOException("Can't read image " + name);
+				img = Util.toCompatibleImage(img);
+				event.record("image", name, img.getWidth(), img.getHeight(), file.length(), false);
+			}
+			images.putIfAbsent(name, img);
+		}
+		return img;
 	}
 
-	public BufferedImage getCurrentDrawImage() {
-		return currentDrawImage;
-	}
+}
 
-	public void setCurrentDrawImage(BufferedImage currentDrawImage) {
-		this.currentDrawImage = currentDrawImage;
-	}
 
-	public TextItem getTextItem() {
-		return text;
+// src/guidemo/Benchmarks.java
+
+package guidemo;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.SwingUtilities;
+
+/**
+ * A collection of simple timing programs for the drawing and loading code in this
+ * package.  Run it with the names of one or more benchmarks on the command line, for
+ * example "java guidemo.Benchmarks blit".  Running it without arguments lists the
+ * available benchmarks.  Each benchmark prints a small table to standard output.
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: java guidemo.Benchmarks <name> ...");
+			System.out.println("Available benchmarks:");
+			System.out.println("   blit   -- drawing images in various pixel formats, before and after Util.toCompatibleImage");
+			System.out.println("   text   -- TextItem.setText and TextItem.draw for 1 MB and 10 MB texts");
+			System.out.println("   edt    -- event-dispatch thread latency while a large PNG is saved by ExportService");
+			System.out.println("   encode -- file size and time for each ImageEncoder preset, on a panel-sized picture");
+			System.out.println("   mandelbrot -- MandelbrotRenderer at 800x600, with 1, 2, 4, ... threads");
+			System.out.println("   startup -- loading the startup resources serially, as before, and with ResourceLoader");
+			System.out.println("   stamps -- memory and drawing time for 10k, 100k and 1M stamps, as ImageItems and in a StampList");
+			System.out.println("   brush  -- stamps per second and frame time for the DrawPanel brush during a fast synthetic drag");
+			System.out.println("   bake   -- DrawPanel paint time for 1k to 1M stamps, with and without baked layers");
+			System.out.println("   hotpaths -- time and allocation per call for copyImage, text, hit testing, gradients, decoding and encoding");
+			return;
+		}
+		for (String name : args) {
+			switch (name) {
+				case "blit":
+					blit();
+					break;
+				case "text":
+					text();
+					break;
+				case "edt":
+					edt();
+					break;
+				case "encode":
+					encode();
+					break;
+				case "mandelbrot":
+					mandelbrot();
+					break;
+				case "startup":
+					startup();
+					break;
+				case "stamps":
+					stamps();
+					break;
+				case "brush":
+					brush();
+					break;
+				case "bake":
+					bake();
+					break;
+				case "hotpaths":
+					hotPaths();
+					break;
+				default:
+					System.out.println("Unknown benchmark: " + name);
+			}
+		}
 	}
-	
+
 	/**
-	 * Create and return a BufferedImage containing the same picture that is
-	 * shown in this panel.
+	 * Returns the average time, in milliseconds, for one execution of task.  The task is
+	 * run for about a quarter second first, to give the JIT compiler time to work.
 	 */
-	public BufferedImage copyImage() {
-		BufferedImage copy = new BufferedImage(getWidth(),getHeight(),BufferedImage.TYPE_INT_RGB);
-		Graphics g = copy.createGraphics();
-		paintComponent(g);
-		g.dispose();
-		return copy;
+	static double time(Runnable task) {
+		long end = System.nanoTime() + 250_000_000L;
+		while (System.nanoTime() < end)
+			task.run();
+		int reps = 0;
+		long start = System.nanoTime();
+		end = start + 1_000_000_000L;
+		long now;
+		do {
+			task.run();
+			reps++;
+			now = System.nanoTime();
+		} while (now < end);
+		return (now - start) / 1e6 / reps;
 	}
-	
+
 	/**
-	 * Return this panel to its default state.  (The text will be "Hello World", on a gray
-	 * background.)
+	 * Time a task as time() does, and also measure how much memory it allocates, from the
+	 * number of bytes allocated by the current thread (which is what the JVM's allocation
+	 * counters report).  Returns the milliseconds per run and the bytes allocated per run;
+	 * the bytes are -1 if the JVM can't count them.
 	 */
-	public void clear() {
-		text = new TextItem();
-		backgroundImage = null;
-		setBackground(Color.DARK_GRAY);
-		gradientOverlayColor = Color.WHITE;
-		horizontalOverlay = false;
-		borderThickness = 3;
-		setBorderColor(Color.DARK_GRAY);
-		images.clear();
-		repaint();
+	static double[] timeAndAllocation(Runnable task) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean counter = null;
+		if (threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported())
+			counter = (com.sun.management.ThreadMXBean)threads;
+		long id = Thread.currentThread().getId();
+		long end = System.nanoTime() + 250_000_000L;
+		while (System.nanoTime() < end)
+			task.run();
+		int reps = 0;
+		long allocated = counter == null ? 0 : counter.getThreadAllocatedBytes(id);
+		long start = System.nanoTime();
+		end = start + 1_000_000_000L;
+		long now;
+		do {
+			task.run();
+			reps++;
+			now = System.nanoTime();
+		} while (now < end);
+		if (counter != null)
+			allocated = counter.getThreadAllocatedBytes(id) - allocated;
+		return new double[] { (now - start) / 1e6 / reps, counter == null ? -1 : (double)allocated / reps };
 	}
-	
-}
-
-
-// src/guidemo/GetTextDialog.java
 
-package guidemo;
-
-import java.awt.*;
-import java.awt.event.*;
-import javax.swing.*;
+	/**
+	 * Make an image of a given type, filled with a gradient and some random shapes
+	 * so that it looks a little bit like a photo or an icon.
+	 */
+	static BufferedImage makeTestImage(int type, int width, int height) {
+		BufferedImage img = new BufferedImage(width, height, type);
+		Graphics2D g = img.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+		g.fillRect(0, 0, width, height);
+		Random rand = new Random(17);
+		for (int i = 0; i < 200; i++) {
+			g.setColor(new Color(rand.nextInt(256), rand.nextInt(256), rand.nextInt(256), rand.nextInt(256)));
+			g.fillOval(rand.nextInt(width), rand.nextInt(height), rand.nextInt(width/4 + 1), rand.nextInt(height/4 + 1));
+		}
+		g.dispose();
+		return img;
+	}
 
-/**
- * Defines a modal dialog for inputing multiline text.
- */
-public class GetTextDialog extends JDialog {
-	
-	private boolean canceled = false;
-	private JTextArea text;
-	
 	/**
-	 * Display the dialog box, wait for the user to dismiss it, and return the 
-	 * user's input, or null if the user cancels the dialog.
-	 * @param parent  A component whose frame is the parent of the dialog box.
-	 * @param initialText the initial contents of the inputs box; if null, the box is initially empty.
-	 * @return the text from the input box, or null if the user cancels the dialog.
-	 * Note that the return can be a blank string if the user clicks "OK" without entering
-	 * any text.
+	 * Draw a background-sized image and a stamp-sized image in each of the pixel formats
+	 * that ImageIO commonly produces, both as loaded and after conversion by
+	 * Util.toCompatibleImage.  When a screen is available, the target is a VolatileImage,
+	 * so that the times include the effect of managed-image acceleration.
 	 */
-	public static String showDialog(Component parent, String initialText) {
-		GetTextDialog dialog = new GetTextDialog(frameAncestor(parent), initialText);
-		dialog.setVisible(true);
-		if (dialog.canceled)
-			return null;
-		else
-			return dialog.text.getText();
+	private static void blit() {
+		int[] types = { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_INDEXED,
+				BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB };
+		String[] names = { "3BYTE_BGR", "4BYTE_ABGR", "BYTE_INDEXED", "BYTE_GRAY", "INT_RGB", "INT_ARGB" };
+		Image target;
+		if (GraphicsEnvironment.isHeadless())
+			target = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+		else {
+			GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+					.getDefaultScreenDevice().getDefaultConfiguration();
+			target = gc.createCompatibleVolatileImage(800, 600);
+		}
+		final Graphics2D g = (Graphics2D)target.getGraphics();
+		System.out.println("Target: " + (target instanceof VolatileImage ? "VolatileImage" : "BufferedImage") + ", 800x600");
+		System.out.printf("%-14s %-10s %12s %12s %8s%n", "Source", "Size", "Loaded (ms)", "Compat (ms)", "Speedup");
+		int[][] sizes = { {800, 600}, {32, 32} };
+		for (int[] size : sizes) {
+			for (int i = 0; i < types.length; i++) {
+				final BufferedImage loaded = makeTestImage(types[i], size[0], size[1]);
+				final BufferedImage compatible = Util.toCompatibleImage(loaded);
+				double before = time(new Runnable() {
+					public void run() {
+						g.drawImage(loaded, 0, 0, null);
+					}
+				});
+				double after = time(new Runnable() {
+					public void run() {
+						g.drawImage(compatible, 0, 0, null);
+					}
+				});
+				System.out.printf("%-14s %-10s %12.4f %12.4f %7.1fx%n",
+						names[i], size[0] + "x" + size[1], before, after, before/after);
+			}
+		}
+		g.dispose();
 	}
-	
-	private static Frame frameAncestor(Component c) {
-		while (c != null && ! (c instanceof Frame))
-			c = c.getParent();
-		return (Frame)c;
+
+	/**
+	 * Make a scene with a background image and the given number of randomly placed stamps.
+	 */
+	static Scene makeTestScene(int width, int height, int stampCount) {
+		Scene scene = new Scene();
+		scene.setSize(width, height);
+		scene.setBackgroundImage(Util.toCompatibleImage(makeTestImage(BufferedImage.TYPE_3BYTE_BGR, 1600, 1200)));
+		TextItem text = new TextItem();
+		text.setText("Too bad but it's the life you lead\nYou're so ahead of yourself that you forgot what you need");
+		text.setFontSize(24);
+		scene.setTextItem(text);
+		BufferedImage stamp = Util.toCompatibleImage(makeTestImage(BufferedImage.TYPE_INT_ARGB, 32, 32));
+		Random rand = new Random(7);
+		ArrayList<ImageItem> stamps = new ArrayList<ImageItem>();
+		for (int i = 0; i < stampCount; i++)
+			stamps.add(new ImageItem(stamp, rand.nextInt(width), rand.nextInt(height)));
+		scene.setStamps(stamps);
+		return scene;
 	}
-	
+
 	/**
-	 * Creates, but does not show, a dialog box.
+	 * Measure how long events wait on the event-dispatch thread while a large picture is
+	 * saved, first the old way (rendering and encoding on the event thread) and then with
+	 * ExportService.  A probe thread posts an event every 5 milliseconds and records how
+	 * late it runs.  The test fails (with exit status 1) if the worst latency with
+	 * ExportService is over 100 milliseconds.
 	 */
-	private GetTextDialog(Frame parent, String initialText) {
-		super(parent, "Input Your Text", true);
-		JPanel content = new JPanel();
-		setContentPane(content);
-		content.setBackground(Color.LIGHT_GRAY);
-		content.setLayout(new BorderLayout(3,3));
-		text = new JTextArea(10,50);
-		text.setMargin(new Insets(6,6,6,6));
-		if (initialText != null)
-			text.setText(initialText);
-		content.add(text,BorderLayout.CENTER);
-		JPanel bottom = new JPanel();
-		content.add(bottom,BorderLayout.SOUTH);
-		JButton cancel = new JButton("Cancel");
-		cancel.addActionListener( new ActionListener() {
-			public void actionPerformed(ActionEvent evt) {
-				canceled = true;
-				dispose();
+	private static void edt() {
+		final Scene scene = makeTestScene(4000, 3000, 5000);
+		final File file;
+		try {
+			file = File.createTempFile("edt-benchmark", ".png");
+		}
+		catch (IOException e) {
+			System.out.println("Can't create a temporary file.");
+			return;
+		}
+		file.deleteOnExit();
+		final DrawPanel panel = new DrawPanel();
+		panel.setScene(scene);
+		panel.setSize(scene.getWidth(), scene.getHeight());
+		System.out.printf("%-22s %12s %12s %12s%n", "Save method", "Total (ms)", "Max (ms)", "99th % (ms)");
+		double[] sync = measureLatency(new Runnable() {
+			public void run() {
+				try {
+					SwingUtilities.invokeAndWait(new Runnable() {
+						public void run() {
+							try {
+								ImageIO.write(panel.copyImage(), "PNG", file);
+							}
+							catch (IOException e) {
+								System.out.println("Save failed: " + e);
+							}
+						}
+					});
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
 			}
 		});
-		JButton ok = new JButton("OK");
-		ok.addActionListener( new ActionListener() {
-			public void actionPerformed(ActionEvent evt) {
-				dispose();
+		System.out.printf("%-22s %12.1f %12.1f %12.1f%n", "On the event thread", sync[0], sync[1], sync[2]);
+		final ExportService service = new ExportService();
+		final long[] snapshotTime = new long[1];
+		double[] async = measureLatency(new Runnable() {
+			public void run() {
+				try {
+					final Future<?>[] save = new Future<?>[1];
+					SwingUtilities.invokeAndWait(new Runnable() {
+						public void run() {
+							long start = System.nanoTime();
+							save[0] = service.export(panel.getScene(), "PNG", file, null);
+							snapshotTime[0] = System.nanoTime() - start;
+						}
+					});
+					save[0].get();
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
 			}
 		});
-		bottom.add(cancel);
-		bottom.add(ok);
-		pack();
-		setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+		service.shutdown();
+		System.out.printf("%-22s %12.1f %12.1f %12.1f%n", "ExportService", async[0], async[1], async[2]);
+		System.out.printf("Time on the event thread to take the snapshot: %.2f ms%n", snapshotTime[0] / 1e6);
+		if (async[1] > 100) {
+			System.out.println("FAILED: event-dispatch thread latency exceeded 100 ms.");
+			System.exit(1);
+		}
 	}
-	
-
-}
 
+	/**
+	 * Encode two 800-by-600 pictures, one with a busy background and many stamps and one
+	 * with just text over a gradient, with plain ImageIO.write and with each of the
+	 * ImageEncoder presets, into memory, and report the size and time.
+	 */
+	private static void encode() {
+		Scene busy = makeTestScene(800, 600, 200);
+		Scene plain = makeTestScene(800, 600, 0);
+		plain.setBackgroundImage(null);
+		plain.setBackgroundColor(new Color(32, 64, 128));
+		plain.setGradientOverlayColor(Color.WHITE);
+		encode("Busy picture", new TiledExporter(busy, 800, 600).render());
+		System.out.println();
+		encode("Text over a gradient", new TiledExporter(plain, 800, 600).render());
+	}
 
-// src/guidemo/GuiDemo.java
+	private static void encode(String title, final BufferedImage image) {
+		System.out.printf("%-22s %12s %12s%n", title, "Size (KB)", "Time (ms)");
+		for (final String format : new String[] { "JPEG", "PNG" }) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			double time = time(new Runnable() {
+				public void run() {
+					out.reset();
+					try {
+						ImageIO.write(image, format, out);
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			System.out.printf("%-22s %12.1f %12.2f%n", "ImageIO.write " + format, out.size() / 1024.0, time);
+		}
+		for (String preset : ImageEncoder.PRESETS) {
+			final ImageEncoder encoder = ImageEncoder.preset(preset);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			double time = time(new Runnable() {
+				public void run() {
+					out.reset();
+					try {
+						encoder.write(image, out, null);
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+			System.out.printf("%-22s %12.1f %12.2f%n", preset, out.size() / 1024.0, time);
+		}
+	}
 
-package guidemo;
+	/**
+	 * Run a task while a probe measures event-dispatch thread latency.  Returns the total
+	 * time for the task, and the maximum and 99th percentile latency, in milliseconds.
+	 */
+	private static double[] measureLatency(Runnable task) {
+		final ArrayList<Long> latencies = new ArrayList<Long>();
+		final boolean[] done = new boolean[1];
+		Thread probe = new Thread() {
+			public void run() {
+				while (true) {
+					synchronized (done) {
+						if (done[0])
+							return;
+					}
+					final long posted = System.nanoTime();
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							synchronized (latencies) {
+								latencies.add(System.nanoTime() - posted);
+							}
+						}
+					});
+					try {
+						Thread.sleep(5);
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		probe.start();
+		long start = System.nanoTime();
+		task.run();
+		double total = (System.nanoTime() - start) / 1e6;
+		synchronized (done) {
+			done[0] = true;
+		}
+		try {
+			probe.join();
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+				}
+			});
+		}
+		catch (Exception e) {
+		}
+		synchronized (latencies) {
+			Collections.sort(latencies);
+			if (latencies.isEmpty())
+				return new double[] { total, 0, 0 };
+			double max = latencies.get(latencies.size() - 1) / 1e6;
+			double p99 = latencies.get((int)(latencies.size() * 0.99)) / 1e6;
+			return new double[] { total, max, p99 };
+		}
+	}
 
-import java.awt.*;
-import java.awt.event.*;
-import java.awt.image.BufferedImage;
-import java.io.File;
+	/**
+	 * Make a text of about the given number of characters, with lines of varying length,
+	 * something like a log file or a long lyric sheet.
+	 */
+	static String makeTestText(int length) {
+		String[] words = { "Too", "bad", "but", "it's", "the", "life", "you", "lead", "ahead", "of", "yourself",
+				"forgot", "what", "need", "though", "can", "see", "when", "wrong", "right" };
+		StringBuilder b = new StringBuilder(length + 100);
+		Random rand = new Random(42);
+		while (b.length() < length) {
+			int count = rand.nextInt(12);
+			for (int i = 0; i < count; i++)
+				b.append(words[rand.nextInt(words.length)]).append(' ');
+			b.append('\n');
+		}
+		return b.toString();
+	}
 
-import javax.imageio.ImageIO;
-import javax.swing.*;
+	/**
+	 * Compare two ways of loading the resources that BackgroundSupport and IconSupport use:
+	 * one after the other, decoding the stamps twice, as the program did when GuiDemo
+	 * made two of each and read everything on the event-dispatch thread; and with a
+	 * ResourceLoader, which reads each resource once, in parallel.  The ImageCache is
+	 * cleared before each run.  The comparison is done twice, since the first round
+	 * includes class loading and JIT compilation.
+	 */
+	private static void startup() {
+		new IconSupport(new DrawPanel());  // Collects the list of resources in the shared loader.
+		new BackgroundSupport(new DrawPanel(), null, new JCheckBoxMenuItem());
+		ResourceLoader.getShared().awaitAll();
+		List<String> paths = ResourceLoader.getShared().getPaths();
+		System.out.printf("%d resources%n", paths.size());
+		System.out.printf("%-8s %12s %12s%n", "Round", "Serial (ms)", "Loader (ms)");
+		for (int round = 1; round <= 2; round++) {
+			ImageCache.getShared().clear();
+			long start = System.nanoTime();
+			for (String path : paths) {
+				int copies = path.startsWith("resources/icons/") ? 2 : 1;
+				for (int i = 0; i < copies; i++) {
+					try {
+						URL loc = Util.class.getClassLoader().getResource(path);
+						if (loc != null) {
+							BufferedImage img = ImageIO.read(loc);
+							if (img != null)
+								Util.toCompatibleImage(img);
+						}
+					}
+					catch (IOException ignored) {
+					}
+				}
+			}
+			double serial = (System.nanoTime() - start) / 1e6;
+			ImageCache.getShared().clear();
+			start = System.nanoTime();
+			ResourceLoader loader = new ResourceLoader(Runtime.getRuntime().availableProcessors());
+			for (String path : paths)
+				loader.load(path);
+			loader.awaitAll();
+			double parallel = (System.nanoTime() - start) / 1e6;
+			System.out.printf("%-8d %12.1f %12.1f%n", round, serial, parallel);
+		}
+	}
 
-/**
- * A frame that displays a multiline text, possibly with a background image
- * and with added icon images, in a DrawPanel, along with a variety of controlls.
- */
-public class GuiDemo extends JFrame {
+	/**
+	 * Compare a list of ImageItems, which is how the stamps were kept before StampList
+	 * stored them in arrays, with a StampList:  the memory used per stamp, as measured
+	 * by the change in heap use, and the time to draw all of the stamps into an 800-by-600
+	 * image.  The stamps are 32-by-32 images of a few kinds, placed at random.  With more
+	 * than about 100k stamps the drawing time is dominated by the pixels themselves, so
+	 * the memory is the larger difference.
+	 */
+	private static void stamps() {
+		BufferedImage[] kinds = new BufferedImage[4];
+		for (int i = 0; i < kinds.length; i++)
+			kinds[i] = Util.toCompatibleImage(makeTestImage(BufferedImage.TYPE_INT_ARGB, 32, 32));
+		BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = image.createGraphics();
+		usedMemory();  // So that garbage from earlier work is not counted against the first measurement.
+		System.out.printf("%-8s %16s %16s %16s %16s%n", "Stamps", "Items (B/stamp)", "List (B/stamp)", "Items draw (ms)", "List draw (ms)");
+		for (int count : new int[] { 10_000, 100_000, 1_000_000 }) {
+			Random rand = new Random(7);
+			long before = usedMemory();
+			final ArrayList<ImageItem> items = new ArrayList<ImageItem>();
+			for (int i = 0; i < count; i++)
+				items.add(new ImageItem(kinds[rand.nextInt(kinds.length)], rand.nextInt(800), rand.nextInt(600)));
+			double itemBytes = (double)(usedMemory() - before) / count;
+			before = usedMemory();
+			StampList built = StampList.EMPTY;  // Built one stamp at a time, as it is in a DrawPanel.
+			for (ImageItem item : items)
+				built = built.plus(item);
+			final StampList list = built;
+			double listBytes = (double)(usedMemory() - before) / count;
+			double itemDraw = time(new Runnable() {
+				public void run() {
+					for (ImageItem item : items)
+						item.draw(g);
+				}
+			});
+			double listDraw = time(new Runnable() {
+				public void run() {
+					list.draw(g);
+				}
+			});
+			System.out.printf("%-8d %16.1f %16.1f %16.2f %16.2f%n", count, itemBytes, listBytes, itemDraw, listDraw);
+		}
+		g.dispose();
+	}
 
-    /**
-     * The main program just creates a GuiDemo frame and makes it visible.
-     */
-    public static void main(String[] args) {
-        JFrame frame = new GuiDemo();
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setVisible(true);
-    }
+	/**
+	 * Drag the mouse quickly over a DrawPanel with the brush on, with 4 pixels between
+	 * stamps, and measure the stamps per second and the time per frame.  Each frame is a
+	 * burst of 8 drag events about 20 pixels apart, as from a 1000 Hz mouse moving 20,000
+	 * pixels per second at 125 frames per second, followed by the flush that stamps them
+	 * and a paint of the area that the panel asked to repaint (which the RepaintManager
+	 * would do on the screen).  The frame time is measured from the start of the burst to
+	 * the end of the paint.  The drag lasts 250 frames, and is done over an empty picture
+	 * and over 100,000 stamps, each time on a new panel after a warm-up drag.
+	 */
+	private static void brush() {
+		final int frames = 250;
+		final int eventsPerFrame = 8;
+		BufferedImage stamp = Util.toCompatibleImage(makeTestImage(BufferedImage.TYPE_INT_ARGB, 32, 32));
+		BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = image.createGraphics();
+		System.out.printf("%-10s %14s %14s %14s %14s%n", "Existing", "Stamps/frame", "Stamps/s", "Mean (ms)", "Max (ms)");
+		for (int existing : new int[] { 0, 100_000 }) {
+			for (int pass = 0; pass < 2; pass++) {
+				final Rectangle[] dirty = new Rectangle[1];  // The union of the areas passed to repaint().
+				final DrawPanel panel = new DrawPanel() {
+					public void repaint(long tm, int x, int y, int width, int height) {
+						if (dirty[0] == null)
+							dirty[0] = new Rectangle(x, y, width, height);
+						else
+							dirty[0].add(new Rectangle(x, y, width, height));
+					}
+				};
+				panel.setScene(makeTestScene(800, 600, existing));
+				panel.setSize(800, 600);
+				panel.setCurrentDrawImage(stamp);
+				panel.setBrushSpacing(4);
+				int before = panel.getScene().getStamps().size();
+				final int[] step = new int[1];
+				long[] frameTimes = new long[frames];
+				long start = System.nanoTime();
+				try {
+					SwingUtilities.invokeAndWait(new Runnable() {
+						public void run() {
+							panel.paintComponent(g);  // Builds the cached base layer.
+							Point p = dragPoint(step[0]);
+							panel.dispatchEvent(new MouseEvent(panel, MouseEvent.MOUSE_PRESSED, 0, 0, p.x, p.y, 1, false));
+						}
+					});
+					start = System.nanoTime();
+					for (int frame = 0; frame < frames; frame++) {
+						long frameStart = System.nanoTime();
+						SwingUtilities.invokeAndWait(new Runnable() {
+							public void run() {
+								for (int i = 0; i < eventsPerFrame; i++) {
+									Point p = dragPoint(++step[0]);
+									panel.dispatchEvent(new MouseEvent(panel, MouseEvent.MOUSE_DRAGGED, 0, 0, p.x, p.y, 0, false));
+								}
+							}
+						});
+						SwingUtilities.invokeAndWait(new Runnable() {  // Runs after the flush.
+							public void run() {
+								if (dirty[0] != null) {
+									g.setClip(dirty[0]);
+									panel.paintComponent(g);
+									dirty[0] = null;
+								}
+							}
+						});
+						frameTimes[frame] = System.nanoTime() - frameStart;
+					}
+					SwingUtilities.invokeAndWait(new Runnable() {
+						public void run() {
+							Point p = dragPoint(step[0]);
+							panel.dispatchEvent(new MouseEvent(panel, MouseEvent.MOUSE_RELEASED, 0, 0, p.x, p.y, 1, false));
+						}
+					});
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				int added = panel.getScene().getStamps().size() - before;
+				long total = 0, max = 0;
+				for (long t : frameTimes) {
+					total += t;
+					max = Math.max(max, t);
+				}
+				if (pass == 1)
+					System.out.printf("%-10d %14.1f %14.0f %14.3f %14.3f%n", existing, (double)added / frames,
+							added / seconds, total / 1e6 / frames, max / 1e6);
+			}
+		}
+		g.dispose();
+	}
 
-    private final DrawPanel drawPanel;
-    private final SimpleFileChooser fileChooser;
-    private final TextMenu textMenu;
-    private final JCheckBoxMenuItem gradientOverlayCheckbox = new JCheckBoxMenuItem("Gradient Overlay", true);
+	/**
+	 * Returns the mouse position after a given number of drag events, for brush().  The
+	 * mouse follows a Lissajous curve that sweeps over an 800-by-600 panel, moving about
+	 * 20 pixels per event.
+	 */
+	private static Point dragPoint(int step) {
+		double t = step * 0.02;
+		return new Point(400 + (int)Math.round(350 * Math.sin(3 * t)), 300 + (int)Math.round(250 * Math.sin(4 * t)));
+	}
 
+	/**
+	 * Time a full paint of an 800-by-600 DrawPanel with 1k, 10k, 100k and 1M stamps, with
+	 * baking turned off and with the default bake threshold, and the time to erase a stamp
+	 * from the baked layer, paint, undo the erase and paint again.  The base layer and the
+	 * baked raster are made before the timing starts, as they are after the first paint on
+	 * the screen.
+	 */
+	private static void bake() {
+		BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = image.createGraphics();
+		System.out.printf("%-8s %16s %16s %16s%n", "Stamps", "Unbaked (ms)", "Baked (ms)", "Erase+undo (ms)");
+		for (int count : new int[] { 1_000, 10_000, 100_000, 1_000_000 }) {
+			Scene scene = makeTestScene(800, 600, count);
+			double[] paint = new double[2];
+			for (int baked = 0; baked < 2; baked++) {
+				final DrawPanel panel = new DrawPanel();
+				if (baked == 0)
+					panel.setBakeThreshold(Integer.MAX_VALUE);
+				panel.setScene(scene);
+				panel.setSize(800, 600);
+				paint[baked] = time(new Runnable() {
+					public void run() {
+						panel.paintComponent(g);
+					}
+				});
+			}
+			final DrawPanel panel = new DrawPanel();
+			panel.setScene(scene);
+			panel.setSize(800, 600);
+			panel.setCurrentDrawImage(null);
+			panel.paintComponent(g);
+			final Random rand = new Random(3);
+			double erase = time(new Runnable() {
+				public void run() {
+					MouseEvent evt = new MouseEvent(panel, MouseEvent.MOUSE_PRESSED, 0, 0, rand.nextInt(800), rand.nextInt(600), 1, false);
+					panel.dispatchEvent(evt);
+					panel.paintComponent(g);
+					panel.undo();
+					panel.paintComponent(g);
+				}
+			});
+			System.out.printf("%-8d %16.2f %16.2f %16.2f%n", count, paint[0], paint[1], erase);
+		}
+		g.dispose();
+	}
 
-    /**
-     * The constructor creates the frame, sizes it, and centers it horizontally on the screen.
-     */
-    public GuiDemo() {
+	private static volatile int sink;  // Keeps the JIT compiler from removing work whose result is not used.
 
-        super("Sayings");  // Specifies the string for the title bar of the window.
+	/**
+	 * Time the calls that most often show up in a profile of the program, and report the
+	 * memory that each one allocates, so that a change that makes one of them slower or
+	 * makes it create garbage is easy to see.  Everything is done on the current thread,
+	 * without a screen.  The cases are:  DrawPanel.copyImage (which paints the whole
+	 * panel) at three sizes with 0, 1000 and 100,000 stamps; TextItem.setText and draw
+	 * for a short text and for a 1 MB text; finding the topmost stamp at a point among
+	 * 10,000 stamps, by scanning ImageItems with contains() and with a StampIndex; making
+	 * an 800-by-600 raster of each kind of GradientOverlay; decoding a PNG and converting
+	 * it with Util.toCompatibleImage, as Util.getBufferedImageResource does when the
+	 * image is not in the cache; and ImageIO.write of an 800-by-600 picture as PNG and JPEG.
+	 * The same cases are JMH benchmarks in HotPathBenchmarks; see pom.xml for how to run them.
+	 */
+	private static void hotPaths() {
+		System.out.printf("%-42s %12s %14s %14s%n", "Benchmark", "ms/call", "Alloc (MB/s)", "Alloc (B/call)");
+		for (int[] size : new int[][] { {400, 300}, {800, 600}, {1600, 1200} }) {
+			for (int count : new int[] { 0, 1000, 100_000 }) {
+				final DrawPanel panel = new DrawPanel();
+				panel.setScene(makeTestScene(size[0], size[1], count));
+				panel.setSize(size[0], size[1]);
+				printRow("copyImage " + size[0] + "x" + size[1] + ", " + count + " stamps", timeAndAllocation(new Runnable() {
+					public void run() {
+						sink += panel.copyImage().getWidth();
+					}
+				}));
+			}
+		}
+		BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setClip(0, 0, 800, 600);
+		String[] texts = { "Too bad but it's the life you lead\nYou're so ahead of yourself that you forgot what you need",
+				makeTestText(1024 * 1024) };
+		String[] textNames = { "short text", "1 MB text" };
+		for (int i = 0; i < texts.length; i++) {
+			final String s = texts[i];
+			final TextItem item = new TextItem();
+			printRow("TextItem.setText, " + textNames[i], timeAndAllocation(new Runnable() {
+				public void run() {
+					item.setText(s);
+				}
+			}));
+			printRow("TextItem.draw, " + textNames[i], timeAndAllocation(new Runnable() {
+				public void run() {
+					item.draw(g, 400, 300);
+				}
+			}));
+		}
+		Scene scene = makeTestScene(800, 600, 10_000);
+		final List<ImageItem> items = new ArrayList<ImageItem>(scene.getStamps());
+		final StampIndex index = new StampIndex();
+		index.addAll(StampList.copyOf(items));
+		final Random rand = new Random(11);
+		printRow("ImageItem.contains scan, 10k stamps", timeAndAllocation(new Runnable() {
+			public void run() {
+				int x = rand.nextInt(800), y = rand.nextInt(600);
+				for (int i = items.size() - 1; i >= 0; i--) {
+					if (items.get(i).contains(x, y)) {
+						sink += i;
+						break;
+					}
+				}
+			}
+		}));
+		printRow("StampIndex.findTopmost, 10k stamps", timeAndAllocation(new Runnable() {
+			public void run() {
+				sink += index.findTopmost(rand.nextInt(800), rand.nextInt(600));
+			}
+		}));
+		GradientOverlay[] overlays = {
+				new GradientOverlay(GradientOverlay.LINEAR, Color.BLUE, 0, 200, false),
+				new GradientOverlay(GradientOverlay.RADIAL, Color.BLUE, 0, 200, false),
+				new GradientOverlay(GradientOverlay.MULTI_STOP, new float[] { 0, 0.5f, 1 },
+						new Color[] { new Color(255,0,0,100), new Color(0,255,0,50), new Color(0,0,255,200) }, true) };
+		String[] overlayNames = { "linear", "radial", "multi-stop" };
+		for (int i = 0; i < overlays.length; i++) {
+			final GradientOverlay overlay = overlays[i];
+			printRow("GradientOverlay.createRaster, " + overlayNames[i], timeAndAllocation(new Runnable() {
+				public void run() {
+					sink += overlay.createRaster(800, 600).getWidth();
+				}
+			}));
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(makeTestImage(BufferedImage.TYPE_INT_ARGB, 256, 256), "PNG", bytes);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		final byte[] png = bytes.toByteArray();
+		printRow("PNG decode 256x256, toCompatibleImage", timeAndAllocation(new Runnable() {
+			public void run() {
+				try {
+					sink += Util.toCompatibleImage(ImageIO.read(new ByteArrayInputStream(png))).getWidth();
+				}
+				catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}));
+		DrawPanel panel = new DrawPanel();
+		panel.setScene(makeTestScene(800, 600, 1000));
+		panel.setSize(800, 600);
+		final BufferedImage picture = panel.copyImage();
+		for (final String format : new String[] { "PNG", "JPEG" }) {
+			printRow("ImageIO.write " + format + " 800x600", timeAndAllocation(new Runnable() {
+				public void run() {
+					bytes.reset();
+					try {
+						ImageIO.write(picture, format, bytes);
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}));
+		}
+		g.dispose();
+	}
 
-        // Create and customize the file chooser that is used for file operations.
+	/**
+	 * Print a line of the table for hotPaths().  The allocation rate is left blank if
+	 * the JVM can't count allocated bytes.
+	 */
+	private static void printRow(String name, double[] result) {
+		double millis = result[0];
+		double bytes = result[1];
+		if (bytes < 0)
+			System.out.printf("%-42s %12.4f %14s %14s%n", name, millis, "-", "-");
+		else
+			System.out.printf("%-42s %12.4f %14.1f %14.0f%n", name, millis, bytes / millis / 1000, bytes);
+	}
+
+	/**
+	 * Returns the number of bytes in use in the heap, after asking for a garbage collection.
+	 */
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+		}
+		return used;
+	}
+
+	/**
+	 * Time an 800-by-600 Mandelbrot background, in full and as the coarse first pass that
+	 * BackgroundLoader shows, in pools of 1, 2, 4, ... threads up to the number of
+	 * processors.  The speedup is relative to the pool with one thread.
+	 */
+	private static void mandelbrot() {
+		final MandelbrotRenderer renderer = new MandelbrotRenderer();
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.printf("%-10s %12s %12s %10s%n", "Threads", "Full (ms)", "Coarse (ms)", "Speedup");
+		double single = 0;
+		for (int threads = 1; ; threads = Math.min(cores, threads * 2)) {
+			final ForkJoinPool pool = new ForkJoinPool(threads);
+			double full = time(new Runnable() {
+				public void run() {
+					renderer.render(800, 600, 1, pool, null);
+				}
+			});
+			double coarse = time(new Runnable() {
+				public void run() {
+					renderer.render(800, 600, BackgroundLoader.MANDELBROT_PREVIEW_STEP, pool, null);
+				}
+			});
+			pool.shutdown();
+			if (threads == 1)
+				single = full;
+			System.out.printf("%-10d %12.2f %12.2f %10.2f%n", threads, full, coarse, single / full);
+			if (threads == cores)
+				break;
+		}
+	}
+
+	/**
+	 * Time setText, the first draw (which measures all the lines), and later draws of a
+	 * large text into an 800-by-600 image, with the text centered on the image as it is
+	 * in a DrawPanel.
+	 */
+	private static void text() {
+		BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setClip(0, 0, 800, 600);
+		System.out.printf("%-8s %8s %14s %14s %14s%n", "Size", "Lines", "setText (ms)", "1st draw (ms)", "draw (ms)");
+		for (int megabytes : new int[] { 1, 10 }) {
+			final String s = makeTestText(megabytes * 1024 * 1024);
+			final TextItem item = new TextItem();
+			double setText = time(new Runnable() {
+				public void run() {
+					item.setText(s);
+				}
+			});
+			long start = System.nanoTime();
+			item.draw(g, 400, 300);
+			double firstDraw = (System.nanoTime() - start) / 1e6;
+			double draw = time(new Runnable() {
+				public void run() {
+					item.draw(g, 400, 300);
+				}
+			});
+			System.out.printf("%-8s %8d %14.3f %14.3f %14.3f%n", megabytes + " MB", item.getLineCount(), setText, firstDraw, draw);
+		}
+		g.dispose();
+	}
+
+}
+
+
+// src/guidemo/ColorQuantizer.java
+
+package guidemo;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reduces a picture to a palette of at most 256 colors, so that it can be saved as an
+ * indexed-color PNG, which for pictures made mostly of flat text over a gradient is
+ * usually a fraction of the size of a 24-bit PNG.  The distinct colors of the picture
+ * are counted exactly, so a picture that has no more colors than the palette is not
+ * changed at all.  Otherwise, the palette is chosen by median cut:  the box of colors
+ * with the largest error is split repeatedly, across its widest component, until there
+ * are enough boxes.  Each box becomes one palette color, the average of the pixels in it.
+ * <p>Both counting the colors and mapping the pixels to the palette are done in parallel,
+ * over bands of rows, in a ForkJoinPool.  Optionally, the pixels are dithered with
+ * Floyd-Steinberg error diffusion, which hides banding in gradients.  The error is
+ * not carried from one band to the next, so that the bands can be done in parallel;
+ * the seams that this leaves are not visible in practice.  Transparency is ignored.
+ */
+public class ColorQuantizer {
+
+	private int maxColors = 256;
+	private boolean dither;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	public int getMaxColors() {
+		return maxColors;
+	}
+
+	/**
+	 * Set the maximum number of colors in the palette, from 2 to 256.  The default is 256.
+	 */
+	public void setMaxColors(int maxColors) {
+		if (maxColors < 2 || maxColors > 256)
+			throw new IllegalArgumentException("The number of colors must be between 2 and 256.");
+		this.maxColors = maxColors;
+	}
+
+	public boolean isDither() {
+		return dither;
+	}
+
+	/**
+	 * Set whether the pixels are dithered when they are mapped to the palette.  The
+	 * default is false.
+	 */
+	public void setDither(boolean dither) {
+		this.dither = dither;
+	}
+
+	/**
+	 * Set the pool that does the work.  The default is the common ForkJoinPool.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Returns a copy of an image, of type TYPE_BYTE_INDEXED, with a palette chosen for
+	 * that image.  If the image is not a BufferedImage, all of its data is requested at once.
+	 */
+	public BufferedImage quantize(RenderedImage image) {
+		final BufferedImage source = toBufferedImage(image);
+		final int width = source.getWidth();
+		final int height = source.getHeight();
+		final int bandHeight = Math.max(16, (height + 4*pool.getParallelism() - 1) / (4*pool.getParallelism()));
+
+		// Count the colors, in a separate table for each band, then add up the tables.
+
+		final List<ColorTable> tables = new ArrayList<ColorTable>();
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				for (int y = 0; y < height; y += bandHeight) {
+					final int top = y;
+					final ColorTable table = new ColorTable();
+					tables.add(table);
+					tasks.add(new RecursiveAction() {
+						protected void compute() {
+							table.count(source, top, Math.min(height, top + bandHeight));
+						}
+					});
+				}
+				invokeAll(tasks);
+			}
+		});
+		ColorTable colors = tables.get(0);
+		for (int i = 1; i < tables.size(); i++)
+			colors.add(tables.get(i));
+
+		// Choose the palette, then map the pixels.
+
+		final Palette palette = new Palette(colors, maxColors);
+		final BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, palette.colorModel);
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				for (int y = 0; y < height; y += bandHeight) {
+					final int top = y;
+					tasks.add(new RecursiveAction() {
+						protected void compute() {
+							palette.map(source, result.getRaster(), top, Math.min(height, top + bandHeight), dither);
+						}
+					});
+				}
+				invokeAll(tasks);
+			}
+		});
+		return result;
+	}
+
+	private static BufferedImage toBufferedImage(RenderedImage image) {
+		if (image instanceof BufferedImage)
+			return (BufferedImage)image;
+		ColorModel cm = image.getColorModel();
+		WritableRaster raster = cm.createCompatibleWritableRaster(image.getWidth(), image.getHeight());
+		image.copyData(raster);
+		return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Get the RGB colors of one row of an image.  For the usual image types, the pixels
+	 * are copied directly from the raster, which is much faster than getRGB.
+	 */
+	private static void getRow(BufferedImage image, int y, int[] row) {
+		int type = image.getType();
+		if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+			image.getRaster().getDataElements(0, y, row.length, 1, row);
+		else
+			image.getRGB(0, y, row.length, 1, row, 0, row.length);
+	}
+
+	/**
+	 * A hash table, with open addressing, from RGB colors to the number of pixels of
+	 * that color.  After the palette has been chosen, the counts are replaced by the
+	 * palette index for each color.
+	 */
+	private static class ColorTable {
+
+		int[] keys = new int[1024];     // Colors, with 0x1000000 added so that 0 means an empty slot.
+		int[] values = new int[1024];
+		int size;
+
+		private int slot(int key) {
+			int mask = keys.length - 1;
+			int hash = key * 0x9E3779B1;
+			int i = (hash ^ (hash >>> 16)) & mask;
+			while (keys[i] != 0 && keys[i] != key)
+				i = (i + 1) & mask;
+			return i;
+		}
+
+		void add(int rgb, int count) {
+			int key = (rgb & 0xFFFFFF) | 0x1000000;
+			int i = slot(key);
+			if (keys[i] == 0) {
+				if (2*(size + 1) > keys.length) {
+					grow();
+					i = slot(key);
+				}
+				keys[i] = key;
+				size++;
+			}
+			values[i] += count;
+		}
+
+		/**
+		 * Returns the value for a color, or -1 if the color is not in the table.
+		 */
+		int get(int rgb) {
+			int i = slot((rgb & 0xFFFFFF) | 0x1000000);
+			return keys[i] == 0 ? -1 : values[i];
+		}
+
+		private void grow() {
+			int[] oldKeys = keys, oldValues = values;
+			keys = new int[2*oldKeys.length];
+			values = new int[2*oldKeys.length];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) {
+					int j = slot(oldKeys[i]);
+					keys[j] = oldKeys[i];
+					values[j] = oldValues[i];
+				}
+			}
+		}
+
+		void count(BufferedImage image, int top, int bottom) {
+			int[] row = new int[image.getWidth()];
+			for (int y = top; y < bottom; y++) {
+				getRow(image, y, row);
+				int run = 1;  // Runs of the same color, which are common, are added all at once.
+				for (int x = 1; x <= row.length; x++) {
+					if (x < row.length && row[x] == row[x-1])
+						run++;
+					else {
+						add(row[x-1], run);
+						run = 1;
+					}
+				}
+			}
+		}
+
+		void add(ColorTable other) {
+			for (int i = 0; i < other.keys.length; i++)
+				if (other.keys[i] != 0)
+					add(other.keys[i], other.values[i]);
+		}
+	}
+
+	/**
+	 * A box of colors, elements start to end - 1 of the arrays of colors and counts
+	 * that a Palette is built from.
+	 */
+	private static class Box {
+
+		final int start, end;
+		final int[] min = { 255, 255, 255 };   // The smallest and largest value of each component.
+		final int[] max = { 0, 0, 0 };
+		long count;
+		double error;      // Sum of squared distances of the pixels from the average color.
+		int splitAxis;     // The component with the largest variance, or -1 if the box can't be split.
+		int r, g, b;       // The average color.
+
+		Box(int[] colors, int[] counts, int start, int end) {
+			this.start = start;
+			this.end = end;
+			long[] sum = new long[3];
+			double[] sumSq = new double[3];
+			for (int i = start; i < end; i++) {
+				int n = counts[i];
+				count += n;
+				for (int c = 0; c < 3; c++) {
+					int v = component(colors[i], c);
+					sum[c] += (long)n*v;
+					sumSq[c] += (double)n*v*v;
+					min[c] = Math.min(min[c], v);
+					max[c] = Math.max(max[c], v);
+				}
+			}
+			double largest = 0;
+			splitAxis = -1;
+			for (int c = 0; c < 3; c++) {
+				double variance = sumSq[c] - (double)sum[c]*sum[c]/count;
+				error += variance;
+				if (max[c] > min[c] && variance >= largest) {
+					largest = variance;
+					splitAxis = c;
+				}
+			}
+			r = (int)Math.round(sum[0] / (double)count);
+			g = (int)Math.round(sum[1] / (double)count);
+			b = (int)Math.round(sum[2] / (double)count);
+		}
+
+		/**
+		 * Split the box in two along splitAxis, so that each half has about half of the
+		 * pixels.  The colors in the box are rearranged so that the colors of each half
+		 * are together.
+		 */
+		Box[] split(int[] colors, int[] counts) {
+			int axis = splitAxis;
+			long[] slices = new long[256];
+			for (int i = start; i < end; i++)
+				slices[component(colors[i], axis)] += counts[i];
+			int cut = min[axis];  // Values up to and including cut go in the first half.
+			long below = slices[cut];
+			while (cut < max[axis] - 1 && below + slices[cut+1] <= count / 2) {
+				cut++;
+				below += slices[cut];
+			}
+			int i = start, j = end - 1;
+			while (i <= j) {
+				if (component(colors[i], axis) <= cut)
+					i++;
+				else {
+					int color = colors[i], n = counts[i];
+					colors[i] = colors[j];
+					counts[i] = counts[j];
+					colors[j] = color;
+					counts[j] = n;
+					j--;
+				}
+			}
+			return new Box[] { new Box(colors, counts, start, i), new Box(colors, counts, i, end) };
+		}
+
+		static int component(int rgb, int c) {
+			return (rgb >> (16 - 8*c)) & 0xFF;
+		}
+	}
+
+	/**
+	 * The palette, and the palette index for each color in the picture.
+	 */
+	private static class Palette {
+
+		final IndexColorModel colorModel;
+		final int[] reds, greens, blues;
+		final int size;
+		final ColorTable indices;    // Maps each color in the picture to a palette index.
+		final int[] nearest = new int[1 << 15];  // Nearest palette index for 15-bit colors; -1 if not found yet.
+
+		Palette(ColorTable table, int maxColors) {
+			int[] colors = new int[table.size];
+			int[] counts = new int[table.size];
+			int n = 0;
+			for (int i = 0; i < table.keys.length; i++) {
+				if (table.keys[i] != 0) {
+					colors[n] = table.keys[i] & 0xFFFFFF;
+					counts[n] = table.values[i];
+					n++;
+				}
+			}
+			List<Box> boxes = new ArrayList<Box>();
+			boxes.add(new Box(colors, counts, 0, n));
+			while (boxes.size() < maxColors) {
+				int worst = -1;
+				for (int i = 0; i < boxes.size(); i++) {
+					Box box = boxes.get(i);
+					if (box.splitAxis >= 0 && (worst == -1 || box.error > boxes.get(worst).error))
+						worst = i;
+				}
+				if (worst == -1)
+					break;  // Every box holds a single color.
+				Box[] halves = boxes.get(worst).split(colors, counts);
+				boxes.set(worst, halves[0]);
+				boxes.add(halves[1]);
+			}
+			size = boxes.size();
+			reds = new int[size];
+			greens = new int[size];
+			blues = new int[size];
+			byte[] r = new byte[size], g = new byte[size], b = new byte[size];
+			indices = table;
+			Arrays.fill(indices.values, 0);
+			for (int p = 0; p < size; p++) {
+				Box box = boxes.get(p);
+				reds[p] = box.r;
+				greens[p] = box.g;
+				blues[p] = box.b;
+				r[p] = (byte)box.r;
+				g[p] = (byte)box.g;
+				b[p] = (byte)box.b;
+				for (int i = box.start; i < box.end; i++)
+					indices.add(colors[i], p);
+			}
+			Arrays.fill(nearest, -1);
+			colorModel = new IndexColorModel(8, size, r, g, b);
+		}
+
+		/**
+		 * Returns the palette index for a color that is not in the picture, which happens
+		 * only when dithering:  the palette color that is nearest to the color, rounded to
+		 * 5 bits per component.  Each band has its own copy of the table of nearest colors,
+		 * so this is not synchronized.
+		 */
+		int nearestIndex(int[] nearest, int r, int g, int b) {
+			int key = (r >> 3) << 10 | (g >> 3) << 5 | (b >> 3);
+			int p = nearest[key];
+			if (p < 0) {
+				int cr = (r & ~7) + 4, cg = (g & ~7) + 4, cb = (b & ~7) + 4;
+				int best = Integer.MAX_VALUE;
+				for (int i = 0; i < size; i++) {
+					int dr = reds[i] - cr, dg = greens[i] - cg, db = blues[i] - cb;
+					int d = dr*dr + dg*dg + db*db;
+					if (d < best) {
+						best = d;
+						p = i;
+					}
+				}
+				nearest[key] = p;
+			}
+			return p;
+		}
+
+		/**
+		 * Map rows top to bottom - 1 of source to palette indices in target.
+		 */
+		void map(BufferedImage source, WritableRaster target, int top, int bottom, boolean dither) {
+			int width = source.getWidth();
+			int[] nearest = dither ? this.nearest.clone() : null;
+			int[] row = new int[width];
+			byte[] pixels = new byte[width];
+			// Errors for the current and next rows, per component, with one extra pixel at each
+			// end.  They are stored times 16, the denominator of the Floyd-Steinberg weights.
+			int[][] errors = dither ? new int[3][width + 2] : null;
+			int[][] nextErrors = dither ? new int[3][width + 2] : null;
+			int[] error = new int[3];
+			for (int y = top; y < bottom; y++) {
+				getRow(source, y, row);
+				for (int x = 0; x < width; x++) {
+					if (!dither) {
+						pixels[x] = (byte)indices.get(row[x]);
+						continue;
+					}
+					int r = clamp(((row[x] >> 16) & 0xFF) + errors[0][x+1] / 16);
+					int g = clamp(((row[x] >> 8) & 0xFF) + errors[1][x+1] / 16);
+					int b = clamp((row[x] & 0xFF) + errors[2][x+1] / 16);
+					int p = indices.get((r << 16) | (g << 8) | b);
+					if (p < 0)
+						p = nearestIndex(nearest, r, g, b);
+					pixels[x] = (byte)p;
+					error[0] = r - reds[p];
+					error[1] = g - greens[p];
+					error[2] = b - blues[p];
+					for (int c = 0; c < 3; c++) {
+						int e = error[c];
+						errors[c][x+2] += 7*e;
+						nextErrors[c][x] += 3*e;
+						nextErrors[c][x+1] += 5*e;
+						nextErrors[c][x+2] += e;
+					}
+				}
+				target.setDataElements(0, y, width, 1, pixels);
+				if (dither) {
+					int[][] temp = errors;
+					errors = nextErrors;
+					nextErrors = temp;
+					for (int[] e : nextErrors)
+						Arrays.fill(e, 0);
+				}
+			}
+		}
+
+		private static int clamp(int v) {
+			return v < 0 ? 0 : v > 255 ? 255 : v;
+		}
+	}
+
+}
+
+
+// src/guidemo/DrawPanel.java
+
+package guidemo;
+
+import java.applet.AudioClip;
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A panel that can display a background image, a gradient over the image that changes
+ * from almost transparent at the top to almost opaque at the bottom, a multiline text,
+ * and a list of small images on top of everything else.  The small images are placed by
+ * clicking with the mouse.  The image that is placed is determined by the currentDrawImage
+ * property; if this property is null, then clicking an existing image with the mouse will
+ * remove that image.  If the brushSpacing property is positive, dragging the mouse also
+ * places copies of the image along the path of the mouse, that many pixels apart.  
+ * Mouse motion that arrives faster than it can be drawn is collected and stamped in
+ * one batch, and only the area covered by the new stamps is repainted.
+ * <p>The stamps are kept in named layers (see StampLayer), which are drawn in order and
+ * can be hidden.  Stamps are added to and erased from the current layer.  A layer with
+ * more than bakeThreshold stamps is "baked":  it is drawn from a raster of the size of
+ * the panel that holds all of its stamps, so that painting it takes the same time no
+ * matter how many stamps it has.  The raster is updated when stamps are added, and when
+ * stamps are erased the region that they covered is drawn again from the stamps.
+ * <p>The panel keeps an undo history.  Stamping and erasing an image, and clear(), are
+ * recorded automatically; a brush stroke is recorded as one change when the mouse is
+ * released.  Other changes are recorded by calling saveUndoState() just
+ * before making them.  Each state in the history is a Scene; the stamps of each layer are
+ * kept in a StampList, which shares its structure with the list of the next state, so a
+ * state costs a few objects no matter how many images have been stamped.  The StampList
+ * stores the stamps in int arrays rather than as objects, so a picture can have millions.
+ */
+public class DrawPanel extends JPanel {
+	
+	private TextItem text = new TextItem(); // The TextItem displayed in this image.
+	                                        // It can be retrieved with getTextItem but can't be set.
+	
+	private Image backgroundImage = null;  // Seven properties that have "get" and "set" methods.
+	private String backgroundSource;       // Resource path or file name of backgroundImage, if known.
+	private MandelbrotRenderer mandelbrot; // If non-null, backgroundImage was rendered by this.
+	private Color borderColor = Color.DARK_GRAY;
+	private int borderThickness = 3;
+	private Color gradientOverlayColor = Color.WHITE;
+	private boolean horizontalOverlay = false;
+	private BufferedImage currentDrawImage;
+	private int brushSpacing;
+
+	private int gradientOverlayMode = GradientOverlay.LINEAR;  // Further properties of the gradient overlay.
+	private int gradientOverlayStartAlpha = 50;
+	private int gradientOverlayEndAlpha = 200;
+	private float[] gradientOverlayFractions;  // Only used in MULTI_STOP mode.
+	private Color[] gradientOverlayColors;
+	
+	private StampLayer[] layers = { new StampLayer("Layer 1") };  // Replaced when a layer changes, never modified,
+	                                                              //    so that getScene() can share it.
+	private final ArrayList<LayerCache> layerCaches = new ArrayList<LayerCache>();  // One for each layer.
+	private int currentLayer;  // The layer that stamps are added to and erased from.
+	private int bakeThreshold = 1000;
+
+	/**
+	 * The name of the property change event that is fired when the undo history changes,
+	 * including when a state is restored by undo() or redo().
+	 */
+	public static final String HISTORY_PROPERTY = "history";
+
+	private final ArrayDeque<Edit> undoHistory = new ArrayDeque<Edit>();  // Most recent state last.
+	private final ArrayDeque<Edit> redoHistory = new ArrayDeque<Edit>();
+	private int undoLimit = 1000;
+
+	/**
+	 * A state in the undo or redo history, with the changes to the stamps of one layer that
+	 * take the panel from the state that it is in now back to that state, so that its
+	 * LayerCache can be updated instead of rebuilt.  Stamps are named by their orders in
+	 * the StampList; a brush stroke adds stamps with consecutive orders.
+	 */
+	private static class Edit {
+		final Scene state;
+		final int layer;                  // The layer whose stamps change, if any.
+		final int unstamp, unstampCount;  // Stamps of the current list to remove:
+		                                  //    the ones with orders unstamp, unstamp+1, ....
+		final int restamp, restampCount;  // Stamps of the state's list to put back.
+		Edit(Scene state, int layer, int unstamp, int unstampCount, int restamp, int restampCount) {
+			this.state = state;
+			this.layer = layer;
+			this.unstamp = unstamp;
+			this.unstampCount = unstampCount;
+			this.restamp = restamp;
+			this.restampCount = restampCount;
+		}
+	}
+
+	/**
+	 * A brush stroke that is in progress.  Mouse positions are collected in points as
+	 * they arrive, and are turned into stamps by flushStroke(), which runs once for each
+	 * burst of mouse events.
+	 */
+	private static class Stroke {
+		final Scene before;         // The state before the stroke, for the undo history.
+		final int layer;
+		final BufferedImage image;
+		final int spacing;
+		final int firstOrder;       // Order of the first stamp of the stroke.
+		double lastX, lastY;        // Position of the last stamp of the stroke.
+		int[] points = new int[32]; // Mouse positions that have not been stamped yet, as x,y pairs.
+		int pointCount;
+		boolean flushScheduled;
+		Stroke(Scene before, int layer, BufferedImage image, int spacing, int firstOrder, int x, int y) {
+			this.before = before;
+			this.layer = layer;
+			this.image = image;
+			this.spacing = spacing;
+			this.firstOrder = firstOrder;
+			lastX = x;
+			lastY = y;
+		}
+	}
+
+	private Stroke stroke;  // Non-null while a brush stroke is in progress.
+
+	/**
+	 * The default spacing between stamps for the brush, used by the Stampers menu.
+	 */
+	public static final int DEFAULT_BRUSH_SPACING = 24;
+
+	/**
+	 * What the panel keeps for drawing one layer quickly:  a StampIndex of the layer's
+	 * stamps, used to find the stamps at a point or in a region, and, when the layer has
+	 * more than bakeThreshold stamps, a raster of the size of the panel with all of the
+	 * stamps drawn into it.  The raster is made by paintComponent when it is needed.
+	 */
+	private class LayerCache {
+		StampList stamps = StampList.EMPTY;  // The stamps that the index and raster show.
+		final StampIndex index = new StampIndex();
+		BufferedImage raster;  // Null if the layer is not baked.
+
+		LayerCache(StampList stamps) {
+			this.stamps = stamps;
+			index.addAll(stamps);
+		}
+
+		/**
+		 * Change the stamps to list, which is the current list without the stamps with
+		 * orders from unstamp to unstamp+unstampCount-1 and with the stamps with orders
+		 * from restamp to restamp+restampCount-1.  New stamps that are on top of all the
+		 * others are drawn into the raster; otherwise the region that changed is drawn
+		 * again.  Returns the region that changed, or null if nothing changed.
+		 */
+		Rectangle update(StampList list, int unstamp, int unstampCount, int restamp, int restampCount) {
+			Rectangle changed = null;
+			for (int order = unstamp; order < unstamp + unstampCount; order++) {
+				ImageItem item = stamps.get(stamps.indexOfOrder(order));
+				index.remove(item, order);
+				changed = union(changed, item.getBounds());
+			}
+			boolean onTop = unstampCount == 0 && restampCount > 0
+					&& list.getOrder(list.size() - 1) == restamp + restampCount - 1;
+			Graphics2D g = raster != null && onTop ? raster.createGraphics() : null;
+			for (int order = restamp; order < restamp + restampCount; order++) {
+				ImageItem item = list.get(list.indexOfOrder(order));
+				index.add(item, order);
+				changed = union(changed, item.getBounds());
+				if (g != null)
+					item.draw(g);
+			}
+			stamps = list;
+			if (g != null)
+				g.dispose();
+			else if (raster != null && changed != null)
+				redraw(changed);
+			return changed;
+		}
+
+		/**
+		 * Clear a region of the raster and draw the stamps that intersect it.
+		 */
+		private void redraw(Rectangle r) {
+			Graphics2D g = raster.createGraphics();
+			g.setClip(r);
+			g.setComposite(AlphaComposite.Clear);
+			g.fill(r);
+			g.setComposite(AlphaComposite.SrcOver);
+			for (int order : index.getOrdersIntersecting(r))
+				stamps.get(stamps.indexOfOrder(order)).draw(g);
+			g.dispose();
+		}
+
+		/**
+		 * Returns the raster, or null if the layer has too few stamps to be baked.  The
+		 * raster is made, with all of the stamps, when the layer first has more than
+		 * bakeThreshold stamps and whenever the size of the panel changes.  It is dropped
+		 * when the layer no longer has more than bakeThreshold stamps.
+		 */
+		BufferedImage getRaster() {
+			int width = getWidth();
+			int height = getHeight();
+			if (stamps.size() <= bakeThreshold || width <= 0 || height <= 0) {
+				raster = null;
+				return null;
+			}
+			if (raster == null || raster.getWidth() != width || raster.getHeight() != height) {
+				Profiling.PaintPhaseEvent phase = Profiling.PaintPhaseEvent.start();
+				GraphicsConfiguration gc = getGraphicsConfiguration();
+				if (gc != null)
+					raster = gc.createCompatibleImage(width,height,Transparency.TRANSLUCENT);
+				else
+					raster = new BufferedImage(width,height,BufferedImage.TYPE_INT_ARGB_PRE);
+				Graphics2D g = raster.createGraphics();
+				stamps.draw(g);
+				g.dispose();
+				phase.record("bake", width, height, stamps.size());
+			}
+			return raster;
+		}
+	}
+
+	private static Rectangle union(Rectangle a, Rectangle b) {
+		if (a == null)
+			return b;
+		a.add(b);
+		return a;
+	}
+
+	private BufferedImage scaledBackground;  // backgroundImage, scaled to the size of the panel.  It is
+	private Image scaledBackgroundSource;    //    reused by paintComponent as long as the image and the
+	private int scaledBackgroundWidth;       //    size of the panel match the ones recorded here.
+	private int scaledBackgroundHeight;
+	private int backgroundCacheHits, backgroundCacheMisses;  // For checking how often the cache is used.
+
+	private BufferedImage baseLayer;   // The background, gradient overlay, and text, which change much less
+	private boolean baseLayerValid;    //    often than the stamped images.  Set baseLayerValid to false
+	private TextItem baseLayerText;    //    when one of them changes.  The text is checked separately,
+	private int baseLayerTextVersion;  //    since it is modified directly by users of getTextItem().
+
+	private BufferedImage overlayRaster;      // The gradient overlay, drawn at the size of the panel,
+	private GradientOverlay overlayRasterKey; //    and the settings that were used to draw it.
+
+	public DrawPanel() {
+		layerCaches.add(new LayerCache(layers[0].getStamps()));
+		setPreferredSize(new Dimension(800,600));
+		setBackground(Color.DARK_GRAY);
+		setBorder(BorderFactory.createLineBorder(borderColor, borderThickness));
+		setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
+		addMouseListener( new MouseAdapter() {
+			AudioClip clink = Util.getSound("resources/sounds/clink.wav");
+			AudioClip lase = Util.getSound("resources/sounds/lase.wav");
+			public void mousePressed(MouseEvent evt) {
+				int x = evt.getX();
+				int y = evt.getY();
+				endStroke();
+				if (!layers[currentLayer].isVisible())
+					return;  // Stamps are not added to or erased from a hidden layer.
+				LayerCache cache = layerCaches.get(currentLayer);
+				if (currentDrawImage != null) {
+					if (clink != null)
+						clink.play();
+					Scene before = getScene();
+					StampList list = cache.stamps.plus(currentDrawImage, x, y);
+					int order = list.getOrder(list.size() - 1);
+					setLayer(currentLayer, layers[currentLayer].withStamps(list));
+					repaint(cache.update(list, -1, 0, order, 1));
+					if (brushSpacing > 0)
+						stroke = new Stroke(before, currentLayer, currentDrawImage, brushSpacing, order, x, y);  // Recorded in the history by endStroke().
+					else
+						pushUndo(new Edit(before, currentLayer, order, 1, -1, 0));
+				}
+				else {
+					int order = cache.index.findTopmost(x,y);
+					if (order >= 0) {
+						if (lase != null)
+							lase.play();
+						pushUndo(new Edit(getScene(), currentLayer, -1, 0, order, 1));
+						StampList list = cache.stamps.minus(cache.stamps.indexOfOrder(order));
+						setLayer(currentLayer, layers[currentLayer].withStamps(list));
+						repaint(cache.update(list, order, 1, -1, 0));
+					}
+				}
+			}
+			public void mouseReleased(MouseEvent evt) {
+				endStroke();
+			}
+		});
+		addMouseMotionListener( new MouseMotionAdapter() {
+			public void mouseDragged(MouseEvent evt) {
+				if (stroke == null)
+					return;
+				if (stroke.pointCount == stroke.points.length)
+					stroke.points = Arrays.copyOf(stroke.points, 2 * stroke.pointCount);
+				stroke.points[stroke.pointCount++] = evt.getX();
+				stroke.points[stroke.pointCount++] = evt.getY();
+				if (!stroke.flushScheduled) {
+					stroke.flushScheduled = true;  // Events that are already in the queue will be handled first,
+					SwingUtilities.invokeLater(new Runnable() {  // so they are all stamped by the same flush.
+						public void run() {
+							flushStroke();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stamp the mouse positions that have been collected for the current brush stroke, if
+	 * any, and repaint the union of the bounds of the new stamps.  Stamps are placed along
+	 * the straight lines between the positions, stroke.spacing pixels apart.
+	 */
+	private void flushStroke() {
+		if (stroke == null)
+			return;
+		Stroke s = stroke;
+		s.flushScheduled = false;
+		StampList list = layers[s.layer].getStamps();
+		int added = 0;
+		for (int p = 0; p < s.pointCount; p += 2) {
+			double dx = s.points[p] - s.lastX;
+			double dy = s.points[p + 1] - s.lastY;
+			double distance = Math.sqrt(dx*dx + dy*dy);
+			int steps = (int)(distance / s.spacing);
+			for (int i = 1; i <= steps; i++) {
+				int x = (int)Math.round(s.lastX + dx * i * s.spacing / distance);
+				int y = (int)Math.round(s.lastY + dy * i * s.spacing / distance);
+				list = list.plus(s.image, x, y);
+				added++;
+			}
+			if (steps > 0) {
+				s.lastX += dx * steps * s.spacing / distance;
+				s.lastY += dy * steps * s.spacing / distance;
+			}
+		}
+		s.pointCount = 0;
+		if (added > 0) {
+			int firstAdded = list.getOrder(list.size() - added);
+			setLayer(s.layer, layers[s.layer].withStamps(list));
+			repaint(layerCaches.get(s.layer).update(list, -1, 0, firstAdded, added));
+		}
+	}
+
+	/**
+	 * Finish the brush stroke that is in progress, if any, and record it in the undo
+	 * history as a single change.
+	 */
+	private void endStroke() {
+		if (stroke == null)
+			return;
+		flushStroke();
+		Stroke s = stroke;
+		stroke = null;
+		StampList list = layers[s.layer].getStamps();
+		int lastOrder = list.getOrder(list.size() - 1);
+		pushUndo(new Edit(s.before, s.layer, s.firstOrder, lastOrder - s.firstOrder + 1, -1, 0));
+	}
+	
+	protected void paintComponent(Graphics g1) {
+		Profiling.PaintEvent paint = Profiling.PaintEvent.start();
+		Graphics2D g2 = (Graphics2D)g1;
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		Profiling.PaintPhaseEvent phase = Profiling.PaintPhaseEvent.start();
+		BufferedImage base = getBaseLayer();
+		if (base != null)
+			g2.drawImage(base,0,0,null);
+		else {
+			super.paintComponent(g1);
+			paintBaseLayer(g2);
+		}
+		phase.record("base layer", getWidth(), getHeight(), 0);
+		Rectangle clip = g2.getClipBounds();
+		boolean wholePanel = clip == null || 2L*clip.width*clip.height >= (long)getWidth()*getHeight();
+		for (int i = 0; i < layers.length; i++) {
+			if (!layers[i].isVisible())
+				continue;
+			phase = Profiling.PaintPhaseEvent.start();
+			LayerCache cache = layerCaches.get(i);
+			BufferedImage raster = cache.getRaster();
+			if (raster != null) {
+				g2.drawImage(raster,0,0,null);
+				phase.record("baked layer", getWidth(), getHeight(), cache.stamps.size());
+			}
+			else if (wholePanel) {
+				cache.stamps.draw(g2);
+				phase.record("stamps", getWidth(), getHeight(), cache.stamps.size());
+			}
+			else { // Only a small part of the panel is being repainted, probably after a stamp was added or erased.
+				int[] orders = cache.index.getOrdersIntersecting(clip);
+				for (int order : orders)
+					cache.stamps.get(cache.stamps.indexOfOrder(order)).draw(g2);
+				phase.record("stamps", getWidth(), getHeight(), orders.length);
+			}
+		}
+		paint.record(getWidth(), getHeight(), clip, layers);
+	}
+
+	/**
+	 * Draw the parts of the picture that lie under the stamped images:  the background
+	 * image, the gradient overlay, and the text.
+	 */
+	private void paintBaseLayer(Graphics2D g2) {
+		if (backgroundImage != null) {
+			Profiling.PaintPhaseEvent phase = Profiling.PaintPhaseEvent.start();
+			BufferedImage scaled = getScaledBackground();
+			if (scaled != null)
+				g2.drawImage(scaled,0,0,null);
+			else
+				g2.drawImage(backgroundImage,0,0,getWidth(),getHeight(),this);
+			phase.record("background", getWidth(), getHeight(), 0);
+		}
+		GradientOverlay overlay = getGradientOverlay();
+		if (overlay != null) {
+			Profiling.PaintPhaseEvent phase = Profiling.PaintPhaseEvent.start();
+			g2.drawImage(getOverlayRaster(overlay),0,0,null);
+			phase.record("gradient", getWidth(), getHeight(), 0);
+		}
+		Profiling.PaintPhaseEvent phase = Profiling.PaintPhaseEvent.start();
+		text.draw(g2, getWidth()/2, getHeight()/2);
+		phase.record("text", getWidth(), getHeight(), 0);
+	}
+
+	/**
+	 * Return the gradient overlay drawn at the size of the panel.  The raster is kept
+	 * and reused until the size of the panel or one of the overlay settings changes.
+	 */
+	private BufferedImage getOverlayRaster(GradientOverlay overlay) {
+		int width = getWidth();
+		int height = getHeight();
+		if (overlayRaster == null || overlayRaster.getWidth() != width || overlayRaster.getHeight() != height
+				|| !overlay.equals(overlayRasterKey)) {
+			overlayRaster = overlay.createRaster(width,height);
+			overlayRasterKey = overlay;
+		}
+		return overlayRaster;
+	}
+
+	/**
+	 * Returns a GradientOverlay that describes the current overlay settings of this
+	 * panel, or null if there is no overlay (that is, if the gradient overlay color is null).
+	 */
+	public GradientOverlay getGradientOverlay() {
+		return GradientOverlay.fromSettings(gradientOverlayColor, gradientOverlayMode, gradientOverlayStartAlpha,
+				gradientOverlayEndAlpha, gradientOverlayFractions, gradientOverlayColors, horizontalOverlay);
+	}
+
+	/**
+	 * Return an image of the panel's background color, background image, gradient overlay,
+	 * and text, at the current size of the panel.  The image is rebuilt only when one of
+	 * those has changed, so that adding or removing a stamp just has to copy the image
+	 * into the region that needs to be repainted.  Returns null if the base layer can't
+	 * be made yet because the background image is still loading.
+	 */
+	private BufferedImage getBaseLayer() {
+		int width = getWidth();
+		int height = getHeight();
+		if (baseLayerValid && baseLayer.getWidth() == width && baseLayer.getHeight() == height
+				&& baseLayerText == text && baseLayerTextVersion == text.getVersion())
+			return baseLayer;
+		baseLayer = null;
+		baseLayerValid = false;
+		if (width <= 0 || height <= 0 || (backgroundImage != null && getScaledBackground() == null))
+			return null;
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		BufferedImage base;
+		if (gc != null)
+			base = gc.createCompatibleImage(width,height);
+		else
+			base = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2 = base.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2.setClip(0,0,width,height);  // Lets TextItem skip lines that are outside the panel.
+		g2.setColor(getBackground());
+		g2.fillRect(0,0,width,height);
+		paintBaseLayer(g2);
+		g2.dispose();
+		baseLayer = base;
+		baseLayerValid = true;
+		baseLayerText = text;
+		baseLayerTextVersion = text.getVersion();
+		return base;
+	}
+
+	/**
+	 * Return the background image scaled to the current size of the panel.  The scaled
+	 * copy is made once and then reused until the image or the size of the panel changes,
+	 * so that repaints (for example after an image is stamped) don't have to resample a
+	 * large photo.  Returns null if the image has not been completely loaded; in that case
+	 * the caller should draw the image directly, using this panel as the ImageObserver.
+	 */
+	private BufferedImage getScaledBackground() {
+		int width = getWidth();
+		int height = getHeight();
+		if (scaledBackground != null && scaledBackgroundSource == backgroundImage
+				&& scaledBackgroundWidth == width && scaledBackgroundHeight == height) {
+			backgroundCacheHits++;
+			return scaledBackground;
+		}
+		scaledBackground = null;
+		if (width <= 0 || height <= 0 || (checkImage(backgroundImage,this) & ImageObserver.ALLBITS) == 0)
+			return null;
+		backgroundCacheMisses++;
+		Profiling.PaintPhaseEvent phase = Profiling.PaintPhaseEvent.start();
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		BufferedImage scaled;
+		if (gc != null)
+			scaled = gc.createCompatibleImage(width,height,Transparency.TRANSLUCENT);
+		else
+			scaled = new BufferedImage(width,height,BufferedImage.TYPE_INT_ARGB_PRE);
+		Graphics g = scaled.createGraphics();
+		g.drawImage(backgroundImage,0,0,width,height,null);
+		g.dispose();
+		phase.record("scale background", width, height, 0);
+		scaledBackground = scaled;
+		scaledBackgroundSource = backgroundImage;
+		scaledBackgroundWidth = width;
+		scaledBackgroundHeight = height;
+		return scaled;
+	}
+
+	/**
+	 * Returns the number of repaints that reused the scaled copy of the background image.
+	 */
+	public int getBackgroundCacheHits() {
+		return backgroundCacheHits;
+	}
+
+	/**
+	 * Returns the number of times that the background image had to be scaled to the size
+	 * of the panel, because the image or the panel size had changed.
+	 */
+	public int getBackgroundCacheMisses() {
+		return backgroundCacheMisses;
+	}
+
+	public Image getBackgroundImage() {
+		return backgroundImage;
+	}
+
+	public void setBackgroundImage(Image backgroundImage) {
+		setBackgroundImage(backgroundImage, null);
+	}
+
+	/**
+	 * Set the background image, and record where it came from, so that a saved scene
+	 * can refer to it instead of containing a copy (see SceneFile).
+	 * @param source the path of the resource or the name of the file that the image was
+	 *    read from, or null if it is not known.
+	 */
+	public void setBackgroundImage(Image backgroundImage, String source) {
+		this.backgroundImage = backgroundImage;
+		backgroundSource = source;
+		mandelbrot = null;
+		scaledBackground = null;
+		baseLayerValid = false;
+		repaint();
+	}
+
+	public String getBackgroundSource() {
+		return backgroundSource;
+	}
+
+	/**
+	 * Returns the renderer that drew the current background image, or null if the
+	 * background is an ordinary image.
+	 */
+	public MandelbrotRenderer getMandelbrot() {
+		return mandelbrot;
+	}
+
+	/**
+	 * Use a Mandelbrot set as the background.  The image should have been rendered by
+	 * the renderer, ideally at the size of the panel.  The renderer is recorded in the
+	 * Scene returned by getScene(), so that exports can render the background at their
+	 * own size.  (Setting a different background with setBackgroundImage removes it.)
+	 */
+	public void setMandelbrotBackground(MandelbrotRenderer mandelbrot, BufferedImage image) {
+		this.backgroundImage = image;
+		this.mandelbrot = mandelbrot;
+		backgroundSource = null;
+		scaledBackground = null;
+		baseLayerValid = false;
+		repaint();
+	}
+
+	/**
+	 * Overridden to rebuild the base layer, which includes the background color.
+	 */
+	public void setBackground(Color bg) {
+		super.setBackground(bg);
+		baseLayerValid = false;
+	}
+
+	public Color getBorderColor() {
+		return borderColor;
+	}
+
+	public void setBorderColor(Color borderColor) {
+		this.borderColor = borderColor;
+		setBorder(BorderFactory.createLineBorder(borderColor, borderThickness));
+		repaint();
+	}
+
+	public int getBorderThickness() {
+		return borderThickness;
+	}
+
+	public void setBorderThickness(int borderThickness) {
+		this.borderThickness = borderThickness;
+		setBorder(BorderFactory.createLineBorder(borderColor, borderThickness));
+		repaint();
+	}
+
+	public Color getGradientOverlayColor() {
+		return gradientOverlayColor;
+	}
+
+	public void setGradientOverlayColor(Color gradientOverlayColor) {
+		this.gradientOverlayColor = gradientOverlayColor;
+		baseLayerValid = false;
+		repaint();
+	}
+
+	public int getGradientOverlayMode() {
+		return gradientOverlayMode;
+	}
+
+	/**
+	 * Set the shape of the gradient overlay.
+	 * @param mode one of the constants GradientOverlay.LINEAR, GradientOverlay.RADIAL, or
+	 * GradientOverlay.MULTI_STOP.  In LINEAR and RADIAL mode, the overlay uses the gradient
+	 * overlay color, with alpha going from the start alpha to the end alpha.  In MULTI_STOP
+	 * mode, the overlay is linear and uses the colors set by setGradientOverlayStops; if no
+	 * stops have been set, it looks the same as in LINEAR mode.
+	 */
+	public void setGradientOverlayMode(int mode) {
+		if (mode != GradientOverlay.LINEAR && mode != GradientOverlay.RADIAL && mode != GradientOverlay.MULTI_STOP)
+			throw new IllegalArgumentException("Mode can only be LINEAR, RADIAL, or MULTI_STOP");
+		this.gradientOverlayMode = mode;
+		baseLayerValid = false;
+		repaint();
+	}
+
+	public int getGradientOverlayStartAlpha() {
+		return gradientOverlayStartAlpha;
+	}
+
+	public int getGradientOverlayEndAlpha() {
+		return gradientOverlayEndAlpha;
+	}
+
+	/**
+	 * Set the range of alpha values for the gradient overlay in LINEAR and RADIAL mode.
+	 * The defaults are 50 at the top (or left, or center) and 200 at the bottom (or right,
+	 * or corners).
+	 */
+	public void setGradientOverlayAlpha(int startAlpha, int endAlpha) {
+		if (startAlpha < 0 || startAlpha > 255 || endAlpha < 0 || endAlpha > 255)
+			throw new IllegalArgumentException("Alpha values must be in the range 0 to 255.");
+		this.gradientOverlayStartAlpha = startAlpha;
+		this.gradientOverlayEndAlpha = endAlpha;
+		baseLayerValid = false;
+		repaint();
+	}
+
+	/**
+	 * Set the colors for the gradient overlay in MULTI_STOP mode.
+	 * @param fractions positions of the colors along the gradient, from 0 to 1, in
+	 *   increasing order.  There must be at least two of them.
+	 * @param colors the colors at those positions, including their alpha components.
+	 * @see GradientOverlay#GradientOverlay(int, float[], Color[], boolean)
+	 */
+	public void setGradientOverlayStops(float[] fractions, Color[] colors) {
+		new GradientOverlay(GradientOverlay.MULTI_STOP, fractions, colors, false); // Checks the arguments.
+		this.gradientOverlayFractions = fractions.clone();
+		this.gradientOverlayColors = colors.clone();
+		baseLayerValid = false;
+		repaint();
+	}
+
+	public boolean isHorizontalOverlay() {
+		return horizontalOverlay;
+	}
+
+	public void setHorizontalOverlay(boolean horizontalOverlay) {
+		this.horizontalOverlay = horizontalOverlay;
+		baseLayerValid = false;
+		repaint();
+	}
+
+	public BufferedImage getCurrentDrawImage() {
+		return currentDrawImage;
+	}
+
+	public void setCurrentDrawImage(BufferedImage currentDrawImage) {
+		this.currentDrawImage = currentDrawImage;
+	}
+
+	public int getBrushSpacing() {
+		return brushSpacing;
+	}
+
+	/**
+	 * Set the distance, in pixels, between the stamps that are placed while the mouse is
+	 * dragged.  If the value is zero, which is the default, dragging the mouse does not
+	 * place stamps.
+	 */
+	public void setBrushSpacing(int brushSpacing) {
+		if (brushSpacing < 0)
+			throw new IllegalArgumentException("The spacing can't be negative.");
+		this.brushSpacing = brushSpacing;
+	}
+
+	public TextItem getTextItem() {
+		return text;
+	}
+	
+	/**
+	 * Create and return a BufferedImage containing the same picture that is
+	 * shown in this panel.
+	 */
+	public BufferedImage copyImage() {
+		BufferedImage copy = new BufferedImage(getWidth(),getHeight(),BufferedImage.TYPE_INT_RGB);
+		Graphics g = copy.createGraphics();
+		paintComponent(g);
+		g.dispose();
+		return copy;
+	}
+	
+	/**
+	 * Return a Scene that records everything that is drawn by paintComponent:  the size of
+	 * the panel, a copy of the text, the background, the overlay settings, and the layers
+	 * of stamped images.  Later changes to this panel don't affect the scene.  This takes
+	 * constant time, for a given number of layers:  the layers and their lists of stamps
+	 * are immutable, so they are not copied, and the copy of the text shares its data
+	 * with the original.
+	 */
+	public Scene getScene() {
+		Scene scene = new Scene();
+		scene.setSize(getWidth(), getHeight());
+		scene.setTextItem(new TextItem(text));
+		scene.setBackgroundImage(backgroundImage);
+		scene.setBackgroundSource(backgroundSource);
+		scene.setMandelbrot(mandelbrot);
+		scene.setBackgroundColor(getBackground());
+		scene.setGradientOverlayColor(gradientOverlayColor);
+		scene.setHorizontalOverlay(horizontalOverlay);
+		scene.setGradientOverlayMode(gradientOverlayMode);
+		scene.setGradientOverlayAlpha(gradientOverlayStartAlpha, gradientOverlayEndAlpha);
+		scene.setGradientOverlayStops(gradientOverlayFractions, gradientOverlayColors);
+		scene.setLayers(Arrays.asList(layers));
+		return scene;
+	}
+
+	/**
+	 * Make this panel show a scene.  Everything in the scene except its size is copied into
+	 * the panel.  (The size of a panel is normally set by the layout of its container; a
+	 * panel that is not on the screen can be given the size of the scene by calling setSize.)
+	 */
+	public void setScene(Scene scene) {
+		endStroke();
+		copySettings(scene);
+		installLayers(scene.getLayers());
+		baseLayerValid = false;
+		repaint();
+	}
+
+	/**
+	 * Copy everything except the layers from a scene into this panel.
+	 */
+	private void copySettings(Scene scene) {
+		text = new TextItem(scene.getTextItem());
+		if (backgroundImage != scene.getBackgroundImage())
+			scaledBackground = null;
+		backgroundImage = scene.getBackgroundImage();
+		backgroundSource = scene.getBackgroundSource();
+		mandelbrot = scene.getMandelbrot();
+		setBackground(scene.getBackgroundColor());
+		gradientOverlayColor = scene.getGradientOverlayColor();
+		horizontalOverlay = scene.isHorizontalOverlay();
+		gradientOverlayMode = scene.getGradientOverlayMode();
+		gradientOverlayStartAlpha = scene.getGradientOverlayStartAlpha();
+		gradientOverlayEndAlpha = scene.getGradientOverlayEndAlpha();
+		gradientOverlayFractions = scene.getGradientOverlayFractions();
+		gradientOverlayColors = scene.getGradientOverlayColors();
+	}
+
+	/**
+	 * Make this panel show a list of layers.  A LayerCache is kept for each layer whose
+	 * StampList is the same as one that the panel already shows; for the other layers, a
+	 * new one is made.  The current layer stays the same, if it still exists.
+	 */
+	private void installLayers(List<StampLayer> list) {
+		ArrayList<LayerCache> unused = new ArrayList<LayerCache>(layerCaches);
+		layerCaches.clear();
+		for (StampLayer layer : list) {
+			LayerCache cache = null;
+			for (LayerCache c : unused) {
+				if (c.stamps == layer.getStamps()) {
+					cache = c;
+					break;
+				}
+			}
+			if (cache != null)
+				unused.remove(cache);
+			else
+				cache = new LayerCache(layer.getStamps());
+			layerCaches.add(cache);
+		}
+		layers = list.toArray(new StampLayer[list.size()]);
+		currentLayer = Math.min(currentLayer, layers.length - 1);
+	}
+
+	/**
+	 * Replace one of the layers.  The array is copied, since getScene() shares it.
+	 */
+	private void setLayer(int index, StampLayer layer) {
+		StampLayer[] copy = layers.clone();
+		copy[index] = layer;
+		layers = copy;
+	}
+
+	public int getLayerCount() {
+		return layers.length;
+	}
+
+	/**
+	 * Returns one of the layers.  Layer 0 is at the bottom.
+	 */
+	public StampLayer getLayer(int index) {
+		return layers[index];
+	}
+
+	public int getCurrentLayer() {
+		return currentLayer;
+	}
+
+	/**
+	 * Set the layer that stamps are added to and erased from.  This is not recorded in
+	 * the undo history.
+	 */
+	public void setCurrentLayer(int index) {
+		if (index < 0 || index >= layers.length)
+			throw new IllegalArgumentException("No such layer: " + index);
+		endStroke();
+		currentLayer = index;
+	}
+
+	/**
+	 * Add a new, empty, visible layer on top of the other layers, and make it the
+	 * current layer.  This can be undone.
+	 */
+	public void addLayer(String name) {
+		saveUndoState();
+		StampLayer[] copy = Arrays.copyOf(layers, layers.length + 1);
+		copy[layers.length] = new StampLayer(name);
+		layers = copy;
+		layerCaches.add(new LayerCache(StampList.EMPTY));
+		currentLayer = layers.length - 1;
+	}
+
+	/**
+	 * Show or hide a layer.  This can be undone.
+	 */
+	public void setLayerVisible(int index, boolean visible) {
+		if (layers[index].isVisible() == visible)
+			return;
+		saveUndoState();
+		setLayer(index, layers[index].withVisible(visible));
+		repaint();
+	}
+
+	public int getBakeThreshold() {
+		return bakeThreshold;
+	}
+
+	/**
+	 * Set the number of stamps above which a layer is drawn from a raster that holds all
+	 * of its stamps, instead of drawing the stamps one by one.  The default is 1000.
+	 * Use Integer.MAX_VALUE to never bake layers.
+	 */
+	public void setBakeThreshold(int bakeThreshold) {
+		if (bakeThreshold < 0)
+			throw new IllegalArgumentException("The threshold can't be negative.");
+		this.bakeThreshold = bakeThreshold;
+		repaint();
+	}
+
+	/**
+	 * Record the current state in the undo history, so that the next change can be undone.
+	 * Call this just before a change that the user should be able to undo, such as setting
+	 * the background or changing the text.  This takes constant time.  It clears the redo
+	 * history.
+	 */
+	public void saveUndoState() {
+		endStroke();  // So that a stroke in progress is recorded first, and is part of the saved state.
+		pushUndo(new Edit(getScene(), -1, -1, 0, -1, 0));
+	}
+
+	public boolean canUndo() {
+		return !undoHistory.isEmpty();
+	}
+
+	public boolean canRedo() {
+		return !redoHistory.isEmpty();
+	}
+
+	/**
+	 * Return to the state that was saved most recently in the undo history.  The current
+	 * state is saved in the redo history.  Does nothing if there is nothing to undo.
+	 */
+	public void undo() {
+		endStroke();
+		if (undoHistory.isEmpty())
+			return;
+		redoHistory.addLast(restore(undoHistory.removeLast()));
+		firePropertyChange(HISTORY_PROPERTY, null, null);
+	}
+
+	/**
+	 * Go forward to the state that was left by the most recent undo().  Does nothing if
+	 * there is nothing to redo.
+	 */
+	public void redo() {
+		endStroke();
+		if (redoHistory.isEmpty())
+			return;
+		undoHistory.addLast(restore(redoHistory.removeLast()));
+		firePropertyChange(HISTORY_PROPERTY, null, null);
+	}
+
+	public int getUndoLimit() {
+		return undoLimit;
+	}
+
+	/**
+	 * Set the number of states that are kept in the undo history.  When there are more,
+	 * the oldest are dropped, which bounds the memory that the history can use.  The
+	 * default is 1000.
+	 */
+	public void setUndoLimit(int undoLimit) {
+		if (undoLimit < 0)
+			throw new IllegalArgumentException("The limit can't be negative.");
+		this.undoLimit = undoLimit;
+		while (undoHistory.size() > undoLimit)
+			undoHistory.removeFirst();
+	}
+
+	private void pushUndo(Edit edit) {
+		if (undoLimit == 0)
+			return;
+		undoHistory.addLast(edit);
+		if (undoHistory.size() > undoLimit)
+			undoHistory.removeFirst();
+		redoHistory.clear();
+		firePropertyChange(HISTORY_PROPERTY, null, null);
+	}
+
+	/**
+	 * Make this panel show a state from the history.  The cache of the layer whose stamps
+	 * changed is updated using the changes recorded in the edit, so that undoing a stamp
+	 * or an erase takes O(log n) time; a cache is only rebuilt when the stamps of its
+	 * layer were replaced wholesale, as by clear().  Returns an edit that leads back to
+	 * the state before this call.
+	 */
+	private Edit restore(Edit edit) {
+		Scene current = getScene();
+		if (edit.unstampCount > 0 || edit.restampCount > 0) {
+			StampList stamps = edit.state.getLayers().get(edit.layer).getStamps();
+			layerCaches.get(edit.layer).update(stamps, edit.unstamp, edit.unstampCount, edit.restamp, edit.restampCount);
+		}
+		copySettings(edit.state);
+		installLayers(edit.state.getLayers());
+		baseLayerValid = false;
+		repaint();
+		return new Edit(current, edit.layer, edit.restamp, edit.restampCount, edit.unstamp, edit.unstampCount);
+	}
+
+	/**
+	 * Return this panel to its default state.  (The text will be "Hello World", on a gray
+	 * background.)  This can be undone.
+	 */
+	public void clear() {
+		saveUndoState();
+		text = new TextItem();
+		backgroundImage = null;
+		backgroundSource = null;
+		mandelbrot = null;
+		scaledBackground = null;
+		baseLayerValid = false;
+		setBackground(Color.DARK_GRAY);
+		gradientOverlayColor = Color.WHITE;
+		horizontalOverlay = false;
+		gradientOverlayMode = GradientOverlay.LINEAR;
+		gradientOverlayStartAlpha = 50;
+		gradientOverlayEndAlpha = 200;
+		gradientOverlayFractions = null;
+		gradientOverlayColors = null;
+		borderThickness = 3;
+		setBorderColor(Color.DARK_GRAY);
+		currentLayer = 0;
+		installLayers(Collections.singletonList(new StampLayer("Layer 1")));
+		repaint();
+	}
+	
+}
+
+
+// src/guidemo/ExportService.java
+
+package guidemo;
+
+import java.awt.Component;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+
+/**
+ * Saves pictures to files without blocking the event-dispatch thread.  The caller
+ * takes a snapshot of the picture, as a Scene, which is cheap; the scene is then
+ * rendered (by a TiledExporter) and encoded (by an ImageEncoder) on a background thread.  Saves are done
+ * one at a time, in the order in which they were requested.  When there is a parent
+ * component, a ProgressMonitor shows the progress of each save and lets the user
+ * cancel it, and an error message is shown if the file can't be written.
+ */
+public class ExportService {
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Image export");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Add a save to the queue.  If parent is non-null, this method must be called on the
+	 * event-dispatch thread.
+	 * @param scene the picture to save; it should not be modified afterwards.
+	 * @param format the name of an ImageIO format, such as "PNG" or "JPEG".
+	 * @param file the output file.  If the save fails or is canceled, the file is deleted.
+	 * @param parent the component over which progress and errors are shown, or null
+	 *    to save without showing anything.
+	 * @return a Future that is done when the save has finished or failed.
+	 */
+	public Future<?> export(Scene scene, String format, File file, Component parent) {
+		return export(scene, new ImageEncoder(format), file, parent);
+	}
+
+	/**
+	 * Add a save to the queue, using an encoder with specific settings.  The encoder
+	 * should not be modified afterwards.
+	 * @see #export(Scene, String, File, Component)
+	 */
+	public Future<?> export(Scene scene, ImageEncoder encoder, File file, Component parent) {
+		return executor.submit(new Job(scene, encoder, file, parent));
+	}
+
+	/**
+	 * Stop accepting saves.  Saves that are already in the queue are still done.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private static class Job implements Runnable, IIOWriteProgressListener {
+
+		final Scene scene;
+		final ImageEncoder encoder;
+		final File file;
+		final Component parent;
+		final ProgressMonitor monitor;
+		volatile boolean canceled;
+		volatile ImageWriter writer;  // The writer that is in use, so that it can be aborted.
+		int lastPercent = -1;
+
+		Job(Scene scene, ImageEncoder encoder, File file, Component parent) {
+			this.scene = scene;
+			this.encoder = encoder;
+			this.file = file;
+			this.parent = parent;
+			if (parent != null && !GraphicsEnvironment.isHeadless()) {
+				monitor = new ProgressMonitor(parent, "Saving " + file.getName(), "Waiting for earlier saves...", 0, 100);
+				monitor.setMillisToDecideToPopup(250);
+				monitor.setMillisToPopup(500);
+			}
+			else
+				monitor = null;
+		}
+
+		public void run() {
+			update(0, "Rendering and writing the image...");
+			boolean started = false;
+			boolean saved = false;
+			try {
+				TiledExporter exporter = new TiledExporter(scene, scene.getWidth(), scene.getHeight());
+				if (canceled)
+					return;
+				started = true;
+				encoder.write(exporter.getImage(), file, this);
+				saved = !canceled;
+			}
+			catch (Exception e) {
+				if (parent != null) {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							JOptionPane.showMessageDialog(parent, "Sorry, the image could not be saved.");
+						}
+					});
+				}
+			}
+			finally {
+				if (!saved && started)
+					file.delete();  // Don't leave a partly written file.
+				if (monitor != null) {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							monitor.close();
+						}
+					});
+				}
+			}
+		}
+
+		/**
+		 * Show progress in the monitor, if there is one, and check whether the user has
+		 * canceled the save.  Called on the export thread.
+		 */
+		private void update(final int percent, final String note) {
+			if (monitor == null || (percent == lastPercent && note == null))
+				return;
+			lastPercent = percent;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					if (monitor.isCanceled()) {
+						canceled = true;
+						ImageWriter w = writer;
+						if (w != null)
+							w.abort();
+					}
+					else {
+						if (note != null)
+							monitor.setNote(note);
+						monitor.setProgress(percent);
+					}
+				}
+			});
+		}
+
+		public void imageProgress(ImageWriter source, float percentageDone) {
+			update((int)percentageDone, null);
+		}
+
+		public void imageStarted(ImageWriter source, int imageIndex) {
+			writer = source;
+			if (canceled)
+				source.abort();
+		}
+
+		public void imageComplete(ImageWriter source) {
+		}
+
+		public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {
+		}
+
+		public void thumbnailProgress(ImageWriter source, float percentageDone) {
+		}
+
+		public void thumbnailComplete(ImageWriter source) {
+		}
+
+		public void writeAborted(ImageWriter source) {
+		}
+	}
+
+}
+
+
+// src/guidemo/FontCatalog.java
+
+package guidemo;
+
+import java.awt.Font;
+import java.awt.GraphicsEnvironment;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+
+/**
+ * Provides the list of installed font families and the fonts that are used to show
+ * each family name in its own font.  Asking the GraphicsEnvironment for the families can
+ * take a noticeable time when hundreds of fonts are installed, so preload() starts it
+ * on a background thread, and getFamilyNames() waits for that thread if it is still
+ * working.  Preview fonts are made once for each family and shared by all of the menus
+ * and lists that show them.
+ */
+public class FontCatalog {
+
+	/**
+	 * The point size of the fonts returned by getPreviewFont.
+	 */
+	public static final int PREVIEW_SIZE = 12;
+
+	private static FutureTask<String[]> families;
+	private static final ConcurrentHashMap<String,Font> previewFonts = new ConcurrentHashMap<String,Font>();
+
+	/**
+	 * Start reading the list of font families in the background, if that has not already
+	 * been started.  This is called when the program starts.
+	 */
+	public static synchronized void preload() {
+		if (families != null)
+			return;
+		families = new FutureTask<String[]>(new Callable<String[]>() {
+			public String[] call() {
+				return GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
+			}
+		});
+		Thread t = new Thread(families, "Font list");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Returns the names of the installed font families, in the order given by the
+	 * GraphicsEnvironment, waiting for them to be read if necessary.  If they can't be
+	 * read, only the logical fonts are returned.
+	 */
+	public static String[] getFamilyNames() {
+		FutureTask<String[]> task;
+		synchronized (FontCatalog.class) {
+			preload();
+			task = families;
+		}
+		try {
+			return task.get().clone();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+		}
+		return new String[] { Font.DIALOG, Font.DIALOG_INPUT, Font.MONOSPACED, Font.SANS_SERIF, Font.SERIF };
+	}
+
+	/**
+	 * Returns a plain font of size PREVIEW_SIZE in a given family.  The same Font object
+	 * is returned every time for the same family.
+	 */
+	public static Font getPreviewFont(String family) {
+		return previewFonts.computeIfAbsent(family, new Function<String,Font>() {
+			public Font apply(String name) {
+				return new Font(name, Font.PLAIN, PREVIEW_SIZE);
+			}
+		});
+	}
+
+}
+
+
+// src/guidemo/FontPickerDialog.java
+
+package guidemo;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.util.Locale;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/**
+ * Defines a modal dialog for choosing a font family.  The families are shown in a list,
+ * each one in its own font, and typing in the search box at the top narrows the list to
+ * the families whose names contain what was typed.  Only the visible rows of the list
+ * are drawn, so this is practical with any number of installed fonts.
+ */
+public class FontPickerDialog extends JDialog {
+
+	private boolean canceled = true;
+	private final String[] families = FontCatalog.getFamilyNames();
+	private final DefaultListModel<String> model = new DefaultListModel<String>();
+	private final JTextField search;
+	private final JList<String> list;
+
+	/**
+	 * Display the dialog box, wait for the user to dismiss it, and return the
+	 * selected family, or null if the user cancels the dialog.
+	 * @param parent  A component whose frame is the parent of the dialog box.
+	 * @param initialFamily the family that is selected at first; can be null.
+	 */
+	public static String showDialog(Component parent, String initialFamily) {
+		FontPickerDialog dialog = new FontPickerDialog(frameAncestor(parent), initialFamily);
+		dialog.setLocationRelativeTo(parent);
+		dialog.setVisible(true);
+		if (dialog.canceled)
+			return null;
+		else
+			return dialog.list.getSelectedValue();
+	}
+
+	private static Frame frameAncestor(Component c) {
+		while (c != null && ! (c instanceof Frame))
+			c = c.getParent();
+		return (Frame)c;
+	}
+
+	/**
+	 * Creates, but does not show, a dialog box.
+	 */
+	private FontPickerDialog(Frame parent, String initialFamily) {
+		super(parent, "Choose Font", true);
+		JPanel content = new JPanel();
+		setContentPane(content);
+		content.setBackground(Color.LIGHT_GRAY);
+		content.setLayout(new BorderLayout(3,3));
+		search = new JTextField(25);
+		content.add(search,BorderLayout.NORTH);
+		list = new JList<String>(model);
+		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		list.setVisibleRowCount(15);
+		list.setPrototypeCellValue("Abcdefghijklmnopqrstuvwxyz");  // All rows get the same size without measuring each font.
+		list.setCellRenderer(new DefaultListCellRenderer() {
+			public Component getListCellRendererComponent(JList<?> l, Object value, int index,
+					boolean isSelected, boolean cellHasFocus) {
+				super.getListCellRendererComponent(l, value, index, isSelected, cellHasFocus);
+				setFont(FontCatalog.getPreviewFont((String)value));
+				return this;
+			}
+		});
+		list.addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent evt) {
+				if (evt.getClickCount() == 2 && list.getSelectedValue() != null) {
+					canceled = false;
+					dispose();
+				}
+			}
+		});
+		content.add(new JScrollPane(list),BorderLayout.CENTER);
+		search.getDocument().addDocumentListener(new DocumentListener() {
+			public void insertUpdate(DocumentEvent evt) {
+				filter();
+			}
+			public void removeUpdate(DocumentEvent evt) {
+				filter();
+			}
+			public void changedUpdate(DocumentEvent evt) {
+			}
+		});
+		JPanel bottom = new JPanel();
+		content.add(bottom,BorderLayout.SOUTH);
+		JButton cancel = new JButton("Cancel");
+		cancel.addActionListener( new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				dispose();
+			}
+		});
+		final JButton ok = new JButton("OK");
+		ok.addActionListener( new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				if (list.getSelectedValue() != null) {
+					canceled = false;
+					dispose();
+				}
+			}
+		});
+		search.addActionListener(ok.getActionListeners()[0]);  // Pressing return in the search box chooses the selected font.
+		bottom.add(cancel);
+		bottom.add(ok);
+		filter();
+		if (initialFamily != null) {
+			list.setSelectedValue(initialFamily, true);
+		}
+		pack();
+		setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+	}
+
+	/**
+	 * Show only the families whose names contain the text in the search box, ignoring
+	 * case, and select the first of them if the selected family is no longer shown.
+	 */
+	private void filter() {
+		String selected = list.getSelectedValue();
+		String text = search.getText().trim().toLowerCase(Locale.ROOT);
+		model.clear();
+		for (String f : families) {
+			if (f.toLowerCase(Locale.ROOT).contains(text))
+				model.addElement(f);
+		}
+		if (selected != null && model.contains(selected))
+			list.setSelectedValue(selected, true);
+		else if (!model.isEmpty())
+			list.setSelectedIndex(0);
+	}
+
+}
+
+
+// src/guidemo/GetTextDialog.java
+
+package guidemo;
+
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+
+/**
+ * Defines a modal dialog for inputing multiline text.
+ */
+public class GetTextDialog extends JDialog {
+	
+	private boolean canceled = false;
+	private JTextArea text;
+	
+	/**
+	 * Display the dialog box, wait for the user to dismiss it, and return the 
+	 * user's input, or null if the user cancels the dialog.
+	 * @param parent  A component whose frame is the parent of the dialog box.
+	 * @param initialText the initial contents of the inputs box; if null, the box is initially empty.
+	 * @return the text from the input box, or null if the user cancels the dialog.
+	 * Note that the return can be a blank string if the user clicks "OK" without entering
+	 * any text.
+	 */
+	public static String showDialog(Component parent, String initialText) {
+		GetTextDialog dialog = new GetTextDialog(frameAncestor(parent), initialText);
+		dialog.setVisible(true);
+		if (dialog.canceled)
+			return null;
+		else
+			return dialog.text.getText();
+	}
+	
+	private static Frame frameAncestor(Component c) {
+		while (c != null && ! (c instanceof Frame))
+			c = c.getParent();
+		return (Frame)c;
+	}
+	
+	/**
+	 * Creates, but does not show, a dialog box.
+	 */
+	private GetTextDialog(Frame parent, String initialText) {
+		super(parent, "Input Your Text", true);
+		JPanel content = new JPanel();
+		setContentPane(content);
+		content.setBackground(Color.LIGHT_GRAY);
+		content.setLayout(new BorderLayout(3,3));
+		text = new JTextArea(10,50);
+		text.setMargin(new Insets(6,6,6,6));
+		if (initialText != null)
+			text.setText(initialText);
+		content.add(text,BorderLayout.CENTER);
+		JPanel bottom = new JPanel();
+		content.add(bottom,BorderLayout.SOUTH);
+		JButton cancel = new JButton("Cancel");
+		cancel.addActionListener( new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				canceled = true;
+				dispose();
+			}
+		});
+		JButton ok = new JButton("OK");
+		ok.addActionListener( new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				dispose();
+			}
+		});
+		bottom.add(cancel);
+		bottom.add(ok);
+		pack();
+		setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+	}
+	
+
+}
+
+
+// src/guidemo/GradientOverlay.java
+
+package guidemo;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Describes the translucent gradient that a DrawPanel draws over its background image,
+ * and can draw it into an image.  A GradientOverlay is immutable.  There are three modes:
+ * LINEAR, where the color changes from the top of the picture to the bottom (or from
+ * left to right, for a horizontal overlay); RADIAL, where it changes from the center
+ * to the corners; and MULTI_STOP, which is linear but can pass through any number of colors.
+ * <p>The colors are computed once, into a table of 256 entries, and the overlay is
+ * drawn by copying entries from the table, so that all the modes cost about the same.
+ */
+public class GradientOverlay {
+
+	public final static int LINEAR = 0;  // Constants for the mode.
+	public final static int RADIAL = 1;
+	public final static int MULTI_STOP = 2;
+
+	private final static int TABLE_SIZE = 256;
+
+	private final int mode;
+	private final boolean horizontal;
+	private final float[] fractions;
+	private final Color[] colors;
+
+	/**
+	 * Create a LINEAR or RADIAL overlay that uses a single color, with an alpha component
+	 * that changes from startAlpha to endAlpha.
+	 */
+	public GradientOverlay(int mode, Color color, int startAlpha, int endAlpha, boolean horizontal) {
+		this(mode, new float[] { 0, 1 },
+				new Color[] { new Color(color.getRed(), color.getGreen(), color.getBlue(), startAlpha),
+						new Color(color.getRed(), color.getGreen(), color.getBlue(), endAlpha) },
+				horizontal);
+		if (mode == MULTI_STOP)
+			throw new IllegalArgumentException("Use a list of colors for a MULTI_STOP overlay.");
+	}
+
+	/**
+	 * Create an overlay that passes through a list of colors.
+	 * @param mode LINEAR, RADIAL, or MULTI_STOP
+	 * @param fractions the positions of the colors, from 0.0 at the start of the gradient
+	 *    to 1.0 at the end.  The values must be increasing, and there must be at least two.
+	 * @param colors the colors at the given positions; their alpha components are used.
+	 * @param horizontal for a linear gradient, tells whether it goes from left to right
+	 *    instead of from top to bottom.  Ignored for a radial gradient.
+	 */
+	public GradientOverlay(int mode, float[] fractions, Color[] colors, boolean horizontal) {
+		if (mode != LINEAR && mode != RADIAL && mode != MULTI_STOP)
+			throw new IllegalArgumentException("Mode can only be LINEAR, RADIAL, or MULTI_STOP");
+		if (fractions == null || colors == null || fractions.length < 2 || fractions.length != colors.length)
+			throw new IllegalArgumentException("There must be the same number of fractions and colors, at least two.");
+		for (int i = 0; i < fractions.length; i++) {
+			if (fractions[i] < 0 || fractions[i] > 1 || (i > 0 && fractions[i] <= fractions[i-1]))
+				throw new IllegalArgumentException("Fractions must be increasing values between 0 and 1.");
+			if (colors[i] == null)
+				throw new IllegalArgumentException("Null color not allowed");
+		}
+		this.mode = mode;
+		this.horizontal = horizontal;
+		this.fractions = fractions.clone();
+		this.colors = colors.clone();
+	}
+
+	/**
+	 * Make a GradientOverlay from the overlay properties of a DrawPanel or Scene.
+	 * @return the overlay, or null if color is null, which means that there is no overlay.
+	 *   MULTI_STOP mode uses fractions and colors, if they are non-null; otherwise,
+	 *   color, startAlpha and endAlpha are used.
+	 */
+	public static GradientOverlay fromSettings(Color color, int mode, int startAlpha, int endAlpha,
+			float[] fractions, Color[] colors, boolean horizontal) {
+		if (color == null)
+			return null;
+		if (mode == MULTI_STOP && fractions != null)
+			return new GradientOverlay(MULTI_STOP, fractions, colors, horizontal);
+		else
+			return new GradientOverlay(mode == RADIAL ? RADIAL : LINEAR, color, startAlpha, endAlpha, horizontal);
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public boolean isHorizontal() {
+		return horizontal;
+	}
+
+	public float[] getFractions() {
+		return fractions.clone();
+	}
+
+	public Color[] getColors() {
+		return colors.clone();
+	}
+
+	/**
+	 * Make a table of premultiplied ARGB colors for evenly spaced positions along the gradient.
+	 */
+	private int[] makeColorTable() {
+		int[] table = new int[TABLE_SIZE];
+		int stop = 0;
+		for (int i = 0; i < TABLE_SIZE; i++) {
+			float t = (float)i / (TABLE_SIZE - 1);
+			while (stop < fractions.length - 2 && t > fractions[stop+1])
+				stop++;
+			Color c1 = colors[stop];
+			Color c2 = colors[stop+1];
+			float s = (t - fractions[stop]) / (fractions[stop+1] - fractions[stop]);
+			s = Math.max(0, Math.min(1, s));
+			int a = Math.round(c1.getAlpha() + s*(c2.getAlpha() - c1.getAlpha()));
+			int r = Math.round(c1.getRed() + s*(c2.getRed() - c1.getRed()));
+			int g = Math.round(c1.getGreen() + s*(c2.getGreen() - c1.getGreen()));
+			int b = Math.round(c1.getBlue() + s*(c2.getBlue() - c1.getBlue()));
+			r = (r*a + 127) / 255;
+			g = (g*a + 127) / 255;
+			b = (b*a + 127) / 255;
+			table[i] = (a << 24) | (r << 16) | (g << 8) | b;
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the table index for pixel number i in a gradient that is length pixels long.
+	 */
+	private static int tableIndex(int i, int length) {
+		return Math.min(TABLE_SIZE - 1, (int)((i + 0.5) * TABLE_SIZE / length));
+	}
+
+	/**
+	 * Draw this overlay into a new image of type TYPE_INT_ARGB_PRE.  The image can be
+	 * drawn over a background to apply the overlay.
+	 */
+	public BufferedImage createRaster(int width, int height) {
+		return createRaster(width, height, 0, 0, width, height);
+	}
+
+	/**
+	 * Draw part of this overlay into a new image of type TYPE_INT_ARGB_PRE.  This is used
+	 * to draw a large overlay in pieces.
+	 * @param fullWidth the width of the complete overlay
+	 * @param fullHeight the height of the complete overlay
+	 * @param left the x-coordinate, in the complete overlay, of the part that is drawn
+	 * @param top the y-coordinate, in the complete overlay, of the part that is drawn
+	 * @param width the width of the part that is drawn, which is the width of the image
+	 * @param height the height of the part that is drawn, which is the height of the image
+	 */
+	public BufferedImage createRaster(int fullWidth, int fullHeight, int left, int top, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		WritableRaster raster = image.getRaster();
+		int[] table = makeColorTable();
+		int[] row = new int[width];
+		if (mode == RADIAL) {
+			double centerX = fullWidth / 2.0;
+			double centerY = fullHeight / 2.0;
+			double maxRadius = Math.max(1, Math.hypot(centerX, centerY));
+			double[] dx2 = new double[width];
+			for (int x = 0; x < width; x++)
+				dx2[x] = (left + x + 0.5 - centerX) * (left + x + 0.5 - centerX);
+			for (int y = 0; y < height; y++) {
+				double dy2 = (top + y + 0.5 - centerY) * (top + y + 0.5 - centerY);
+				for (int x = 0; x < width; x++)
+					row[x] = table[Math.min(TABLE_SIZE - 1, (int)(Math.sqrt(dx2[x] + dy2) / maxRadius * TABLE_SIZE))];
+				raster.setDataElements(0, y, width, 1, row);
+			}
+		}
+		else if (horizontal) {
+			for (int x = 0; x < width; x++)
+				row[x] = table[tableIndex(left + x, fullWidth)];
+			for (int y = 0; y < height; y++)
+				raster.setDataElements(0, y, width, 1, row);
+		}
+		else {
+			for (int y = 0; y < height; y++) {
+				Arrays.fill(row, table[tableIndex(top + y, fullHeight)]);
+				raster.setDataElements(0, y, width, 1, row);
+			}
+		}
+		return image;
+	}
+
+	public boolean equals(Object obj) {
+		if (!(obj instanceof GradientOverlay))
+			return false;
+		GradientOverlay other = (GradientOverlay)obj;
+		return mode == other.mode && horizontal == other.horizontal
+				&& Arrays.equals(fractions, other.fractions) && Arrays.equals(colors, other.colors);
+	}
+
+	public int hashCode() {
+		return (mode * 31 + (horizontal ? 1 : 0)) * 31 + Arrays.hashCode(colors);
+	}
+
+}
+
+
+// src/guidemo/GuiDemo.java
+
+package guidemo;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.*;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
+
+/**
+ * A frame that displays a multiline text, possibly with a background image
+ * and with added icon images, in a DrawPanel, along with a variety of controlls.
+ */
+public class GuiDemo extends JFrame {
+
+    /**
+     * The main program just creates a GuiDemo frame and makes it visible.  If the system
+     * property guidemo.startupTiming is true, it also prints how long it took for the
+     * window to appear and for all of the startup resources to be loaded.
+     */
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        JFrame frame = new GuiDemo();
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setVisible(true);
+        if (Boolean.getBoolean("guidemo.startupTiming")) {
+            System.out.printf("Window shown after %.1f ms%n", (System.nanoTime() - start) / 1e6);
+            ResourceLoader.getShared().awaitAll();
+            System.out.printf("Resources loaded after %.1f ms%n", (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    private final DrawPanel drawPanel;
+    private final BackgroundLoader backgroundLoader;  // Canceled by commands that replace the whole picture.
+    private final SimpleFileChooser fileChooser;
+    private final TextMenu textMenu;
+    private final JCheckBoxMenuItem gradientOverlayCheckbox = new JCheckBoxMenuItem("Gradient Overlay", true);
+    private final ExportService exportService = new ExportService();  // Saves images in the background.
+
+
+    /**
+     * The constructor creates the frame, sizes it, and centers it horizontally on the screen.
+     */
+    public GuiDemo() {
+
+        super("Sayings");  // Specifies the string for the title bar of the window.
+
+        // Create and customize the file chooser that is used for file operations.
+
+        fileChooser = new SimpleFileChooser();
+        try { // I'd like to use the Desktop folder as the initial folder in the file chooser.
+            String userDir = System.getProperty("user.home");
+            if (userDir != null) {
+                File desktop = new File(userDir, "Desktop");
+                if (desktop.isDirectory())
+                    fileChooser.setDefaultDirectory(desktop);
+            }
+        } catch (Exception ignored) {
+        }
+
+        JPanel content = new JPanel();  // To hold the content of the window.
+        content.setBackground(Color.LIGHT_GRAY);
+        content.setLayout(new BorderLayout());
+        setContentPane(content);
+
+        // Create the DrawPanel that fills most of the window, and customize it.
+
+        drawPanel = new DrawPanel();
+        drawPanel.getTextItem().setText(
+                "Too bad but it's the life you lead\n" +
+                "You're so ahead of yourself that you forgot what you need\n" +
+                "Though you can see when you're wrong, you know\n" +
+                "You can't always see when you're right. you're right"
+        );
+        drawPanel.getTextItem().setFontSize(24);
+        drawPanel.getTextItem().setJustify(TextItem.LEFT);
+        backgroundLoader = new BackgroundLoader(drawPanel);
+        backgroundLoader.loadInitialResource("resources/images/earthrise.jpeg");  // Canceled if the user changes the picture first.
+        content.add(drawPanel, BorderLayout.CENTER);
+
+        // Add change background toolbar to the NORTH position of the layout.  The same
+        // BackgroundSupport makes the Background menu, so the two share their actions.
+        BackgroundSupport bkSupport = new BackgroundSupport(drawPanel, fileChooser, gradientOverlayCheckbox, backgroundLoader);
+        content.add(bkSupport.makeToolbar(), BorderLayout.NORTH);
+
+        // Add an icon toolbar to the SOUTH position of the layout
+
+        IconSupport iconSupport = new IconSupport(drawPanel);
+        content.add(iconSupport.createToolbar(true), BorderLayout.SOUTH);
+
+        // Create the menu bar and add it to the frame.  The TextMenu is defined by
+        // a separate class. The other menus are created in this class.
+
+        ResourceLoader resources = ResourceLoader.getShared();  // Icons for the File menu arrive later.
+        resources.setIcon(newPictureAction, "resources/action_icons/fileopen.png");
+        resources.setIcon(quitAction, "resources/action_icons/exit.png");
+        resources.setIcon(saveImageAction, "resources/action_icons/filesave.png");
+
+        JMenuBar menuBar = new JMenuBar();
+        menuBar.add(makeFileMenu());
+        menuBar.add(makeEditMenu());
+        textMenu = new TextMenu(drawPanel);
+        menuBar.add(textMenu);
+        JMenu backgroundMenu = bkSupport.makeMenu();
+        menuBar.add(backgroundMenu);
+        JMenu stampersMenu = iconSupport.createMenu();
+        menuBar.add(stampersMenu);
+        menuBar.add(makeLayersMenu());
+        setJMenuBar(menuBar);
+
+        // Set the size of the window and its position.
+
+        pack();  // Size the window to fit its content.
+        Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+        setLocation((screenSize.width - getWidth()) / 2, 50);
+    } // end constructor
+
+    /**
+     * Create the "File" menu from actions that are defined later in this class.
+     */
+    private JMenu makeFileMenu() {
+        JMenu menu = new JMenu("File");
+        menu.add(newPictureAction);
+        menu.add(saveImageAction);
+        menu.add(saveOptimizedAction);
+        menu.addSeparator();
+        menu.add(openSceneAction);
+        menu.add(saveSceneAction);
+        menu.addSeparator();
+        menu.add(quitAction);
+        return menu;
+    }
+
+    /**
+     * Create the "Edit" menu, with Undo and Redo commands that are enabled only when
+     * the DrawPanel has something to undo or redo.
+     */
+    private JMenu makeEditMenu() {
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        undoAction.putValue(Action.ACCELERATOR_KEY, KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut));
+        redoAction.putValue(Action.ACCELERATOR_KEY, KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcut));
+        undoAction.setEnabled(false);
+        redoAction.setEnabled(false);
+        drawPanel.addPropertyChangeListener(DrawPanel.HISTORY_PROPERTY, new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent evt) {
+                undoAction.setEnabled(drawPanel.canUndo());
+                redoAction.setEnabled(drawPanel.canRedo());
+                gradientOverlayCheckbox.setSelected(drawPanel.getGradientOverlayColor() != null);
+            }
+        });
+        JMenu menu = new JMenu("Edit");
+        menu.add(undoAction);
+        menu.add(redoAction);
+        return menu;
+    }
+
+    /**
+     * Create the "Layers" menu.  Its items are made each time that the menu is opened,
+     * since the layers can change, including by undo and redo:  a command for adding a
+     * layer, a radio button for each layer that makes it the layer that stamps go on,
+     * and a checkbox for each layer that shows or hides it.  The top layer is listed first.
+     */
+    private JMenu makeLayersMenu() {
+        final JMenu menu = new JMenu("Layers");
+        menu.addMenuListener(new MenuListener() {
+            public void menuSelected(MenuEvent evt) {
+                fillLayersMenu(menu);
+            }
+            public void menuDeselected(MenuEvent evt) {
+            }
+            public void menuCanceled(MenuEvent evt) {
+            }
+        });
+        return menu;
+    }
+
+    private void fillLayersMenu(JMenu menu) {
+        menu.removeAll();
+        menu.add(newLayerAction);
+        menu.addSeparator();
+        ButtonGroup group = new ButtonGroup();
+        for (int i = drawPanel.getLayerCount() - 1; i >= 0; i--) {
+            final int layer = i;
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem("Stamp on " + drawPanel.getLayer(i).getName(),
+                    i == drawPanel.getCurrentLayer());
+            item.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent evt) {
+                    drawPanel.setCurrentLayer(layer);
+                }
+            });
+            group.add(item);
+            menu.add(item);
+        }
+        menu.addSeparator();
+        for (int i = drawPanel.getLayerCount() - 1; i >= 0; i--) {
+            final int layer = i;
+            final JCheckBoxMenuItem item = new JCheckBoxMenuItem("Show " + drawPanel.getLayer(i).getName(),
+                    drawPanel.getLayer(i).isVisible());
+            item.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent evt) {
+                    drawPanel.setLayerVisible(layer, item.isSelected());
+                }
+            });
+            menu.add(item);
+        }
+    }
+
+    /**
+     * Create the "Background" menu, using objects of type ChooseBackgroundAction,
+     * a class that is defined later in this file.
+     */
+
+    private AbstractAction newPictureAction = new AbstractAction("New") {
+        public void actionPerformed(ActionEvent evt) {
+            backgroundLoader.cancel();  // A background that is still loading would replace the new picture's.
+            drawPanel.clear();
+            gradientOverlayCheckbox.setSelected(true);
+            textMenu.setDefaults();
+        }
+    };
+
+    private AbstractAction newLayerAction = new AbstractAction("New Layer...") {
+        public void actionPerformed(ActionEvent evt) {
+            String name = JOptionPane.showInputDialog(drawPanel, "Name for the new layer:",
+                    "Layer " + (drawPanel.getLayerCount() + 1));
+            if (name != null)
+                drawPanel.addLayer(name);
+        }
+    };
+
+    private AbstractAction undoAction = new AbstractAction("Undo") {
+        public void actionPerformed(ActionEvent evt) {
+            backgroundLoader.cancel();
+            drawPanel.undo();
+        }
+    };
+
+    private AbstractAction redoAction = new AbstractAction("Redo") {
+        public void actionPerformed(ActionEvent evt) {
+            backgroundLoader.cancel();
+            drawPanel.redo();
+        }
+    };
+
+    private AbstractAction quitAction = new AbstractAction("Quit") {
+        public void actionPerformed(ActionEvent evt) {
+            System.exit(0);
+        }
+    };
+
+    private AbstractAction saveImageAction = new AbstractAction("Save Image...") {
+        public void actionPerformed(ActionEvent evt) {
+            File f = fileChooser.getOutputFile(drawPanel, "Select Output File", "saying.jpeg");
+            if (f != null) {
+                String format;
+                String fileName = f.getName().toLowerCase();
+                if (fileName.endsWith(".png"))
+                    format = "PNG";
+                else if (fileName.endsWith(".jpeg") || fileName.endsWith(".jpg"))
+                    format = "JPEG";
+                else {
+                    JOptionPane.showMessageDialog(drawPanel,
+                            "The output file name must end wth\n.png or .jpeg.");
+                    return;
+                }
+                // Only the snapshot is taken here; rendering and encoding happen in the background.
+                exportService.export(drawPanel.getScene(), format, f, drawPanel);
+            }
+        }
+    };
+
+    /**
+     * Saves a PNG with a palette of 256 colors, which is usually much smaller than a
+     * full-color PNG and looks the same for pictures that are mostly text over a gradient.
+     */
+    private AbstractAction saveOptimizedAction = new AbstractAction("Save Optimized PNG...") {
+        public void actionPerformed(ActionEvent evt) {
+            File f = fileChooser.getOutputFile(drawPanel, "Select Output File", "saying.png");
+            if (f != null) {
+                if (!f.getName().toLowerCase().endsWith(".png")) {
+                    JOptionPane.showMessageDialog(drawPanel,
+                            "The output file name must end with\n.png.");
+                    return;
+                }
+                exportService.export(drawPanel.getScene(), ImageEncoder.preset("png-indexed"), f, drawPanel);
+            }
+        }
+    };
+
+    /**
+     * Saves the picture as a scene file, which can be opened later and edited, unlike
+     * an image file.  See SceneFile.
+     */
+    private AbstractAction saveSceneAction = new AbstractAction("Save Scene...") {
+        public void actionPerformed(ActionEvent evt) {
+            File f = fileChooser.getOutputFile(drawPanel, "Select Scene File", "saying.scene");
+            if (f != null) {
+                try {
+                    SceneFile.write(drawPanel.getScene(), f);
+                }
+                catch (IOException e) {
+                    JOptionPane.showMessageDialog(drawPanel,
+                            "Sorry, couldn't save the scene.\n" + e.getMessage());
+                }
+            }
+        }
+    };
+
+    /**
+     * Replaces the picture with one from a scene file.  This can be undone.
+     */
+    private AbstractAction openSceneAction = new AbstractAction("Open Scene...") {
+        public void actionPerformed(ActionEvent evt) {
+            File f = fileChooser.getInputFile(drawPanel, "Select Scene File");
+            if (f != null) {
+                Scene scene;
+                try {
+                    scene = SceneFile.read(f);
+                }
+                catch (IOException e) {
+                    JOptionPane.showMessageDialog(drawPanel,
+                            "Sorry, couldn't read the scene.\n" + e.getMessage());
+                    return;
+                }
+                backgroundLoader.cancel();
+                drawPanel.saveUndoState();
+                drawPanel.setScene(scene);
+                gradientOverlayCheckbox.setSelected(drawPanel.getGradientOverlayColor() != null);
+                textMenu.updateFromText();
+            }
+        }
+    };
+}
+
+
+// src/guidemo/IconSupport.java
+
+package guidemo;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Contains a set of Actions that can be used to select images that can
+ * be added to a DrawPanel (in the form of ImageItems).  Can create a
+ * toolbar containing a button for each Action in the set.  A button
+ * shows an ImageIcon with the image that is selected by that button.
+ * Clicking one of the buttons also sets the cursor in the DrawPanel
+ * to be a (rough) copy of the image.
+ */
+public class IconSupport {
+
+    private final DrawPanel panel;
+    private final ArrayList<Action> actions = new ArrayList<>();
+    private final ArrayList<JToolBar> toolbars = new ArrayList<>();  // Made from the actions, so that an action
+    private final ArrayList<JMenu> menus = new ArrayList<>();        //    can be removed from them later.
+
+    /**
+     * Start loading the stamp images.  The images are read in the background by the shared
+     * ResourceLoader, using Util.getBufferedImageResource, which converts them to a pixel
+     * format that can be drawn quickly, since each of them can be drawn many times in the
+     * DrawPanel.  Each action is disabled, with a placeholder icon, until its image arrives.
+     * The toolbar and the menu are made from the same actions, so both are updated.  If an
+     * image can't be loaded, its action is removed from the toolbars and menus, so that
+     * there is no button for an image that doesn't exist.
+     */
+    public IconSupport(DrawPanel owner) {
+        panel = owner;
+        String[] iconNames = {"bell", "camera", "flower", "star", "check", "crossout",
+                "tux", "bomb", "keyboard", "lightbulb", "tv"};
+        for (String name : iconNames) {
+            final SelectIconAction action = new SelectIconAction(name);
+            actions.add(action);
+            ResourceLoader.getShared().whenLoaded("resources/icons/" + name + ".png", new Consumer<BufferedImage>() {
+                public void accept(BufferedImage img) {
+                    if (img == null)
+                        removeAction(action);
+                    else
+                        action.setImage(img);
+                }
+            });
+        }
+        actions.add(new NoIconAction());
+    }
+
+	/**
+	 * Return a menu containing the actions, and a "Brush" checkbox that makes dragging
+	 * the mouse stamp the selected image along the path of the mouse.
+	 */
+	JMenu createMenu() {
+		JMenu stampersMenu = new JMenu("Stampers");
+    	for (Action action: actions) {
+    		stampersMenu.add(action);
+		}
+		menus.add(stampersMenu);
+		stampersMenu.addSeparator();
+		final JCheckBoxMenuItem brush = new JCheckBoxMenuItem("Brush");
+		brush.setToolTipText("Stamp the image repeatedly while the mouse is dragged");
+		brush.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				panel.setBrushSpacing(brush.isSelected() ? DrawPanel.DEFAULT_BRUSH_SPACING : 0);
+			}
+		});
+		stampersMenu.add(brush);
+		return stampersMenu;
+	}
+
+    /**
+     * Return a toolbar containing buttons representing the images that can be added
+     * to the DrawPanel.
+     *
+     * @param horizontal a value of JToolBar.HORIZONTAL or JToolBar.VERTICAL tells
+     *                   whether the toolbar is meant to have horizontal or vertical orientation.
+     */
+    public JToolBar createToolbar(boolean horizontal) {
+        JToolBar tbar = new JToolBar(horizontal ? JToolBar.HORIZONTAL : JToolBar.VERTICAL);
+        for (int i = 0; i < actions.size() - 1; i++)
+            tbar.add(actions.get(i));
+        tbar.addSeparator(new Dimension(15, 0));
+        tbar.add(actions.get(actions.size() - 1));
+        toolbars.add(tbar);
+        return tbar;
+    }
+
+    /**
+     * Remove an action, and the buttons and menu items for it in the toolbars and menus
+     * that have already been made.
+     */
+    private void removeAction(Action action) {
+        actions.remove(action);
+        for (JToolBar tbar : toolbars) {
+            for (Component c : tbar.getComponents()) {
+                if (c instanceof AbstractButton && ((AbstractButton) c).getAction() == action)
+                    tbar.remove(c);
+            }
+            tbar.revalidate();
+            tbar.repaint();
+        }
+        for (JMenu menu : menus) {
+            for (int i = menu.getItemCount() - 1; i >= 0; i--) {
+                JMenuItem item = menu.getItem(i);
+                if (item != null && item.getAction() == action)
+                    menu.remove(i);
+            }
+        }
+    }
+
+    private class NoIconAction extends AbstractAction {
+        NoIconAction() {
+            super("Eraser");
+            BufferedImage del = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+            Graphics g = del.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, 32, 32);
+            g.setColor(Color.RED);
+            g.drawString("DEL", 5, 20);
+            g.dispose();
+            putValue(Action.SMALL_ICON, new ImageIcon(del));
+            putValue(Action.SHORT_DESCRIPTION, "Use Mouse to Erase Icons"); // tooltip
+        }
+
+        public void actionPerformed(ActionEvent evt) {
+            panel.setCurrentDrawImage(null);
+            panel.setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
+        }
+    }
+
+    private class SelectIconAction extends AbstractAction {
+        BufferedImage image;  // Null until the image has been loaded.
+
+        SelectIconAction(String name) {
+            // Note: The name is suppressed in toolbars, but not in menus.
+            super(name, ResourceLoader.getShared().getPlaceholder());
+            putValue(Action.SHORT_DESCRIPTION, "Use Mouse to Stamp this Icon"); // tooltip
+            setEnabled(false);
+        }
+
+        /**
+         * Called on the event-dispatch thread when the image has been loaded.
+         */
+        void setImage(BufferedImage img) {
+            image = img;
+            putValue(Action.SMALL_ICON, new ImageIcon(img));
+            setEnabled(true);
+        }
+
+        public void actionPerformed(ActionEvent evt) {
+            panel.setCurrentDrawImage(image);
+            Cursor c = Util.createImageCursor(image, image.getWidth() / 2, image.getHeight() / 2);
+            panel.setCursor(c);
+        }
+    }
+}
+
+
+// src/guidemo/ImageCache.java
+
+package guidemo;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps decoded images in memory so that an image that is used again, such as a
+ * background that the user switches back to, does not have to be read and decoded
+ * again.  The cache holds at most a given number of bytes of pixel data; when it is
+ * full, the images that were used least recently are dropped.  An image that is bigger
+ * than the whole budget is not cached.
+ * <p>Images are looked up by a key.  {@link #resourceKey(String)} and
+ * {@link #fileKey(File, String)} make the keys that are used by Util and BackgroundLoader.
+ * The images in the cache are shared, so they must not be modified.
+ * <p>All methods are synchronized, so the cache can be used from any thread.
+ */
+public class ImageCache {
+
+	/**
+	 * The default budget, 64 MB.  It can be changed with the system property
+	 * guidemo.imageCacheBytes.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private static final ImageCache shared = new ImageCache(
+			Long.getLong("guidemo.imageCacheBytes", DEFAULT_MAX_BYTES));
+
+	private final LinkedHashMap<String,BufferedImage> images =
+			new LinkedHashMap<String,BufferedImage>(16, 0.75f, true);  // In order of use.
+	private long maxBytes;
+	private long bytes;
+	private int hits, misses, evictions;
+
+	/**
+	 * Returns the cache that is used by Util, BackgroundSupport and IconSupport.
+	 */
+	public static ImageCache getShared() {
+		return shared;
+	}
+
+	/**
+	 * Create a cache that holds at most maxBytes bytes of pixel data.
+	 */
+	public ImageCache(long maxBytes) {
+		setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * Returns the key for an image that is loaded from a resource.
+	 */
+	public static String resourceKey(String pathToResource) {
+		return "resource:" + pathToResource;
+	}
+
+	/**
+	 * Returns the key for an image that is loaded from a file.  The key includes the
+	 * modification time and length of the file, so that an image is read again if the
+	 * file has been changed.
+	 * @param variant distinguishes different versions of the same file, such as reads
+	 *    at different sizes.  Can be null.
+	 */
+	public static String fileKey(File file, String variant) {
+		File f = file.getAbsoluteFile();
+		return "file:" + f.getPath() + ":" + f.lastModified() + ":" + f.length()
+				+ (variant == null ? "" : "@" + variant);
+	}
+
+	/**
+	 * Returns the image with a given key, or null if it is not in the cache.  A successful
+	 * lookup makes the image the most recently used one.
+	 */
+	public synchronized BufferedImage get(String key) {
+		BufferedImage img = images.get(key);
+		if (img == null)
+			misses++;
+		else
+			hits++;
+		return img;
+	}
+
+	/**
+	 * Add an image to the cache, replacing any image that already has the same key, and
+	 * drop the least recently used images if that is needed to stay within the budget.
+	 */
+	public synchronized void put(String key, BufferedImage img) {
+		BufferedImage old = images.remove(key);
+		if (old != null)
+			bytes -= sizeOf(old);
+		long size = sizeOf(img);
+		if (size > maxBytes)
+			return;
+		images.put(key, img);
+		bytes += size;
+		trim();
+	}
+
+	/**
+	 * Remove all images from the cache.  The counters are not reset.
+	 */
+	public synchronized void clear() {
+		images.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Change the budget.  If the cache holds more than the new budget, the least recently
+	 * used images are dropped.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("The budget can't be negative");
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	/**
+	 * Returns the number of bytes of pixel data in the cache.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return images.size();
+	}
+
+	/**
+	 * Returns the number of lookups that found an image.
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups that did not find an image.
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of images that were dropped to stay within the budget.
+	 */
+	public synchronized int getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the number of bytes used by the pixel data of an image.
+	 */
+	public static long sizeOf(BufferedImage img) {
+		DataBuffer buffer = img.getRaster().getDataBuffer();
+		long elementBytes = DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+		return (long)buffer.getSize() * buffer.getNumBanks() * elementBytes;
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<String,BufferedImage>> iter = images.entrySet().iterator();
+		while (bytes > maxBytes && iter.hasNext()) {
+			bytes -= sizeOf(iter.next().getValue());
+			iter.remove();
+			evictions++;
+		}
+	}
+
+}
+
+
+// src/guidemo/ImageEncoder.java
+
+package guidemo;
+
+import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Writes images in PNG or JPEG format, with settings that control the tradeoff between
+ * file size, quality, and encoding time.  ImageWriters are expensive to look up and
+ * create, so they are kept in a pool that is shared by all ImageEncoders and reused.
+ * Output goes through a buffered stream.
+ * <p>For JPEG, the quality, progressive mode, and chroma subsampling can be set.  For PNG,
+ * the deflate compression level can be set.  (The JDK's PNG writer always chooses the
+ * filter for each row adaptively, so the filter strategy can't be set.)  A PNG can also
+ * be written with a palette of 256 colors, chosen by a ColorQuantizer, which makes it
+ * much smaller.  A few named presets are available from the preset() method.
+ */
+public class ImageEncoder {
+
+	public final static int SUBSAMPLING_444 = 0;  // Constants for use with setChromaSubsampling()
+	public final static int SUBSAMPLING_422 = 1;
+	public final static int SUBSAMPLING_420 = 2;
+
+	/**
+	 * The names of the presets that can be passed to preset().
+	 */
+	public final static String[] PRESETS = { "jpeg-best", "jpeg-default", "jpeg-web", "jpeg-small",
+			"png-fast", "png-default", "png-smallest", "png-indexed", "png-indexed-dither" };
+
+	private final static ConcurrentHashMap<String,ConcurrentLinkedQueue<ImageWriter>> writerPool =
+			new ConcurrentHashMap<String,ConcurrentLinkedQueue<ImageWriter>>();
+
+	private final String format;
+	private float quality = 0.75f;          // JPEG quality; 0.75 is the ImageIO default.
+	private boolean progressive;
+	private int chromaSubsampling = SUBSAMPLING_420;
+	private int compressionLevel = 4;       // PNG deflate level; 4 is the ImageIO default.
+	private boolean indexedColor;
+	private boolean dither;
+
+	/**
+	 * Create an encoder with the default settings of the ImageIO writer for the format.
+	 * @param format "PNG" or "JPEG" (not case-sensitive; "JPG" is also accepted).
+	 */
+	public ImageEncoder(String format) {
+		format = format.toUpperCase();
+		if (format.equals("JPG"))
+			format = "JPEG";
+		if (!format.equals("PNG") && !format.equals("JPEG"))
+			throw new IllegalArgumentException("Format must be PNG or JPEG");
+		this.format = format;
+	}
+
+	/**
+	 * Create an encoder with the settings for one of the names in the PRESETS array.
+	 */
+	public static ImageEncoder preset(String name) {
+		ImageEncoder encoder;
+		switch (name) {
+			case "jpeg-best":
+				encoder = new ImageEncoder("JPEG");
+				encoder.setQuality(0.95f);
+				encoder.setChromaSubsampling(SUBSAMPLING_444);
+				break;
+			case "jpeg-default":
+				encoder = new ImageEncoder("JPEG");
+				break;
+			case "jpeg-web":
+				encoder = new ImageEncoder("JPEG");
+				encoder.setQuality(0.8f);
+				encoder.setProgressive(true);
+				break;
+			case "jpeg-small":
+				encoder = new ImageEncoder("JPEG");
+				encoder.setQuality(0.5f);
+				break;
+			case "png-fast":
+				encoder = new ImageEncoder("PNG");
+				encoder.setCompressionLevel(1);
+				break;
+			case "png-default":
+				encoder = new ImageEncoder("PNG");
+				break;
+			case "png-smallest":
+				encoder = new ImageEncoder("PNG");
+				encoder.setCompressionLevel(9);
+				break;
+			case "png-indexed":
+				encoder = new ImageEncoder("PNG");
+				encoder.setIndexedColor(true);
+				encoder.setCompressionLevel(6);
+				break;
+			case "png-indexed-dither":
+				encoder = new ImageEncoder("PNG");
+				encoder.setIndexedColor(true);
+				encoder.setDither(true);
+				encoder.setCompressionLevel(6);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown preset: " + name);
+		}
+		return encoder;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public float getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Set the JPEG quality, from 0 (smallest file) to 1 (best quality).
+	 */
+	public void setQuality(float quality) {
+		if (quality < 0 || quality > 1)
+			throw new IllegalArgumentException("Quality must be between 0 and 1.");
+		this.quality = quality;
+	}
+
+	public boolean isProgressive() {
+		return progressive;
+	}
+
+	/**
+	 * Set whether a JPEG image is written in progressive mode, so that a browser can show
+	 * a low-quality version of the whole image before it has been completely loaded.
+	 */
+	public void setProgressive(boolean progressive) {
+		this.progressive = progressive;
+	}
+
+	public int getChromaSubsampling() {
+		return chromaSubsampling;
+	}
+
+	/**
+	 * Set the JPEG chroma subsampling:  SUBSAMPLING_444 keeps full color resolution,
+	 * SUBSAMPLING_422 halves it horizontally, and SUBSAMPLING_420 (the default) halves it
+	 * in both directions.
+	 */
+	public void setChromaSubsampling(int chromaSubsampling) {
+		if (chromaSubsampling != SUBSAMPLING_444 && chromaSubsampling != SUBSAMPLING_422 && chromaSubsampling != SUBSAMPLING_420)
+			throw new IllegalArgumentException("Subsampling can only be SUBSAMPLING_444, SUBSAMPLING_422, or SUBSAMPLING_420");
+		this.chromaSubsampling = chromaSubsampling;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Set the PNG deflate level, from 0 (no compression) to 9 (smallest file, slowest).
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < 0 || compressionLevel > 9)
+			throw new IllegalArgumentException("Compression level must be between 0 and 9.");
+		this.compressionLevel = compressionLevel;
+	}
+
+	public boolean isIndexedColor() {
+		return indexedColor;
+	}
+
+	/**
+	 * Set whether a PNG image is reduced to a palette of at most 256 colors before it
+	 * is written.  The palette is chosen for the image by a ColorQuantizer.
+	 */
+	public void setIndexedColor(boolean indexedColor) {
+		this.indexedColor = indexedColor;
+	}
+
+	public boolean isDither() {
+		return dither;
+	}
+
+	/**
+	 * Set whether the pixels are dithered when an image is reduced to a palette.  Dithering
+	 * hides banding in gradients, but makes the file larger.
+	 */
+	public void setDither(boolean dither) {
+		this.dither = dither;
+	}
+
+	/**
+	 * Write an image to a file.
+	 */
+	public void write(RenderedImage image, File file) throws IOException {
+		write(image, file, null);
+	}
+
+	/**
+	 * Write an image to a file, reporting progress to a listener.  The listener can abort
+	 * the write by calling abort() on the ImageWriter that is passed to it.
+	 * @param listener a listener, or null.
+	 */
+	public void write(RenderedImage image, File file, IIOWriteProgressListener listener) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64*1024)) {
+			write(image, out, listener, file.getPath());
+		}
+	}
+
+	/**
+	 * Write an image to a stream.  The stream is not closed.
+	 * @param listener a listener, or null.
+	 */
+	public void write(RenderedImage image, OutputStream out, IIOWriteProgressListener listener) throws IOException {
+		write(image, out, listener, null);
+	}
+
+	/**
+	 * Write an image to a stream, recording an ExportEvent with the destination, which
+	 * is a file name or null.
+	 */
+	private void write(RenderedImage image, OutputStream out, IIOWriteProgressListener listener, String destination)
+			throws IOException {
+		Profiling.ExportEvent event = Profiling.ExportEvent.start();
+		if (indexedColor && format.equals("PNG")) {
+			ColorQuantizer quantizer = new ColorQuantizer();
+			quantizer.setDither(dither);
+			image = quantizer.quantize(image);
+		}
+		ImageWriter writer = borrowWriter();
+		try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+			writer.setOutput(stream);
+			if (listener != null)
+				writer.addIIOWriteProgressListener(listener);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			IIOMetadata metadata = null;
+			if (format.equals("JPEG")) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(quality);
+				param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+				metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+				setSubsampling(metadata);
+			}
+			else {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality((9 - compressionLevel) / 9f);  // The writer uses level 9 - round(9*quality).
+			}
+			writer.write(null, new IIOImage(image, null, metadata), param);
+			stream.flush();
+			event.record(format, destination, image.getWidth(), image.getHeight(), stream.getStreamPosition());
+		}
+		finally {
+			returnWriter(writer);
+		}
+	}
+
+	/**
+	 * Set the sampling factors of the luminance component in JPEG metadata.  (The
+	 * chroma components always have factors 1; the luminance factors say how many
+	 * luminance samples there are for each chroma sample.)
+	 */
+	private void setSubsampling(IIOMetadata metadata) throws IOException {
+		String formatName = "javax_imageio_jpeg_image_1.0";
+		Node root = metadata.getAsTree(formatName);
+		NodeList components = ((Element)root).getElementsByTagName("componentSpec");
+		for (int i = 0; i < components.getLength(); i++) {
+			Element component = (Element)components.item(i);
+			int h = 1, v = 1;
+			if (i == 0 && components.getLength() == 3) {
+				h = chromaSubsampling == SUBSAMPLING_444 ? 1 : 2;
+				v = chromaSubsampling == SUBSAMPLING_420 ? 2 : 1;
+			}
+			component.setAttribute("HsamplingFactor", "" + h);
+			component.setAttribute("VsamplingFactor", "" + v);
+		}
+		metadata.setFromTree(formatName, root);
+	}
+
+	private ImageWriter borrowWriter() throws IOException {
+		ConcurrentLinkedQueue<ImageWriter> pool = writerPool.get(format);
+		ImageWriter writer = pool == null ? null : pool.poll();
+		if (writer == null) {
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+			if (!writers.hasNext())
+				throw new IOException("No writer for " + format);
+			writer = writers.next();
+		}
+		return writer;
+	}
+
+	private void returnWriter(ImageWriter writer) {
+		writer.reset();  // Removes the output and listeners.
+		ConcurrentLinkedQueue<ImageWriter> pool = writerPool.get(format);
+		if (pool == null) {
+			writerPool.putIfAbsent(format, new ConcurrentLinkedQueue<ImageWriter>());
+			pool = writerPool.get(format);
+		}
+		pool.offer(writer);
+	}
+
+}
+
+
+// src/guidemo/ImageItem.java
+
+package guidemo;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * Represents an image, drawn with its center at a specified point.
+ */
+public class ImageItem {
+	
+	private BufferedImage image;
+	private int centerX, centerY;
+		
+	public ImageItem(BufferedImage image, int centerX, int centerY) {
+		this.image = image;
+		this.centerX = centerX;
+		this.centerY = centerY;
+	}
+
+	public void draw(Graphics g) {
+		g.drawImage(image,centerX-image.getWidth()/2,centerY-image.getHeight()/2,null);
+	}
+
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	public void setImage(BufferedImage image) {
+		if (image == null)
+			throw new IllegalArgumentException("Null image not allowed");
+		this.image = image;
+	}
+
+	public int getCenterX() {
+		return centerX;
+	}
+
+	public void setCenterX(int centerX) {
+		this.centerX = centerX;
+	}
+
+	public int getCenterY() {
+		return centerY;
+	}
+
+	public void setCenterY(int centerY) {
+		this.centerY = centerY;
+	}
+
+	public void setPosition(int x, int y) {
+		centerX = x;
+		centerY = y;
+	}
+
+	/**
+	 * Returns the rectangle that is covered by the image when it is drawn.
+	 */
+	public Rectangle getBounds() {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		return new Rectangle(centerX - w/2, centerY - h/2, w, h);
+	}
+
+	public boolean contains(int x, int y) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		return x > centerX - w/2 && x < centerX + w/2 && y > centerY - h/2 && y < centerY + h/2;
+	}
+	
+}
+
+
+// src/guidemo/MandelbrotDialog.java
+
+package guidemo;
+
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+
+/**
+ * Defines a modal dialog for choosing the part of the Mandelbrot set that is shown as the
+ * background: the center point, the zoom factor and the number of iterations that are
+ * passed to the MandelbrotRenderer constructor.
+ */
+public class MandelbrotDialog extends JDialog {
+
+	private MandelbrotRenderer result;  // Set when the user clicks "OK" with valid input.
+	private final JTextField centerX, centerY, zoom, iterations;
+
+	/**
+	 * Display the dialog box, wait for the user to dismiss it, and return a renderer for
+	 * the view that the user chose, or null if the user cancels the dialog.
+	 * @param parent  A component whose frame is the parent of the dialog box.
+	 * @param initial the view that is shown in the dialog at first; if null, the default view.
+	 */
+	public static MandelbrotRenderer showDialog(Component parent, MandelbrotRenderer initial) {
+		MandelbrotDialog dialog = new MandelbrotDialog(frameAncestor(parent),
+				initial == null ? new MandelbrotRenderer() : initial);
+		dialog.setVisible(true);
+		return dialog.result;
+	}
+
+	private static Frame frameAncestor(Component c) {
+		while (c != null && ! (c instanceof Frame))
+			c = c.getParent();
+		return (Frame)c;
+	}
+
+	/**
+	 * Creates, but does not show, a dialog box.
+	 */
+	private MandelbrotDialog(Frame parent, MandelbrotRenderer initial) {
+		super(parent, "Mandelbrot Background", true);
+		JPanel content = new JPanel();
+		setContentPane(content);
+		content.setBackground(Color.LIGHT_GRAY);
+		content.setLayout(new BorderLayout(3,3));
+		content.setBorder(BorderFactory.createEmptyBorder(6,6,6,6));
+		centerX = new JTextField("" + initial.getCenterX(), 16);
+		centerY = new JTextField("" + initial.getCenterY(), 16);
+		zoom = new JTextField("" + initial.getZoom(), 16);
+		iterations = new JTextField("" + initial.getMaxIterations(), 16);
+		JPanel fields = new JPanel(new GridLayout(4,2,6,3));
+		fields.setOpaque(false);
+		fields.add(new JLabel("Center, real part:"));
+		fields.add(centerX);
+		fields.add(new JLabel("Center, imaginary part:"));
+		fields.add(centerY);
+		fields.add(new JLabel("Zoom:"));
+		fields.add(zoom);
+		fields.add(new JLabel("Iterations:"));
+		fields.add(iterations);
+		content.add(fields,BorderLayout.CENTER);
+		JPanel bottom = new JPanel();
+		content.add(bottom,BorderLayout.SOUTH);
+		JButton defaults = new JButton("Defaults");
+		defaults.addActionListener( new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				centerX.setText("" + MandelbrotRenderer.DEFAULT_CENTER_X);
+				centerY.setText("" + MandelbrotRenderer.DEFAULT_CENTER_Y);
+				zoom.setText("" + MandelbrotRenderer.DEFAULT_ZOOM);
+				iterations.setText("" + MandelbrotRenderer.DEFAULT_MAX_ITERATIONS);
+			}
+		});
+		JButton cancel = new JButton("Cancel");
+		cancel.addActionListener( new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				dispose();
+			}
+		});
+		JButton ok = new JButton("OK");
+		ok.addActionListener( new ActionListener() {
+			public void actionPerformed(ActionEvent evt) {
+				result = readInput();
+				if (result != null)
+					dispose();
+			}
+		});
+		bottom.add(defaults);
+		bottom.add(cancel);
+		bottom.add(ok);
+		getRootPane().setDefaultButton(ok);
+		pack();
+		setLocationRelativeTo(parent);
+	}
+
+	/**
+	 * Make a renderer from the values in the input boxes.  If one of them is not legal,
+	 * an error message is shown and null is returned.
+	 */
+	private MandelbrotRenderer readInput() {
+		double x, y, z;
+		int n;
+		try {
+			x = Double.parseDouble(centerX.getText().trim());
+			y = Double.parseDouble(centerY.getText().trim());
+			z = Double.parseDouble(zoom.getText().trim());
+			n = Integer.parseInt(iterations.getText().trim());
+		}
+		catch (NumberFormatException e) {
+			JOptionPane.showMessageDialog(this, "Please enter a number in each box.");
+			return null;
+		}
+		if (Double.isInfinite(x) || Double.isNaN(x) || Double.isInfinite(y) || Double.isNaN(y)
+				|| Double.isInfinite(z) || !(z > 0)) {
+			JOptionPane.showMessageDialog(this, "The center must be finite, and the zoom must be positive.");
+			return null;
+		}
+		if (n < 1) {
+			JOptionPane.showMessageDialog(this, "There must be at least one iteration.");
+			return null;
+		}
+		return new MandelbrotRenderer(x, y, z, n);
+	}
+
+}
+
+
+// src/guidemo/MandelbrotRenderer.java
+
+package guidemo;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Draws the Mandelbrot set, for use as a background that is computed at the exact size
+ * at which it is shown or saved instead of being stretched from a fixed image.  A
+ * MandelbrotRenderer is immutable.  It describes the part of the plane that is shown,
+ * by a center point and a zoom factor, and the number of iterations that are done for
+ * each pixel.  At zoom 1, the shorter side of the picture covers a distance of 3 in the
+ * plane, so a picture shows the same region at every size; a picture rendered at twice
+ * the size just has more detail.
+ * <p>The picture is divided into square tiles that are computed in parallel in a
+ * ForkJoinPool.  A coarse version, where only one pixel in each step-by-step block is
+ * computed, can be made first and shown while the full picture is computed.
+ * <p>Scaling is measured by the "mandelbrot" benchmark in Benchmarks, which renders the
+ * default view at 800-by-600 with pools of 1, 2, 4, ... threads, up to the number of
+ * processors, and prints the speedup over one thread.  The only measurement so far was
+ * made on a single-core machine, so it shows no scaling:
+ * <pre>
+ *   Threads   Full (ms)   Coarse, step 8 (ms)
+ *   1         57          2.2
+ * </pre>
+ */
+public class MandelbrotRenderer {
+
+	public static final double DEFAULT_CENTER_X = -0.6;
+	public static final double DEFAULT_CENTER_Y = 0;
+	public static final double DEFAULT_ZOOM = 1;
+	public static final int DEFAULT_MAX_ITERATIONS = 256;
+
+	private static final int TILE_SIZE = 64;
+	private static final int PALETTE_SIZE = 1024;
+	private static final int[] palette = makePalette();
+
+	private final double centerX, centerY;
+	private final double zoom;
+	private final int maxIterations;
+
+	/**
+	 * Create a renderer for the default view, which shows the whole set.
+	 */
+	public MandelbrotRenderer() {
+		this(DEFAULT_CENTER_X, DEFAULT_CENTER_Y, DEFAULT_ZOOM, DEFAULT_MAX_ITERATIONS);
+	}
+
+	/**
+	 * Create a renderer for a given view.
+	 * @param centerX the real part of the point at the center of the picture.
+	 * @param centerY the imaginary part of the point at the center of the picture.
+	 * @param zoom the magnification; must be positive.  At zoom 1, the shorter side of the
+	 *    picture covers a distance of 3.
+	 * @param maxIterations the number of iterations after which a point is considered to
+	 *    be in the set.  Deeper zooms need more iterations to show detail.
+	 */
+	public MandelbrotRenderer(double centerX, double centerY, double zoom, int maxIterations) {
+		if (!(zoom > 0))
+			throw new IllegalArgumentException("Zoom must be positive.");
+		if (maxIterations < 1)
+			throw new IllegalArgumentException("Need at least one iteration.");
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.zoom = zoom;
+		this.maxIterations = maxIterations;
+	}
+
+	public double getCenterX() {
+		return centerX;
+	}
+
+	public double getCenterY() {
+		return centerY;
+	}
+
+	public double getZoom() {
+		return zoom;
+	}
+
+	public int getMaxIterations() {
+		return maxIterations;
+	}
+
+	/**
+	 * Render the complete picture at full resolution in the common ForkJoinPool.
+	 * @return an image of type TYPE_INT_RGB.
+	 */
+	public BufferedImage render(int width, int height) {
+		return render(width, height, 1, ForkJoinPool.commonPool(), null);
+	}
+
+	/**
+	 * Render the picture, possibly at reduced resolution.
+	 * @param step the size of the blocks in which only one pixel is computed.  The
+	 *    block is filled with the color of that pixel.  Use 1 for the full picture.
+	 * @param pool the pool that computes the tiles.
+	 * @param canceled checked before each tile is computed; if it returns true, the
+	 *    remaining tiles are skipped and null is returned.  Can be null.
+	 * @return an image of type TYPE_INT_RGB, or null if the rendering was canceled.
+	 */
+	public BufferedImage render(final int width, final int height, final int step,
+			ForkJoinPool pool, final BooleanSupplier canceled) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Width and height must be positive.");
+		if (step < 1)
+			throw new IllegalArgumentException("Step must be positive.");
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final int tileSize = TILE_SIZE * step;  // Keeps the work per tile about the same for every step.
+		final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int y = 0; y < height; y += tileSize) {
+			for (int x = 0; x < width; x += tileSize) {
+				final int tx = x, ty = y;
+				final int tw = Math.min(tileSize, width - x), th = Math.min(tileSize, height - y);
+				tasks.add(new RecursiveAction() {
+					protected void compute() {
+						if (canceled != null && canceled.getAsBoolean())
+							return;
+						int[] rgb = new int[tw * th];
+						fill(rgb, width, height, tx, ty, tw, th, step);
+						image.getRaster().setDataElements(tx, ty, tw, th, rgb);
+					}
+				});
+			}
+		}
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		if (canceled != null && canceled.getAsBoolean())
+			return null;
+		return image;
+	}
+
+	/**
+	 * Render part of a picture of size width by height, at full resolution, in the calling
+	 * thread.  This is used by TiledExporter to compute one tile of a large picture.
+	 * @return an image of type TYPE_INT_RGB and size w by h, containing the rectangle
+	 *    with upper left corner (x,y) of the picture.
+	 */
+	public BufferedImage createRaster(int width, int height, int x, int y, int w, int h) {
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		int[] rgb = new int[w * h];
+		fill(rgb, width, height, x, y, w, h, 1);
+		image.getRaster().setDataElements(0, 0, w, h, rgb);
+		return image;
+	}
+
+	/**
+	 * Compute the colors for a w-by-h rectangle of a width-by-height picture.  With a step
+	 * greater than 1, the pixel at the upper left corner of each step-by-step block is
+	 * computed and copied to the rest of the block.
+	 */
+	private void fill(int[] rgb, int width, int height, int x, int y, int w, int h, int step) {
+		double scale = 3.0 / (zoom * Math.min(width, height));  // Distance in the plane between pixels.
+		for (int j = 0; j < h; j += step) {
+			double ci = centerY - (y + j + 0.5 - height / 2.0) * scale;
+			for (int i = 0; i < w; i += step) {
+				double cr = centerX + (x + i + 0.5 - width / 2.0) * scale;
+				int color = color(cr, ci);
+				int right = Math.min(w, i + step);
+				int bottom = Math.min(h, j + step);
+				for (int jj = j; jj < bottom; jj++) {
+					for (int ii = i; ii < right; ii++)
+						rgb[jj * w + ii] = color;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the color of one point, using the smooth (fractional) escape count so that
+	 * there are no visible bands between iteration counts.  Points in the set are black.
+	 */
+	private int color(double cr, double ci) {
+		double q = (cr - 0.25) * (cr - 0.25) + ci * ci;
+		if (q * (q + (cr - 0.25)) <= 0.25 * ci * ci || (cr + 1) * (cr + 1) + ci * ci <= 0.0625)
+			return 0;  // In the main cardioid or the period-2 bulb, which need all the iterations.
+		double zr = 0, zi = 0, zr2 = 0, zi2 = 0;
+		int n = 0;
+		while (n < maxIterations && zr2 + zi2 <= 256) {  // A large escape radius makes the smooth count accurate.
+			zi = 2 * zr * zi + ci;
+			zr = zr2 - zi2 + cr;
+			zr2 = zr * zr;
+			zi2 = zi * zi;
+			n++;
+		}
+		if (n >= maxIterations)
+			return 0;
+		double mu = n + 1 - Math.log(Math.log(zr2 + zi2) / 2 / Math.log(2)) / Math.log(2);
+		int index = (int)(mu * 8);
+		if (index < 0)
+			index = 0;
+		return palette[index % PALETTE_SIZE];
+	}
+
+	/**
+	 * Make a table of colors that cycles smoothly through deep blue, white, and orange.
+	 */
+	private static int[] makePalette() {
+		int[] colors = new int[PALETTE_SIZE];
+		for (int i = 0; i < PALETTE_SIZE; i++) {
+			double t = (double)i / PALETTE_SIZE;
+			int r = (int)(127.5 * (1 - Math.cos(2 * Math.PI * (t * 3 + 0.00))));
+			int g = (int)(127.5 * (1 - Math.cos(2 * Math.PI * (t * 3 + 0.10))));
+			int b = (int)(127.5 * (1 - Math.cos(2 * Math.PI * (t * 3 + 0.20))));
+			colors[i] = (r << 16) | (g << 8) | b;
+		}
+		return colors;
+	}
+
+	public boolean equals(Object obj) {
+		if (!(obj instanceof MandelbrotRenderer))
+			return false;
+		MandelbrotRenderer other = (MandelbrotRenderer)obj;
+		return centerX == other.centerX && centerY == other.centerY
+				&& zoom == other.zoom && maxIterations == other.maxIterations;
+	}
+
+	public int hashCode() {
+		long bits = Double.doubleToLongBits(centerX) * 31 + Double.doubleToLongBits(centerY);
+		bits = bits * 31 + Double.doubleToLongBits(zoom);
+		return (int)(bits ^ (bits >>> 32)) * 31 + maxIterations;
+	}
+
+}
+
+
+// src/guidemo/Profiling.java
+
+package guidemo;
+
+import java.awt.Rectangle;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the things that take time in the program:  painting a
+ * DrawPanel, phase by phase, loading images, sounds and scenes, and exporting pictures
+ * and scenes.  The events are off unless a recording turns them on, so they cost almost
+ * nothing in normal use; the event objects are not even allocated once the JIT compiler
+ * sees that they are never committed.  Fields such as stamp counts and file sizes are
+ * only computed for events that will be recorded.
+ * <p>The main program of this class writes a JFC settings file that turns on all of the
+ * events with no threshold, so that every paint phase, load and export is recorded.  It
+ * is meant to be used together with the JDK's default settings:
+ * <pre>
+ *   java guidemo.Profiling guidemo.jfc
+ *   java -XX:StartFlightRecording=settings=default,settings=guidemo.jfc,filename=guidemo.jfr guidemo.GuiDemo
+ * </pre>
+ * In JDK Mission Control, the events are in the "GuiDemo" category, and the "Paint Phase"
+ * events can be grouped by phase to see the distribution of times for each phase.
+ */
+public class Profiling {
+
+	/**
+	 * The names of the events, as used in a JFC file.
+	 */
+	private static final String[] EVENT_NAMES = { "guidemo.Paint", "guidemo.PaintPhase", "guidemo.Load", "guidemo.Export" };
+
+	/**
+	 * Write the JFC settings to the file named on the command line, or to standard output.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length > 1) {
+			System.out.println("Usage: java guidemo.Profiling [settings-file.jfc]");
+			return;
+		}
+		if (args.length == 0)
+			writeSettings(System.out);
+		else {
+			try (OutputStream out = new FileOutputStream(args[0])) {
+				writeSettings(out);
+			}
+		}
+	}
+
+	/**
+	 * Write a JFC settings file that enables all of the events defined in this class,
+	 * with a threshold of 0 ms.  The stream is flushed but not closed.
+	 */
+	public static void writeSettings(OutputStream stream) {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		out.println("<configuration version=\"2.0\" label=\"GuiDemo\" description=\"Paint, load and export events for guidemo\" provider=\"guidemo\">");
+		for (String name : EVENT_NAMES) {
+			out.println("  <event name=\"" + name + "\">");
+			out.println("    <setting name=\"enabled\">true</setting>");
+			out.println("    <setting name=\"threshold\">0 ms</setting>");
+			out.println("    <setting name=\"stackTrace\">false</setting>");
+			out.println("  </event>");
+		}
+		out.println("</configuration>");
+		out.flush();
+	}
+
+	/**
+	 * One call of DrawPanel.paintComponent.  The phases of the paint are recorded as
+	 * PaintPhaseEvents, which happen during this event.
+	 */
+	@Name("guidemo.Paint")
+	@Label("Paint")
+	@Category("GuiDemo")
+	@Description("A DrawPanel paints itself")
+	@Enabled(false)
+	@StackTrace(false)
+	public static final class PaintEvent extends Event {
+
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+
+		@Label("Clip Width")
+		int clipWidth;
+
+		@Label("Clip Height")
+		int clipHeight;
+
+		@Label("Visible Layers")
+		int layers;
+
+		@Label("Stamps")
+		@Description("The number of stamps in the visible layers")
+		int stamps;
+
+		/**
+		 * Create an event and begin timing it.
+		 */
+		public static PaintEvent start() {
+			PaintEvent event = new PaintEvent();
+			event.begin();
+			return event;
+		}
+
+		/**
+		 * End the event and commit it, if it is enabled and long enough to be recorded.
+		 * @param clip the clip bounds of the paint, or null if there was no clip.
+		 */
+		public void record(int width, int height, Rectangle clip, StampLayer[] layers) {
+			end();
+			if (!shouldCommit())
+				return;
+			this.width = width;
+			this.height = height;
+			clipWidth = clip == null ? width : clip.width;
+			clipHeight = clip == null ? height : clip.height;
+			for (StampLayer layer : layers) {
+				if (layer.isVisible()) {
+					this.layers++;
+					stamps += layer.getStamps().size();
+				}
+			}
+			commit();
+		}
+	}
+
+	/**
+	 * One phase of a paint:  making the base layer ("base layer"), which includes scaling
+	 * the background ("scale background") and drawing the background, overlay and text
+	 * ("background", "gradient", "text") when the base layer has to be made again; drawing
+	 * one layer of stamps ("stamps"), or its raster if it is baked ("baked layer"); and
+	 * drawing all of a layer's stamps into its raster ("bake").
+	 */
+	@Name("guidemo.PaintPhase")
+	@Label("Paint Phase")
+	@Category("GuiDemo")
+	@Description("One phase of a DrawPanel paint")
+	@Enabled(false)
+	@StackTrace(false)
+	public static final class PaintPhaseEvent extends Event {
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+
+		@Label("Stamps")
+		@Description("The number of stamps drawn or baked, for the stamp phases")
+		int stamps;
+
+		/**
+		 * Create an event and begin timing it.
+		 */
+		public static PaintPhaseEvent start() {
+			PaintPhaseEvent event = new PaintPhaseEvent();
+			event.begin();
+			return event;
+		}
+
+		/**
+		 * End the event and commit it, if it is enabled and long enough to be recorded.
+		 */
+		public void record(String phase, int width, int height, int stamps) {
+			end();
+			if (!shouldCommit())
+				return;
+			this.phase = phase;
+			this.width = width;
+			this.height = height;
+			this.stamps = stamps;
+			commit();
+		}
+	}
+
+	/**
+	 * Reading an image, sound or scene.  The kind is "image resource", "sound resource",
+	 * "background", "image" (an image file for a BatchRenderer scene) or "scene".  The
+	 * size is the size of the image or scene that was read, or -1 if it is not known, as
+	 * for sounds and for images that Toolkit loads later.
+	 */
+	@Name("guidemo.Load")
+	@Label("Load")
+	@Category("GuiDemo")
+	@Description("An image, sound or scene is read")
+	@Enabled(false)
+	@StackTrace(false)
+	public static final class LoadEvent extends Event {
+
+		@Label("Kind")
+		String kind;
+
+		@Label("Source")
+		@Description("The resource path or file name")
+		String source;
+
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+
+		@Label("Bytes Read")
+		@Description("The size of the file, or 0 for resources")
+		@DataAmount
+		long bytes;
+
+		@Label("Cached")
+		@Description("True if the image was found in the ImageCache and was not read")
+		boolean cached;
+
+		/**
+		 * Create an event and begin timing it.
+		 */
+		public static LoadEvent start() {
+			LoadEvent event = new LoadEvent();
+			event.begin();
+			return event;
+		}
+
+		/**
+		 * End the event and commit it, if it is enabled and long enough to be recorded.
+		 */
+		public void record(String kind, String source, int width, int height, long bytes, boolean cached) {
+			end();
+			if (!shouldCommit())
+				return;
+			this.kind = kind;
+			this.source = source;
+			this.width = width;
+			this.height = height;
+			this.bytes = bytes;
+			this.cached = cached;
+			commit();
+		}
+	}
+
+	/**
+	 * Writing a picture or a scene.  The format is an ImageIO format name, or "scene" for
+	 * a SceneFile.  The destination is null when the picture is written to a stream that
+	 * is not a file.
+	 */
+	@Name("guidemo.Export")
+	@Label("Export")
+	@Category("GuiDemo")
+	@Description("A picture or scene is written")
+	@Enabled(false)
+	@StackTrace(false)
+	public static final class ExportEvent extends Event {
+
+		@Label("Format")
+		String format;
+
+		@Label("Destination")
+		String destination;
+
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+
+		@Label("Bytes Written")
+		@DataAmount
+		long bytes;
+
+		/**
+		 * Create an event and begin timing it.
+		 */
+		public static ExportEvent start() {
+			ExportEvent event = new ExportEvent();
+			event.begin();
+			return event;
+		}
+
+		/**
+		 * End the event and commit it, if it is enabled and long enough to be recorded.
+		 */
+		public void record(String format, String destination, int width, int height, long bytes) {
+			end();
+			if (!shouldCommit())
+				return;
+			this.format = format;
+			this.destination = destination;
+			this.width = width;
+			this.height = height;
+			this.bytes = bytes;
+			commit();
+		}
+	}
+
+}
+
+
+// src/guidemo/RenderCheck.java
+
+package guidemo;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Checks that DrawPanel still draws what it used to, and still draws it within a time
+ * and memory budget, so that changes to the rendering code can be made safely.  Each
+ * case builds a Scene, shows it in a DrawPanel without a screen, and renders it with
+ * copyImage.  The first frame, and a frame after the timing runs (when all of the panel's
+ * caches are in use), are compared with a golden image, a PNG file in a directory given
+ * on the command line; a pixel differs if one of its color components is off by more
+ * than TOLERANCE, and the case fails if more than MAX_DIFFERING of the pixels differ.
+ * The time and the memory allocated per frame are measured as in Benchmarks, and the
+ * case fails if either is over its budget.  The memory budget is the size of the copy
+ * plus ALLOCATION_ALLOWANCE, since apart from the copy a frame should make almost no garbage.
+ * <p>Usage:
+ * <pre>
+ *   java guidemo.RenderCheck [-update] [-timescale factor] golden-image-directory
+ * </pre>
+ * With -update, the golden images are written instead of compared; that has to be done
+ * once, and again after a change that is meant to change the picture.  Text is drawn
+ * with the platform's fonts, so the golden images should be made on the same kind of
+ * machine that runs the checks.  The time budgets are multiplied by the timescale, for
+ * slower machines.  When a case fails its image test, the picture that was drawn and a
+ * picture of the differences are written next to the golden image, as name-actual.png
+ * and name-diff.png.  The program exits with status 1 if any case fails.
+ */
+public class RenderCheck {
+
+	/**
+	 * The largest difference in a color component, from 0 to 255, for which two pixels
+	 * are considered the same.
+	 */
+	public static final int TOLERANCE = 2;
+
+	/**
+	 * The largest fraction of the pixels that can differ before an image test fails.
+	 */
+	public static final double MAX_DIFFERING = 0.001;
+
+	/**
+	 * The memory, in bytes, that a frame can allocate in addition to the copied image.
+	 */
+	public static final long ALLOCATION_ALLOWANCE = 64 * 1024;
+
+	/**
+	 * A scene to draw, with its budget for the time to draw one frame.
+	 */
+	private static abstract class Case {
+		final String name;
+		final int width, height;
+		final double millis;
+		Case(String name, int width, int height, double millis) {
+			this.name = name;
+			this.width = width;
+			this.height = height;
+			this.millis = millis;
+		}
+		abstract Scene build();
+	}
+
+	private static final Case[] CASES = {
+		new Case("text", 800, 600, 5) {
+			Scene build() {
+				Scene scene = new Scene();
+				scene.setSize(width, height);
+				scene.setBackgroundColor(new Color(30,60,90));
+				TextItem text = new TextItem();
+				text.setText("Too bad but it's the life you lead\nYou're so ahead of yourself that you forgot what you need");
+				text.setFontSize(30);
+				scene.setTextItem(text);
+				return scene;
+			}
+		},
+		new Case("photo", 800, 600, 5) {
+			Scene build() {
+				return Benchmarks.makeTestScene(width, height, 0);
+			}
+		},
+		new Case("linear-1k", 800, 600, 25) {
+			Scene build() {
+				Scene scene = Benchmarks.makeTestScene(width, height, 1000);
+				scene.setGradientOverlayColor(Color.BLUE);
+				scene.setGradientOverlayMode(GradientOverlay.LINEAR);
+				scene.setGradientOverlayAlpha(0, 180);
+				return scene;
+			}
+		},
+		new Case("radial-layers", 800, 600, 25) {
+			Scene build() {
+				Scene scene = Benchmarks.makeTestScene(width, height, 0);
+				scene.setGradientOverlayColor(Color.ORANGE);
+				scene.setGradientOverlayMode(GradientOverlay.RADIAL);
+				scene.setGradientOverlayAlpha(200, 20);
+				Random rand = new Random(3);
+				List<StampLayer> layers = new ArrayList<StampLayer>();
+				for (int i = 0; i < 3; i++) {
+					BufferedImage stamp = Util.toCompatibleImage(
+							Benchmarks.makeTestImage(BufferedImage.TYPE_INT_ARGB, 8 + 4*i, 8 + 2*i));
+					StampList stamps = StampList.EMPTY;
+					for (int j = 0; j < 1100; j++)  // More than the bake threshold, so the layers are baked.
+						stamps = stamps.plus(stamp, rand.nextInt(width), rand.nextInt(height));
+					layers.add(new StampLayer("Layer " + (i + 1), i != 1, stamps));
+				}
+				scene.setLayers(layers);
+				return scene;
+			}
+		},
+		new Case("multi-stop-horizontal", 800, 600, 10) {
+			Scene build() {
+				Scene scene = Benchmarks.makeTestScene(width, height, 200);
+				scene.setGradientOverlayColor(Color.BLACK);
+				scene.setGradientOverlayMode(GradientOverlay.MULTI_STOP);
+				scene.setGradientOverlayStops(new float[] { 0, 0.4f, 1 },
+						new Color[] { new Color(255,0,0,120), new Color(0,255,0,40), new Color(0,0,255,160) });
+				scene.setHorizontalOverlay(true);
+				TextItem text = scene.getTextItem();
+				text.setJustify(TextItem.LEFT);
+				text.setBold(true);
+				text.setItalic(true);
+				text.setFontSize(28);
+				return scene;
+			}
+		},
+		new Case("baked-100k", 800, 600, 20) {
+			Scene build() {
+				return Benchmarks.makeTestScene(width, height, 100_000);
+			}
+		},
+		new Case("small-5k", 400, 300, 25) {
+			Scene build() {
+				return Benchmarks.makeTestScene(width, height, 5000);
+			}
+		},
+	};
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		boolean update = false;
+		double timeScale = 1;
+		File dir = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-update"))
+					update = true;
+				else if (args[i].equals("-timescale"))
+					timeScale = Double.parseDouble(args[++i]);
+				else if (dir == null && !args[i].startsWith("-"))
+					dir = new File(args[i]);
+				else
+					throw new IllegalArgumentException();
+			}
+			if (dir == null)
+				throw new IllegalArgumentException();
+		}
+		catch (RuntimeException e) {
+			System.out.println("Usage: java guidemo.RenderCheck [-update] [-timescale factor] golden-image-directory");
+			return;
+		}
+		if (update)
+			dir.mkdirs();
+		System.out.printf("%-22s %9s %6s %10s %10s %12s %12s  %s%n",
+				"Scene", "Differ", "Delta", "ms/frame", "Budget", "B/frame", "Budget", "Result");
+		boolean failed = false;
+		for (Case c : CASES) {
+			try {
+				if (!check(c, dir, update, timeScale))
+					failed = true;
+			}
+			catch (IOException e) {
+				System.out.printf("%-22s %s%n", c.name, "FAILED: " + e.getMessage());
+				failed = true;
+			}
+		}
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Draw one case, compare it with its golden image (or write the golden image, if
+	 * update is true), and check its budgets.  Prints a line of the table, and returns
+	 * false if the case failed.
+	 */
+	private static boolean check(Case c, File dir, boolean update, double timeScale) throws IOException {
+		final DrawPanel panel = new DrawPanel();
+		panel.setScene(c.build());
+		panel.setSize(c.width, c.height);
+		BufferedImage first = panel.copyImage();
+		double[] cost = Benchmarks.timeAndAllocation(new Runnable() {
+			public void run() {
+				panel.copyImage();
+			}
+		});
+		BufferedImage last = panel.copyImage();
+		double millisBudget = c.millis * timeScale;
+		long bytesBudget = 4L * c.width * c.height + ALLOCATION_ALLOWANCE;
+		List<String> problems = new ArrayList<String>();
+		File golden = new File(dir, c.name + ".png");
+		int differ = 0, delta = 0;
+		if (update)
+			ImageIO.write(first, "PNG", golden);
+		else if (!golden.exists())
+			problems.add("no golden image; run with -update");
+		else {
+			BufferedImage expected = ImageIO.read(golden);
+			if (expected == null || expected.getWidth() != c.width || expected.getHeight() != c.height)
+				problems.add("golden image is not a " + c.width + "x" + c.height + " PNG");
+			else {
+				double limit = MAX_DIFFERING * c.width * c.height;
+				for (BufferedImage actual : new BufferedImage[] { first, last }) {
+					int[] d = compare(expected, actual, null);
+					if (d[0] > limit && differ <= limit) {  // Save the first frame that fails.
+						BufferedImage diff = new BufferedImage(c.width, c.height, BufferedImage.TYPE_INT_RGB);
+						compare(expected, actual, diff);
+						ImageIO.write(actual, "PNG", new File(dir, c.name + "-actual.png"));
+						ImageIO.write(diff, "PNG", new File(dir, c.name + "-diff.png"));
+					}
+					differ = Math.max(differ, d[0]);
+					delta = Math.max(delta, d[1]);
+				}
+				if (differ > limit)
+					problems.add(differ + " pixels differ from the golden image");
+			}
+		}
+		if (cost[0] > millisBudget)
+			problems.add("over the time budget");
+		if (cost[1] > bytesBudget)
+			problems.add("over the allocation budget");
+		String result = problems.isEmpty() ? (update ? "updated" : "ok") : "FAILED: " + String.join(", ", problems);
+		System.out.printf("%-22s %9d %6d %10.3f %10.3f %12.0f %12d  %s%n",
+				c.name, differ, delta, cost[0], millisBudget, cost[1], bytesBudget, result);
+		return problems.isEmpty();
+	}
+
+	/**
+	 * Compare two images of the same size.  Returns the number of pixels that differ by
+	 * more than TOLERANCE in some component, and the largest difference in any component.
+	 * If diff is not null, it is filled with a dim gray copy of the expected image, with
+	 * the differing pixels in red.
+	 */
+	private static int[] compare(BufferedImage expected, BufferedImage actual, BufferedImage diff) {
+		int width = expected.getWidth();
+		int[] a = new int[width];
+		int[] b = new int[width];
+		int differ = 0, max = 0;
+		for (int y = 0; y < expected.getHeight(); y++) {
+			expected.getRGB(0, y, width, 1, a, 0, width);
+			actual.getRGB(0, y, width, 1, b, 0, width);
+			if (diff == null && Arrays.equals(a, b))
+				continue;
+			for (int x = 0; x < width; x++) {
+				int d = 0;
+				for (int shift = 0; shift < 24; shift += 8)
+					d = Math.max(d, Math.abs(((a[x] >> shift) & 0xFF) - ((b[x] >> shift) & 0xFF)));
+				max = Math.max(max, d);
+				if (d > TOLERANCE)
+					differ++;
+				if (diff != null) {
+					int gray = (((a[x] >> 16) & 0xFF) + ((a[x] >> 8) & 0xFF) + (a[x] & 0xFF)) / 12;
+					diff.setRGB(x, y, d > TOLERANCE ? 0xFF0000 : gray * 0x010101);
+				}
+			}
+		}
+		return new int[] { differ, max };
+	}
+
+}
+
+
+// src/guidemo/ResourceLoader.java
+
+package guidemo;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.swing.Action;
+import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
+
+/**
+ * Loads the image resources that are needed when the program starts, such as toolbar
+ * icons and stamp images, on a pool of background threads, so that the window can be
+ * shown before they have been read.  Each resource is read only once, however many times
+ * it is asked for, and the images go through Util.getBufferedImageResource, so they also
+ * end up in the shared ImageCache.
+ * <p>Users of the loader are told about a loaded image on the event-dispatch thread.  An
+ * Action can be given a blank placeholder icon that is replaced when its image is ready;
+ * since buttons and menu items listen to their Action, a toolbar and a menu made from the
+ * same Actions are both updated.
+ */
+public class ResourceLoader {
+
+	/**
+	 * The size of the placeholder icon that is shown until an icon has been loaded.
+	 */
+	public static final int PLACEHOLDER_SIZE = 32;
+
+	private static final ResourceLoader shared = new ResourceLoader(Runtime.getRuntime().availableProcessors());
+
+	private final ExecutorService executor;
+	private final ConcurrentHashMap<String,CompletableFuture<BufferedImage>> loads =
+			new ConcurrentHashMap<String,CompletableFuture<BufferedImage>>();
+	private final ImageIcon placeholder =
+			new ImageIcon(new BufferedImage(PLACEHOLDER_SIZE, PLACEHOLDER_SIZE, BufferedImage.TYPE_INT_ARGB));
+
+	/**
+	 * Returns the loader that is used by GuiDemo, BackgroundSupport and IconSupport.
+	 */
+	public static ResourceLoader getShared() {
+		return shared;
+	}
+
+	/**
+	 * Create a loader that reads up to threadCount resources at the same time.
+	 */
+	public ResourceLoader(int threadCount) {
+		executor = Executors.newFixedThreadPool(Math.max(1, threadCount), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Resource loader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Start loading an image resource, unless it has already been requested.
+	 * @param pathToResource the path to the resource, as for Util.getBufferedImageResource.
+	 * @return a future whose value is the image, or null if the resource can't be loaded.
+	 */
+	public CompletableFuture<BufferedImage> load(final String pathToResource) {
+		return loads.computeIfAbsent(pathToResource, new Function<String,CompletableFuture<BufferedImage>>() {
+			public CompletableFuture<BufferedImage> apply(String path) {
+				return CompletableFuture.supplyAsync(new Supplier<BufferedImage>() {
+					public BufferedImage get() {
+						return Util.getBufferedImageResource(pathToResource);
+					}
+				}, executor);
+			}
+		});
+	}
+
+	/**
+	 * Load an image resource and pass it to a consumer on the event-dispatch thread.  The
+	 * consumer gets null if the resource can't be loaded.
+	 */
+	public void whenLoaded(String pathToResource, final Consumer<BufferedImage> consumer) {
+		load(pathToResource).thenAccept(new Consumer<BufferedImage>() {
+			public void accept(final BufferedImage img) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						consumer.accept(img);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Returns the blank icon that is shown in place of an icon that has not been loaded
+	 * yet.  It is shared, so that a placeholder doesn't cost an image for each action.
+	 */
+	public ImageIcon getPlaceholder() {
+		return placeholder;
+	}
+
+	/**
+	 * Give an Action a placeholder icon, and replace it with an image resource when that
+	 * has been loaded.  If the resource can't be loaded, the action is left without an icon.
+	 */
+	public void setIcon(final Action action, String pathToResource) {
+		action.putValue(Action.SMALL_ICON, placeholder);
+		whenLoaded(pathToResource, new Consumer<BufferedImage>() {
+			public void accept(BufferedImage img) {
+				action.putValue(Action.SMALL_ICON, img == null ? null : new ImageIcon(img));
+			}
+		});
+	}
+
+	/**
+	 * Returns the paths of all the resources that have been requested.
+	 */
+	public List<String> getPaths() {
+		return new ArrayList<String>(loads.keySet());
+	}
+
+	/**
+	 * Wait until every resource that has been requested so far has been loaded (or has
+	 * failed to load).
+	 */
+	public void awaitAll() {
+		for (CompletableFuture<BufferedImage> f : loads.values())
+			f.join();
+	}
+
+}
+
+
+// src/guidemo/Scene.java
+
+package guidemo;
+
+import java.awt.Color;
+import java.awt.Image;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds everything that a DrawPanel needs to draw a picture:  the size of the picture,
+ * the text, the background, the gradient overlay settings, and the layers of stamped
+ * images.  A Scene can be taken from a DrawPanel with getScene() and shown in a DrawPanel
+ * with setScene().  The properties have the same meanings and default values as the
+ * corresponding properties of DrawPanel.  Note that a Scene holds references to its
+ * TextItem, images, and list of ImageItems, which should not be modified while the
+ * scene is in use.
+ */
+public class Scene {
+
+	private int width = 800;
+	private int height = 600;
+	private TextItem textItem = new TextItem();
+	private Image backgroundImage;
+	private String backgroundSource;
+	private MandelbrotRenderer mandelbrot;
+	private Color backgroundColor = Color.DARK_GRAY;
+	private Color gradientOverlayColor = Color.WHITE;
+	private boolean horizontalOverlay;
+	private int gradientOverlayMode = GradientOverlay.LINEAR;
+	private int gradientOverlayStartAlpha = 50;
+	private int gradientOverlayEndAlpha = 200;
+	private float[] gradientOverlayFractions;
+	private Color[] gradientOverlayColors;
+	private List<StampLayer> layers = Collections.singletonList(new StampLayer("Layer 1"));
+	private StampList visibleStamps;  // The stamps of the visible layers, made by getStamps() when needed.
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public void setSize(int width, int height) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Width and height must be positive.");
+		this.width = width;
+		this.height = height;
+	}
+
+	public TextItem getTextItem() {
+		return textItem;
+	}
+
+	public void setTextItem(TextItem textItem) {
+		if (textItem == null)
+			throw new IllegalArgumentException("Null TextItem not allowed");
+		this.textItem = textItem;
+	}
+
+	public Image getBackgroundImage() {
+		return backgroundImage;
+	}
+
+	public void setBackgroundImage(Image backgroundImage) {
+		this.backgroundImage = backgroundImage;
+	}
+
+	public String getBackgroundSource() {
+		return backgroundSource;
+	}
+
+	/**
+	 * Record where the background image came from:  the path of a resource or the name
+	 * of a file, or null if that is not known.  SceneFile saves this reference instead of
+	 * the image itself.
+	 */
+	public void setBackgroundSource(String backgroundSource) {
+		this.backgroundSource = backgroundSource;
+	}
+
+	public MandelbrotRenderer getMandelbrot() {
+		return mandelbrot;
+	}
+
+	/**
+	 * Set the renderer that draws the background, or null if the background is just the
+	 * background image.  If it is non-null, TiledExporter renders the background at the
+	 * output size, and the background image should be the same picture rendered at the
+	 * size of the scene, for code that only draws the image.
+	 */
+	public void setMandelbrot(MandelbrotRenderer mandelbrot) {
+		this.mandelbrot = mandelbrot;
+	}
+
+	public Color getBackgroundColor() {
+		return backgroundColor;
+	}
+
+	public void setBackgroundColor(Color backgroundColor) {
+		this.backgroundColor = backgroundColor;
+	}
+
+	public Color getGradientOverlayColor() {
+		return gradientOverlayColor;
+	}
+
+	public void setGradientOverlayColor(Color gradientOverlayColor) {
+		this.gradientOverlayColor = gradientOverlayColor;
+	}
+
+	public boolean isHorizontalOverlay() {
+		return horizontalOverlay;
+	}
+
+	public void setHorizontalOverlay(boolean horizontalOverlay) {
+		this.horizontalOverlay = horizontalOverlay;
+	}
+
+	public int getGradientOverlayMode() {
+		return gradientOverlayMode;
+	}
+
+	public void setGradientOverlayMode(int gradientOverlayMode) {
+		this.gradientOverlayMode = gradientOverlayMode;
+	}
+
+	public int getGradientOverlayStartAlpha() {
+		return gradientOverlayStartAlpha;
+	}
+
+	public int getGradientOverlayEndAlpha() {
+		return gradientOverlayEndAlpha;
+	}
+
+	public void setGradientOverlayAlpha(int startAlpha, int endAlpha) {
+		this.gradientOverlayStartAlpha = startAlpha;
+		this.gradientOverlayEndAlpha = endAlpha;
+	}
+
+	public float[] getGradientOverlayFractions() {
+		return gradientOverlayFractions;
+	}
+
+	public Color[] getGradientOverlayColors() {
+		return gradientOverlayColors;
+	}
+
+	/**
+	 * Set the colors for MULTI_STOP mode.  Both arrays can be null, meaning that no stops
+	 * have been set.
+	 */
+	public void setGradientOverlayStops(float[] fractions, Color[] colors) {
+		this.gradientOverlayFractions = fractions;
+		this.gradientOverlayColors = colors;
+	}
+
+	/**
+	 * Returns a GradientOverlay for the overlay settings of this scene, or null if the
+	 * overlay color is null, in the same way as DrawPanel.getGradientOverlay().
+	 */
+	public GradientOverlay getGradientOverlay() {
+		return GradientOverlay.fromSettings(gradientOverlayColor, gradientOverlayMode, gradientOverlayStartAlpha,
+				gradientOverlayEndAlpha, gradientOverlayFractions, gradientOverlayColors, horizontalOverlay);
+	}
+
+	/**
+	 * Returns the stamps of the visible layers, in the order in which they are drawn.
+	 * If there is just one layer, this is its StampList; otherwise it is a StampList made
+	 * by joining the lists of the visible layers, which is made once and kept.
+	 */
+	public List<ImageItem> getStamps() {
+		if (visibleStamps == null) {
+			ArrayList<StampList> lists = new ArrayList<StampList>();
+			for (StampLayer layer : layers) {
+				if (layer.isVisible())
+					lists.add(layer.getStamps());
+			}
+			visibleStamps = lists.isEmpty() ? StampList.EMPTY : StampList.concat(lists);
+		}
+		return visibleStamps;
+	}
+
+	/**
+	 * Replace the layers of this scene by a single visible layer named "Layer 1" that
+	 * holds the given stamps.
+	 */
+	public void setStamps(List<ImageItem> stamps) {
+		if (stamps == null)
+			throw new IllegalArgumentException("Null list not allowed");
+		setLayers(Collections.singletonList(new StampLayer("Layer 1", true, StampList.copyOf(stamps))));
+	}
+
+	/**
+	 * Returns the layers of stamps, from bottom to top.  The list can't be modified.
+	 */
+	public List<StampLayer> getLayers() {
+		return layers;
+	}
+
+	/**
+	 * Set the layers of stamps, from bottom to top.  The list is copied.  There must be
+	 * at least one layer.
+	 */
+	public void setLayers(List<StampLayer> layers) {
+		if (layers == null || layers.isEmpty() || layers.contains(null))
+			throw new IllegalArgumentException("At least one layer is required, and null layers are not allowed");
+		this.layers = Collections.unmodifiableList(new ArrayList<StampLayer>(layers));
+		visibleStamps = null;
+	}
+
+}
+
+
+// src/guidemo/SceneFile.java
+
+package guidemo;
+
+import java.awt.Color;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+/**
+ * Reads and writes Scenes in a compact binary format, so that a picture can be saved and
+ * edited later instead of only being exported as a flat image.  A file contains the text
+ * and its style, the background, the gradient overlay settings, and the layers of stamps.
+ * Each different stamp image is stored once, as PNG data, and the stamps of each layer
+ * are stored as three arrays of ints:  the x coordinates, the y coordinates, and the
+ * numbers of the images.
+ * Files are read through a memory-mapped FileChannel, and the arrays are copied out of
+ * the mapping in bulk, so even a file with a million stamps opens quickly.
+ * <p>The background is stored as a reference (a resource path or file name) when its
+ * source is known, as the settings of a Mandelbrot background, or otherwise as PNG data.
+ * A background that can't be found when the file is read is left out.
+ * <p>The layout, in big-endian byte order, is:
+ * <pre>
+ *   int    MAGIC ("SAYS")
+ *   int    format version (VERSION)
+ *   int    width, height
+ *   string text, font name        (each an int byte count and UTF-8 bytes)
+ *   int    font size, justify
+ *   byte   bold, italic
+ *   double line height multiplier
+ *   color  text color             (a byte, 0 for null, then an ARGB int if the byte is 1)
+ *   color  background color
+ *   byte   background kind        (BG_NONE, BG_REFERENCE, BG_IMAGE, or BG_MANDELBROT)
+ *          followed by a string, a block of PNG data (an int byte count and the bytes),
+ *          or the center x and y and zoom (doubles) and iterations (int)
+ *   color  gradient overlay color
+ *   int    gradient mode, start alpha, end alpha
+ *   byte   horizontal
+ *   int    number of gradient stops, or -1 for none; then that many floats and ARGB ints
+ *   int    number of stamp images; then a block of PNG data for each
+ *   int    number of layers; then for each layer, from the bottom up,
+ *             string name, byte visible, int number of stamps
+ *   then for each layer, the x array, the y array, and the image number array
+ * </pre>
+ * A reader refuses files with a version number that is higher than its own, and must
+ * keep reading every older version.  Version 1 had no layers; after the stamp images
+ * it had the number of stamps and then the three arrays, for a single visible layer.
+ */
+public class SceneFile {
+
+	public static final int MAGIC = 0x53415953;  // "SAYS"
+	public static final int VERSION = 2;
+
+	private static final byte BG_NONE = 0;
+	private static final byte BG_REFERENCE = 1;
+	private static final byte BG_IMAGE = 2;
+	private static final byte BG_MANDELBROT = 3;
+
+	private SceneFile() {
+	}
+
+	/**
+	 * Write a scene to a file.  The data is written to a temporary file in the same
+	 * directory, which then replaces the file, so that a failed write leaves an existing
+	 * file as it was.
+	 * @throws IOException if the file can't be written.
+	 */
+	public static void write(Scene scene, File file) throws IOException {
+		Profiling.ExportEvent event = Profiling.ExportEvent.start();
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(headerBytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(scene.getWidth());
+		out.writeInt(scene.getHeight());
+		TextItem text = scene.getTextItem();
+		writeString(out, text.getText());
+		writeString(out, text.getFontName());
+		out.writeInt(text.getFontSize());
+		out.writeInt(text.getJustify());
+		out.writeBoolean(text.isBold());
+		out.writeBoolean(text.isItalic());
+		out.writeDouble(text.getLineHeightMultiplier());
+		writeColor(out, text.getColor());
+		writeColor(out, scene.getBackgroundColor());
+		MandelbrotRenderer mandelbrot = scene.getMandelbrot();
+		if (mandelbrot != null) {
+			out.writeByte(BG_MANDELBROT);
+			out.writeDouble(mandelbrot.getCenterX());
+			out.writeDouble(mandelbrot.getCenterY());
+			out.writeDouble(mandelbrot.getZoom());
+			out.writeInt(mandelbrot.getMaxIterations());
+		}
+		else if (scene.getBackgroundSource() != null) {
+			out.writeByte(BG_REFERENCE);
+			writeString(out, scene.getBackgroundSource());
+		}
+		else if (scene.getBackgroundImage() != null) {
+			out.writeByte(BG_IMAGE);
+			writeImage(out, toBufferedImage(scene.getBackgroundImage()));
+		}
+		else
+			out.writeByte(BG_NONE);
+		writeColor(out, scene.getGradientOverlayColor());
+		out.writeInt(scene.getGradientOverlayMode());
+		out.writeInt(scene.getGradientOverlayStartAlpha());
+		out.writeInt(scene.getGradientOverlayEndAlpha());
+		out.writeBoolean(scene.isHorizontalOverlay());
+		float[] fractions = scene.getGradientOverlayFractions();
+		Color[] colors = scene.getGradientOverlayColors();
+		if (fractions == null || colors == null)
+			out.writeInt(-1);
+		else {
+			out.writeInt(fractions.length);
+			for (int i = 0; i < fractions.length; i++) {
+				out.writeFloat(fractions[i]);
+				out.writeInt(colors[i].getRGB());
+			}
+		}
+		List<StampLayer> layers = scene.getLayers();
+		int total = 0;
+		for (StampLayer layer : layers)
+			total += layer.getStamps().size();
+		ByteBuffer arrays = ByteBuffer.allocate(12 * total);  // Big-endian, like DataOutputStream.
+		final IntBuffer ints = arrays.asIntBuffer();
+		final IdentityHashMap<BufferedImage,Integer> numbers = new IdentityHashMap<BufferedImage,Integer>();
+		final List<BufferedImage> images = new ArrayList<BufferedImage>();
+		for (StampLayer layer : layers) {
+			StampList stamps = layer.getStamps();
+			final int count = stamps.size();
+			final int start = ints.position();
+			stamps.forEachStamp(new StampList.Visitor() {
+				int i;
+				public void visit(BufferedImage image, int centerX, int centerY, int order) {
+					Integer n = numbers.get(image);
+					if (n == null) {
+						n = images.size();
+						numbers.put(image, n);
+						images.add(image);
+					}
+					ints.put(start + i, centerX);
+					ints.put(start + count + i, centerY);
+					ints.put(start + 2*count + i, n);
+					i++;
+				}
+			});
+			ints.position(start + 3*count);
+		}
+		out.writeInt(images.size());
+		for (BufferedImage img : images)
+			writeImage(out, img);
+		out.writeInt(layers.size());
+		for (StampLayer layer : layers) {
+			writeString(out, layer.getName());
+			out.writeBoolean(layer.isVisible());
+			out.writeInt(layer.getStamps().size());
+		}
+		out.flush();
+		Path target = file.getAbsoluteFile().toPath();
+		Path temp = target.resolveSibling(file.getName() + ".tmp");  // Not createTempFile, which makes a private file.
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.wrap(headerBytes.toByteArray());
+				while (header.hasRemaining())
+					channel.write(header);
+				while (arrays.hasRemaining())
+					channel.write(arrays);
+				channel.force(true);
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			Files.deleteIfExists(temp);  // Only still there if the write or the move failed.
+		}
+		event.record("scene", file.getPath(), scene.getWidth(), scene.getHeight(), headerBytes.size() + arrays.capacity());
+	}
 
-        fileChooser = new SimpleFileChooser();
-        try { // I'd like to use the Desktop folder as the initial folder in the file chooser.
-            String userDir = System.getProperty("user.home");
-            if (userDir != null) {
-                File desktop = new File(userDir, "Desktop");
-                if (desktop.isDirectory())
-                    fileChooser.setDefaultDirectory(desktop);
-            }
-        } catch (Exception ignored) {
-        }
+	/**
+	 * Read a scene from a file.  Stamp images that are the same in the file are the same
+	 * BufferedImage in the scene.  The scene's list of stamps is a StampList, which is
+	 * made directly from the arrays in the file.
+	 * @throws IOException if the file can't be read or is not a scene file of a version
+	 *    that this class can read.
+	 */
+	public static Scene read(File file) throws IOException {
+		Profiling.LoadEvent event = Profiling.LoadEvent.start();
+		MappedByteBuffer in;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());  // Stays valid after the channel is closed.
+		}
+		try {
+			Scene scene = read(in);
+			event.record("scene", file.getPath(), scene.getWidth(), scene.getHeight(), in.capacity(), false);
+			return scene;
+		}
+		catch (RuntimeException e) {  // BufferUnderflowException, IllegalArgumentException, ...
+			throw new IOException("Not a valid scene file: " + file, e);
+		}
+	}
 
-        JPanel content = new JPanel();  // To hold the content of the window.
-        content.setBackground(Color.LIGHT_GRAY);
-        content.setLayout(new BorderLayout());
-        setContentPane(content);
+	private static Scene read(ByteBuffer in) throws IOException {
+		if (in.remaining() < 8 || in.getInt() != MAGIC)
+			throw new IOException("Not a scene file");
+		int version = in.getInt();
+		if (version < 1 || version > VERSION)
+			throw new IOException("Unsupported scene file version " + version);
+		Scene scene = new Scene();
+		scene.setSize(in.getInt(), in.getInt());
+		TextItem text = new TextItem();
+		text.setText(readString(in));
+		text.setFontName(readString(in));
+		text.setFontSize(in.getInt());
+		text.setJustify(in.getInt());
+		text.setBold(in.get() != 0);
+		text.setItalic(in.get() != 0);
+		text.setLineHeightMultiplier(in.getDouble());
+		text.setColor(readColor(in));
+		scene.setTextItem(text);
+		scene.setBackgroundColor(readColor(in));
+		byte kind = in.get();
+		if (kind == BG_MANDELBROT) {
+			MandelbrotRenderer mandelbrot = new MandelbrotRenderer(in.getDouble(), in.getDouble(), in.getDouble(), in.getInt());
+			scene.setMandelbrot(mandelbrot);
+			scene.setBackgroundImage(mandelbrot.render(scene.getWidth(), scene.getHeight()));
+		}
+		else if (kind == BG_REFERENCE) {
+			String source = readString(in);
+			BufferedImage img = readReference(source, scene.getWidth(), scene.getHeight());
+			if (img != null) {
+				scene.setBackgroundImage(img);
+				scene.setBackgroundSource(source);
+			}
+		}
+		else if (kind == BG_IMAGE)
+			scene.setBackgroundImage(readImage(in));
+		else if (kind != BG_NONE)
+			throw new IOException("Unknown background kind " + kind);
+		scene.setGradientOverlayColor(readColor(in));
+		scene.setGradientOverlayMode(in.getInt());
+		int startAlpha = in.getInt();
+		scene.setGradientOverlayAlpha(startAlpha, in.getInt());
+		scene.setHorizontalOverlay(in.get() != 0);
+		int stopCount = in.getInt();
+		if (stopCount < -1 || stopCount > in.remaining() / 8)
+			throw new IOException("Bad number of gradient stops " + stopCount);
+		if (stopCount >= 0) {
+			float[] fractions = new float[stopCount];
+			Color[] colors = new Color[stopCount];
+			for (int i = 0; i < stopCount; i++) {
+				fractions[i] = in.getFloat();
+				colors[i] = new Color(in.getInt(), true);
+			}
+			scene.setGradientOverlayStops(fractions, colors);
+		}
+		BufferedImage[] images = new BufferedImage[readCount(in, 4)];  // Each image has at least its byte count.
+		for (int i = 0; i < images.length; i++)
+			images[i] = readImage(in);
+		String[] names;
+		boolean[] visible;
+		int[] counts;
+		if (version == 1) {
+			names = new String[] { "Layer 1" };
+			visible = new boolean[] { true };
+			counts = new int[] { readCount(in, 12) };
+		}
+		else {
+			int layerCount = readCount(in, 9);  // A name's byte count, the visible flag and a stamp count.
+			names = new String[layerCount];
+			visible = new boolean[layerCount];
+			counts = new int[layerCount];
+			for (int i = 0; i < layerCount; i++) {
+				names[i] = readString(in);
+				visible[i] = in.get() != 0;
+				counts[i] = readCount(in, 12);
+			}
+		}
+		long total = 0;
+		for (int count : counts)
+			total += count;
+		if (total > in.remaining() / 12)
+			throw new IOException("The scene file is too short for its stamps");
+		IntBuffer ints = in.slice().asIntBuffer();
+		List<StampLayer> layers = new ArrayList<StampLayer>();
+		for (int i = 0; i < names.length; i++) {
+			int[] xs = new int[counts[i]];
+			int[] ys = new int[counts[i]];
+			int[] imageNumbers = new int[counts[i]];
+			ints.get(xs);
+			ints.get(ys);
+			ints.get(imageNumbers);
+			layers.add(new StampLayer(names[i], visible[i], StampList.of(images, imageNumbers, xs, ys)));
+		}
+		scene.setLayers(layers);
+		return scene;
+	}
 
-        // Create the DrawPanel that fills most of the window, and customize it.
+	/**
+	 * Load a background from a resource or, if there is no such resource, from a file,
+	 * the same way that BatchRenderer finds backgrounds.  Returns null if neither exists.
+	 */
+	private static BufferedImage readReference(String source, int width, int height) {
+		BufferedImage img = Util.getBufferedImageResource(source);
+		if (img != null)
+			return img;
+		try {
+			return BackgroundLoader.read(new File(source), width, height);
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
 
-        drawPanel = new DrawPanel();
-        drawPanel.getTextItem().setText(
-                "Too bad but it's the life you lead\n" +
-                "You're so ahead of yourself that you forgot what you need\n" +
-                "Though you can see when you're wrong, you know\n" +
-                "You can't always see when you're right. you're right"
-        );
-        drawPanel.getTextItem().setFontSize(24);
-        drawPanel.getTextItem().setJustify(TextItem.LEFT);
-        drawPanel.setBackgroundImage(Util.getImageResource("resources/images/earthrise.jpeg"));
-        content.add(drawPanel, BorderLayout.CENTER);
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
 
-        // Add change background toolbar to the NORTH position of the layout
-        BackgroundSupport bkSupport = new BackgroundSupport(drawPanel, fileChooser, gradientOverlayCheckbox);
-        content.add(bkSupport.makeToolbar(), BorderLayout.NORTH);
+	/**
+	 * Read the number of items in a list that follows in the file, where each item takes
+	 * at least elementSize bytes.  A number that is negative or too big for the rest of
+	 * the file is refused before any array is made for the items, so that a damaged file
+	 * can't make the reader run out of memory.
+	 */
+	private static int readCount(ByteBuffer in, int elementSize) throws IOException {
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining() / elementSize)
+			throw new IOException("Bad count " + count + " in the scene file");
+		return count;
+	}
 
-        // Add an icon toolbar to the SOUTH position of the layout
+	private static String readString(ByteBuffer in) throws IOException {
+		byte[] bytes = new byte[readCount(in, 1)];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
 
-        IconSupport iconSupport = new IconSupport(drawPanel);
-        content.add(iconSupport.createToolbar(true), BorderLayout.SOUTH);
+	private static void writeColor(DataOutputStream out, Color c) throws IOException {
+		if (c == null)
+			out.writeByte(0);
+		else {
+			out.writeByte(1);
+			out.writeInt(c.getRGB());
+		}
+	}
 
-        // Create the menu bar and add it to the frame.  The TextMenu is defined by
-        // a separate class. The other menus are created in this class.
+	private static Color readColor(ByteBuffer in) {
+		if (in.get() == 0)
+			return null;
+		return new Color(in.getInt(), true);
+	}
 
-        JMenuBar menuBar = new JMenuBar();
-        menuBar.add(makeFileMenu());
-        textMenu = new TextMenu(drawPanel);
-        menuBar.add(textMenu);
-        JMenu backgroundMenu = new BackgroundSupport(drawPanel, fileChooser, gradientOverlayCheckbox).makeMenu();
-        menuBar.add(backgroundMenu);
-        JMenu stampersMenu = new IconSupport(drawPanel).createMenu();
-        menuBar.add(stampersMenu);
-        setJMenuBar(menuBar);
+	private static void writeImage(DataOutputStream out, BufferedImage img) throws IOException {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		new ImageEncoder("PNG").write(img, png, null);
+		out.writeInt(png.size());
+		png.writeTo(out);
+	}
 
-        // Set the size of the window and its position.
+	private static BufferedImage readImage(ByteBuffer in) throws IOException {
+		byte[] bytes = new byte[readCount(in, 1)];
+		in.get(bytes);
+		BufferedImage img = ImageIO.read(new ByteArrayInputStream(bytes));
+		if (img == null)
+			throw new IOException("Can't decode an image in the scene file");
+		return Util.toCompatibleImage(img);
+	}
 
-        pack();  // Size the window to fit its content.
-        Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-        setLocation((screenSize.width - getWidth()) / 2, 50);
-    } // end constructor
+	private static BufferedImage toBufferedImage(Image image) {
+		if (image instanceof BufferedImage)
+			return (BufferedImage)image;
+		Image loaded = new ImageIcon(image).getImage();  // Makes sure that the image has been completely loaded.
+		BufferedImage copy = new BufferedImage(loaded.getWidth(null), loaded.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+		copy.createGraphics().drawImage(loaded, 0, 0, null);
+		return copy;
+	}
 
-    /**
-     * Create the "File" menu from actions that are defined later in this class.
-     */
-    private JMenu makeFileMenu() {
-        JMenu menu = new JMenu("File");
-        menu.add(newPictureAction);
-        menu.add(saveImageAction);
-        menu.addSeparator();
-        menu.add(quitAction);
-        return menu;
-    }
+}
 
-    /**
-     * Create the "Background" menu, using objects of type ChooseBackgroundAction,
-     * a class that is defined later in this file.
-     */
 
-    private AbstractAction newPictureAction = new AbstractAction("New", Util.iconFromResource("resources/action_icons/fileopen.png")) {
-        public void actionPerformed(ActionEvent evt) {
-            drawPanel.clear();
-            gradientOverlayCheckbox.setSelected(true);
-            textMenu.setDefaults();
-        }
-    };
+// src/guidemo/SimpleFileChooser.java
 
-    private AbstractAction quitAction = new AbstractAction("Quit", Util.iconFromResource("resources/action_icons/exit.png")) {
-        public void actionPerformed(ActionEvent evt) {
-            System.exit(0);
-        }
-    };
+package guidemo;
+
+
+import java.awt.Component;
+import java.io.File;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+
+/**
+ * This class provides a slightly simplified interface to one of Java's
+ * standard JFileChooser dialogs.  An object of type SimpleFileChooser
+ * has methods that allow the user to select files for input or output.
+ * If the object is used several times, the same JFileChooser is used
+ * each time.  By default, the dialog box is set to the user's home
+ * directory the first time it is used, and after that it remembers the
+ * current directory between one use and the next.  However, methods
+ * are provided for setting the current directory.  (Note:  On Windows,
+ * the user's home directory will probably mean the user's "My Documents"
+ * directory".)
+ */
+public class SimpleFileChooser {
+
+	private JFileChooser dialog;  // The dialog, which is created when needed.
+
+	/**
+	 * Reset the default directory in the dialog box to the user's home 
+	 * directory.  The next time the dialog appears, it will show the 
+	 * contents of that directory.
+	 */
+	public void setDefaultDirectory() {
+		if (dialog != null)
+			dialog.setCurrentDirectory(null);
+	}
+
+	/**
+	 * Set the default directory for the dialog box.  The next time the 
+	 * dialog appears, it will show the contents of that directory.
+	 * @param directoryName A File object that specifies the directory name.
+	 * If this name is null, then the user's home directory will be used.
+	 */
+	public void setDefaultDirectory(String directoryName) {
+		if (dialog == null)
+			dialog = new JFileChooser();
+		dialog.setCurrentDirectory(new File(directoryName));
+	}
+
+	/**
+	 * Set the default directory for the dialog box.  The next time the 
+	 * dialog appears, it will show the contents of that directory.
+	 * @param directoryName The name of the new default directory.  If the 
+	 * name is null, then the user's home directory will be used.
+	 */
+	public void setDefaultDirectory(File directory) {
+		if (dialog == null)
+			dialog = new JFileChooser();
+		dialog.setCurrentDirectory(directory);
+	}
+	
+	/**
+	 * Show a dialog box where the user can select a file for reading.
+	 * This method simply returns <code>getInputFile(null,null)</code>.
+	 * @see #getInputFile(Component, String)
+	 * @return the selected file, or null if the user did not select a file.
+	 */
+	public File getInputFile() {
+		return getInputFile(null,null);
+	}
+
+	/**
+	 * Show a dialog box where the user can select a file for reading.
+	 * This method simply returns <code>getInputFile(parent,null)</code>.
+	 * @see #getInputFile(Component, String)
+	 * @return the selected file, or null if the user did not select a file.
+	 */
+	public File getInputFile(Component parent) {
+		return getInputFile(parent,null);
+	}
+
+	/**
+	 * Show a dialog box where the user can select a file for reading.
+	 * If the user cancels the dialog by clicking its "Cancel" button or
+	 * the Close button in the title bar, then the return value of this
+	 * method is null.  Otherwise, the return value is the selected file.
+	 * Note that the file has to exist, but it is not guaranteed that the
+	 * user is allowed to read the file.
+	 * @param parent If the parent is non-null, then the window that contains
+	 * the parent component becomes the parent window of the dialog box.  This
+	 * means that the window is "blocked" until the dialog is dismissed.  Also,
+	 * the dialog box's position on the screen should be based on the position of
+	 * the window.  Generally, you should pass your application's main window or
+	 * panel as the value of this parameter.
+	 * @param dialogTitle  a title to be displayed in the title bar of the dialog
+	 * box.  If the value of this parameter is null, then the dialog title will
+	 * be "Select Input File".
+	 * @return the selected file, or null if the user did not select a file.
+	 */
+	public File getInputFile(Component parent, String dialogTitle) {
+		if (dialog == null)
+			dialog = new JFileChooser();
+		if (dialogTitle != null)
+			dialog.setDialogTitle(dialogTitle);
+		else
+			dialog.setDialogTitle("Select Input File");
+		int option = dialog.showOpenDialog(parent);
+		if (option != JFileChooser.APPROVE_OPTION)
+			return null;  // User canceled or clicked the dialog's close box.
+		File selectedFile = dialog.getSelectedFile();
+		return selectedFile;
+	}
+	
+	/**
+	 * Show a dialog box where the user can select a file for writing.
+	 * This method simply calls <code>getOutputFile(null,null,null)</code>
+	 * @see #getOutputFile(Component, String, String)
+	 * @return the selcted file, or null if no file was selected.
+	 */
+	public File getOutputFile() {
+		return getOutputFile(null,null,null);
+	}
+
+	/**
+	 * Show a dialog box where the user can select a file for writing.
+	 * This method simply calls <code>getOutputFile(null,null,null)</code>
+	 * @see #getOutputFile(Component, String, String)
+	 * @return the selcted file, or null if no file was selected.
+	 */
+	public File getOutputFile(Component parent) {
+		return getOutputFile(parent,null,null);
+	}
+
+	/**
+	 * Show a dialog box where the user can select a file for writing.
+	 * This method calls <code>getOutputFile(parent,dialogTitle,null)</code>
+	 * @see #getOutputFile(Component, String, String)
+	 * @return the selcted file, or null if no file was selected.
+	 */
+	public File getOutputFile(Component parent, String dialogTitle) {
+		return getOutputFile(parent,dialogTitle,null);
+	}
+
+
+	/**
+	 * Show a dialog box where the user can select a file for writing.
+	 * If the user cancels the dialog by clicking its "Cancel" button or
+	 * the Close button in the title bar, then the return value of this
+	 * method is null.  A non-null value indicates that the user specified
+	 * a file name and that, if the file exists, then the user wants to
+	 * replace that file.  (If the user selects a file that already exists, 
+	 * then the user will be asked whether to replace the existing file.)
+	 * Note that it is not quaranteed that the selected file is actually
+	 * writable; the user might not have permission to create or modify the file.
+	 * @param parent If the parent is non-null, then the window that contains
+	 * the parent component becomes the parent window of the dialog box.  This
+	 * means that the window is "blocked" until the dialog is dismissed.  Also,
+	 * the dialog box's position on the screen should be based on the position of
+	 * the window.  Generally, you should pass your application's main window or
+	 * panel as the value of this parameter.
+	 * @param dialogTitle  a title to be displayed in the title bar of the dialog
+	 * box.  If the value of this parameter is null, then the dialog title will
+	 * be "Select Input File".
+	 * @param defaultFile when the dialog appears, this name will be filled in
+	 * as the name of the selected file.  If the value of this parameter is null,
+	 * then the file name box will be empty.
+	 * @return the selected file, or null if the user did not select a file.
+	 */
+	public File getOutputFile(Component parent, 
+	                                 String dialogTitle, String defaultFile) {
+		if (dialog == null)
+			dialog = new JFileChooser();
+		if (dialogTitle != null)
+			dialog.setDialogTitle(dialogTitle);
+		else
+			dialog.setDialogTitle("Select Output File");
+		if (defaultFile == null)
+			dialog.setSelectedFile(null);
+		else
+			dialog.setSelectedFile(new File(defaultFile));
+		while (true) {
+			int option = dialog.showSaveDialog(parent);
+			if (option != JFileChooser.APPROVE_OPTION)
+				return null;  // User canceled or clicked the dialog's close box.
+			File selectedFile = dialog.getSelectedFile();
+			if ( ! selectedFile.exists() ) 
+				return selectedFile;
+			else {  // Ask the user whether to replace the file.
+				int response = JOptionPane.showConfirmDialog( parent,
+						"The file \"" + selectedFile.getName()
+						+ "\" already exists.\nDo you want to replace it?", 
+						"Confirm Save",
+						JOptionPane.YES_NO_CANCEL_OPTION, 
+						JOptionPane.WARNING_MESSAGE );
+				if (response == JOptionPane.CANCEL_OPTION)
+					return null;  // User does not want to select a file.
+				if (response == JOptionPane.YES_OPTION)
+					return selectedFile;  // User wants to replace the file
+				// A "No" response will cause the file dialog to be shown again.
+			}
+		}
+	}
 
-    private AbstractAction saveImageAction = new AbstractAction("Save Image...", Util.iconFromResource("resources/action_icons/filesave.png")) {
-        public void actionPerformed(ActionEvent evt) {
-            File f = fileChooser.getOutputFile(drawPanel, "Select Output File", "saying.jpeg");
-            if (f != null) {
-                try {
-                    BufferedImage img = drawPanel.copyImage();
-                    String format;
-                    String fileName = f.getName().toLowerCase();
-                    if (fileName.endsWith(".png"))
-                        format = "PNG";
-                    else if (fileName.endsWith(".jpeg") || fileName.endsWith(".jpg"))
-                        format = "JPEG";
-                    else {
-                        JOptionPane.showMessageDialog(drawPanel,
-                                "The output file name must end wth\n.png or .jpeg.");
-                        return;
-                    }
-                    ImageIO.write(img, format, f);
-                } catch (Exception e) {
-                    JOptionPane.showMessageDialog(drawPanel, "Sorry, the image could not be saved.");
-                }
-            }
-        }
-    };
 }
 
 
-// src/guidemo/IconSupport.java
+// src/guidemo/StampIndex.java
 
 package guidemo;
 
-import java.awt.*;
-import java.awt.event.*;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-
-import javax.swing.*;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
- * Contains a set of Actions that can be used to select images that can
- * be added to a DrawPanel (in the form of ImageItems).  Can create a
- * toolbar containing a button for each Action in the set.  A button
- * shows an ImageIcon with the image that is selected by that button.
- * Clicking one of the buttons also sets the cursor in the DrawPanel
- * to be a (rough) copy of the image.
+ * A spatial index for the stamps of a StampList, used to find the stamps at a point or
+ * in a rectangle without looking at every stamp.  The index is a uniform grid of square
+ * cells; each cell holds the orders and bounds of the stamps whose bounds overlap that
+ * cell, in parallel int arrays sorted by order.  Stamps with higher orders are on top,
+ * just as they are when a StampList is drawn.  A stamp is identified by its order (see
+ * StampList), so the index stays correct for any list that contains the same stamps,
+ * and no objects are kept for the stamps themselves.
  */
-public class IconSupport {
+public class StampIndex {
 
-    private final DrawPanel panel;
-    private final ArrayList<BufferedImage> iconImages = new ArrayList<>();
-    private final ArrayList<Action> actions = new ArrayList<>();
+	private static final int CELL_SIZE = 64;  // Width and height of a grid cell, in pixels.
 
-    public IconSupport(DrawPanel owner) {
-        panel = owner;
-        String[] iconNames = {"bell", "camera", "flower", "star", "check", "crossout",
-                "tux", "bomb", "keyboard", "lightbulb", "tv"};
-        for (String name : iconNames) {
-            BufferedImage img = Util.getBufferedImageResource("resources/icons/" + name + ".png");
-            if (img != null) {
-                iconImages.add(img);
-                actions.add(new SelectIconAction(name, iconImages.size() - 1));
-            }
-        }
-        actions.add(new NoIconAction());
-    }
+	/**
+	 * The stamps that overlap one grid cell, sorted by order.  The bounds of stamp i are
+	 * in bounds[4*i] to bounds[4*i+3]:  left, top, right, bottom, with right and bottom
+	 * exclusive.  The arrays grow by doubling.
+	 */
+	private static class Cell {
+		int[] orders = new int[4];
+		int[] bounds = new int[16];
+		int size;
+	}
 
-	JMenu createMenu() {
-		JMenu stampersMenu = new JMenu("Stampers");
-    	for (Action action: actions) {
-    		stampersMenu.add(action);
+	private final HashMap<Long,Cell> cells = new HashMap<Long,Cell>();
+	private int size;
+
+	/**
+	 * Add a stamp to the index.  The order should be the order of the stamp in its
+	 * StampList, and must not be the order of another stamp in the index.
+	 */
+	public void add(ImageItem item, int order) {
+		Rectangle r = item.getBounds();
+		add(r.x, r.y, r.x + r.width, r.y + r.height, order);
+	}
+
+	/**
+	 * Add all of the stamps of a list to the index.
+	 */
+	public void addAll(StampList list) {
+		list.forEachStamp(new StampList.Visitor() {
+			public void visit(BufferedImage image, int centerX, int centerY, int order) {
+				int left = centerX - image.getWidth()/2;
+				int top = centerY - image.getHeight()/2;
+				add(left, top, left + image.getWidth(), top + image.getHeight(), order);
+			}
+		});
+	}
+
+	private void add(int left, int top, int right, int bottom, int order) {
+		for (int row = cell(top); row <= cell(bottom - 1); row++) {
+			for (int col = cell(left); col <= cell(right - 1); col++) {
+				Long key = key(col,row);
+				Cell c = cells.get(key);
+				if (c == null) {
+					c = new Cell();
+					cells.put(key, c);
+				}
+				if (c.size == c.orders.length) {
+					c.orders = Arrays.copyOf(c.orders, 2 * c.size);
+					c.bounds = Arrays.copyOf(c.bounds, 8 * c.size);
+				}
+				int i = c.size;
+				if (i > 0 && c.orders[i - 1] > order) {  // Not on top, as when an erased stamp is put back.
+					i = -Arrays.binarySearch(c.orders, 0, c.size, order) - 1;
+					System.arraycopy(c.orders, i, c.orders, i + 1, c.size - i);
+					System.arraycopy(c.bounds, 4*i, c.bounds, 4*i + 4, 4*(c.size - i));
+				}
+				c.orders[i] = order;
+				c.bounds[4*i] = left;
+				c.bounds[4*i + 1] = top;
+				c.bounds[4*i + 2] = right;
+				c.bounds[4*i + 3] = bottom;
+				c.size++;
+			}
 		}
-		return stampersMenu;
+		size++;
 	}
 
-    /**
-     * Return a toolbar containing buttons representing the images that can be added
-     * to the DrawPanel.
-     *
-     * @param horizontal a value of JToolBar.HORIZONTAL or JToolBar.VERTICAL tells
-     *                   whether the toolbar is meant to have horizontal or vertical orientation.
-     */
-    public JToolBar createToolbar(boolean horizontal) {
-        JToolBar tbar = new JToolBar(horizontal ? JToolBar.HORIZONTAL : JToolBar.VERTICAL);
-        for (int i = 0; i < actions.size() - 1; i++)
-            tbar.add(actions.get(i));
-        tbar.addSeparator(new Dimension(15, 0));
-        tbar.add(actions.get(actions.size() - 1));
-        return tbar;
-    }
+	/**
+	 * Remove a stamp from the index.  The item gives the position and image of the stamp,
+	 * which must be the same as when it was added.  Does nothing if the stamp is not in
+	 * the index.
+	 */
+	public void remove(ImageItem item, int order) {
+		Rectangle r = item.getBounds();
+		boolean found = false;
+		for (int row = cell(r.y); row <= cell(r.y + r.height - 1); row++) {
+			for (int col = cell(r.x); col <= cell(r.x + r.width - 1); col++) {
+				Long key = key(col,row);
+				Cell c = cells.get(key);
+				int i = c == null ? -1 : Arrays.binarySearch(c.orders, 0, c.size, order);
+				if (i < 0)
+					continue;
+				found = true;
+				System.arraycopy(c.orders, i + 1, c.orders, i, c.size - i - 1);
+				System.arraycopy(c.bounds, 4*i + 4, c.bounds, 4*i, 4*(c.size - i - 1));
+				c.size--;
+				if (c.size == 0)
+					cells.remove(key);
+			}
+		}
+		if (found)
+			size--;
+	}
 
-    private class NoIconAction extends AbstractAction {
-        NoIconAction() {
-            super("Eraser");
-            BufferedImage del = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
-            Graphics g = del.createGraphics();
-            g.setColor(Color.WHITE);
-            g.fillRect(0, 0, 32, 32);
-            g.setColor(Color.RED);
-            g.drawString("DEL", 5, 20);
-            g.dispose();
-            putValue(Action.SMALL_ICON, new ImageIcon(del));
-            putValue(Action.SHORT_DESCRIPTION, "Use Mouse to Erase Icons"); // tooltip
-        }
+	public void clear() {
+		cells.clear();
+		size = 0;
+	}
 
-        public void actionPerformed(ActionEvent evt) {
-            panel.setCurrentDrawImage(null);
-            panel.setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
-        }
-    }
+	public int size() {
+		return size;
+	}
 
-    private class SelectIconAction extends AbstractAction {
-        int iconNumber;
+	/**
+	 * Returns the order of the topmost stamp that contains the point (x,y), in the sense
+	 * of ImageItem.contains(), or -1 if there is no such stamp.  This is the same stamp
+	 * that would be found by testing the stamps from the top of the stack down.
+	 */
+	public int findTopmost(int x, int y) {
+		Cell c = cells.get(key(cell(x),cell(y)));
+		if (c == null)
+			return -1;
+		int[] b = c.bounds;
+		for (int i = c.size - 1; i >= 0; i--) {
+			int left = b[4*i], top = b[4*i + 1];
+			int w = b[4*i + 2] - left, h = b[4*i + 3] - top;
+			if (x > left && x < left + w/2*2 && y > top && y < top + h/2*2)  // As in ImageItem.contains().
+				return c.orders[i];
+		}
+		return -1;
+	}
 
-        SelectIconAction(String name, int n) {
-            // Note: The name is suppressed in toolbars, but not in menus.
-            super(name, new ImageIcon(iconImages.get(n)));
-            iconNumber = n;
-            putValue(Action.SHORT_DESCRIPTION, "Use Mouse to Stamp this Icon"); // tooltip
-        }
+	/**
+	 * Returns the orders of the stamps whose bounds intersect a given rectangle, sorted
+	 * from bottom to top.  Drawing these stamps in order has the same effect inside the
+	 * rectangle as drawing all the stamps in the index.  The index can be read by several
+	 * threads at once, as long as it is not being changed.
+	 */
+	public int[] getOrdersIntersecting(Rectangle r) {
+		int[] found = new int[16];
+		int count = 0;
+		if (r.width > 0 && r.height > 0) {
+			int left = r.x, top = r.y, right = r.x + r.width, bottom = r.y + r.height;
+			for (int row = cell(top); row <= cell(bottom - 1); row++) {
+				for (int col = cell(left); col <= cell(right - 1); col++) {
+					Cell c = cells.get(key(col,row));
+					if (c == null)
+						continue;
+					int[] b = c.bounds;
+					for (int i = 0; i < c.size; i++) {
+						if (b[4*i] >= right || b[4*i + 2] <= left || b[4*i + 1] >= bottom || b[4*i + 3] <= top)
+							continue;
+						// A stamp can be in several cells; report it only from the cell that
+						// contains the top left corner of its intersection with r.
+						if (cell(Math.max(b[4*i],left)) == col && cell(Math.max(b[4*i + 1],top)) == row) {
+							if (count == found.length)
+								found = Arrays.copyOf(found, 2 * count);
+							found[count++] = c.orders[i];
+						}
+					}
+				}
+			}
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		return found;
+	}
+
+	private static int cell(int coord) {
+		return Math.floorDiv(coord, CELL_SIZE);
+	}
+
+	private static Long key(int col, int row) {
+		return ((long)col << 32) | (row & 0xFFFFFFFFL);
+	}
 
-        public void actionPerformed(ActionEvent evt) {
-            BufferedImage image = iconImages.get(iconNumber);
-            panel.setCurrentDrawImage(image);
-            Cursor c = Util.createImageCursor(image, image.getWidth() / 2, image.getHeight() / 2);
-            panel.setCursor(c);
-        }
-    }
 }
 
 
-// src/guidemo/ImageItem.java
+// src/guidemo/StampLayer.java
 
 package guidemo;
 
-import java.awt.Graphics;
-import java.awt.image.BufferedImage;
-
 /**
- * Represents an image, drawn with its center at a specified point.
+ * A named list of stamps that can be shown or hidden.  A Scene has a list of layers, which
+ * are drawn in order, so the stamps of later layers are on top of the stamps of earlier
+ * ones.  A StampLayer is immutable, like the StampList that holds its stamps, so that the
+ * layers of a Scene in an undo history can be shared with the next state; the "with"
+ * methods return a modified copy.
  */
-public class ImageItem {
-	
-	private BufferedImage image;
-	private int centerX, centerY;
-		
-	public ImageItem(BufferedImage image, int centerX, int centerY) {
-		this.image = image;
-		this.centerX = centerX;
-		this.centerY = centerY;
-	}
+public class StampLayer {
 
-	public void draw(Graphics g) {
-		g.drawImage(image,centerX-image.getWidth()/2,centerY-image.getHeight()/2,null);
-	}
+	private final String name;
+	private final boolean visible;
+	private final StampList stamps;
 
-	public BufferedImage getImage() {
-		return image;
+	/**
+	 * Create a visible layer with no stamps.
+	 */
+	public StampLayer(String name) {
+		this(name, true, StampList.EMPTY);
 	}
 
-	public void setImage(BufferedImage image) {
-		if (image == null)
-			throw new IllegalArgumentException("Null image not allowed");
-		this.image = image;
+	public StampLayer(String name, boolean visible, StampList stamps) {
+		if (name == null || stamps == null)
+			throw new IllegalArgumentException("Null name or stamps not allowed");
+		this.name = name;
+		this.visible = visible;
+		this.stamps = stamps;
 	}
 
-	public int getCenterX() {
-		return centerX;
+	public String getName() {
+		return name;
 	}
 
-	public void setCenterX(int centerX) {
-		this.centerX = centerX;
+	public boolean isVisible() {
+		return visible;
 	}
 
-	public int getCenterY() {
-		return centerY;
+	public StampList getStamps() {
+		return stamps;
 	}
 
-	public void setCenterY(int centerY) {
-		this.centerY = centerY;
+	public StampLayer withName(String name) {
+		return new StampLayer(name, visible, stamps);
 	}
 
-	public void setPosition(int x, int y) {
-		centerX = x;
-		centerY = y;
+	public StampLayer withVisible(boolean visible) {
+		return new StampLayer(name, visible, stamps);
 	}
 
-	public boolean contains(int x, int y) {
-		int w = image.getWidth();
-		int h = image.getHeight();
-		return x > centerX - w/2 && x < centerX + w/2 && y > centerY - h/2 && y < centerY + h/2;
+	public StampLayer withStamps(StampList stamps) {
+		return new StampLayer(name, visible, stamps);
 	}
-	
+
 }
 
 
-// src/guidemo/SimpleFileChooser.java
+// src/guidemo/StampList.java
 
 package guidemo;
 
-
-import java.awt.Component;
-import java.io.File;
-import javax.swing.JFileChooser;
-import javax.swing.JOptionPane;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
- * This class provides a slightly simplified interface to one of Java's
- * standard JFileChooser dialogs.  An object of type SimpleFileChooser
- * has methods that allow the user to select files for input or output.
- * If the object is used several times, the same JFileChooser is used
- * each time.  By default, the dialog box is set to the user's home
- * directory the first time it is used, and after that it remembers the
- * current directory between one use and the next.  However, methods
- * are provided for setting the current directory.  (Note:  On Windows,
- * the user's home directory will probably mean the user's "My Documents"
- * directory".)
+ * An immutable list of stamps that can be "modified" cheaply by making a new list.
+ * A stamp is an image drawn with its center at a given point, like an ImageItem, but the
+ * stamps are not stored as objects.  The list keeps a table of the different images, and
+ * stores the stamps in chunks of up to MAX_CHUNK, each of which is a set of parallel
+ * int arrays that hold the image numbers, the x and y coordinates, and the orders of the
+ * stamps.  A stamp takes 16 bytes, and drawing the list walks straight through arrays.
+ * <p>The chunks are kept in a balanced binary tree, and a new list made by plus() or
+ * minus() shares all of the tree with the old one except the nodes on the path to the
+ * chunk that was changed.  So keeping an old version of the list costs almost nothing.
+ * DrawPanel uses this to keep the stamps of every state in its undo history without
+ * copying them.  The last chunk grows by doubling, and stamps are added to it in place
+ * when no other list has added to it first, so adding a stamp at the end takes amortized
+ * constant time plus O(log n) for the path.  Removing a stamp copies its chunk.
+ * <p>Each stamp has an order, which is larger than the orders of the stamps before it
+ * in the list, and which stays the same in every list made from this one.  The order is
+ * used to find a stamp again after other stamps have been added or removed, as is done
+ * by StampIndex.  copyOf() and of() number the stamps from 0, and plus() gives the new
+ * stamp the order of the last stamp plus one.
+ * <p>get() and the iterator return a new ImageItem for each stamp; changing it does not
+ * change the list.  Since the ImageItems are new, equals() is only true for the same list.
+ * The List methods that would modify the list throw UnsupportedOperationException.
+ * Lists can be used by several threads at once.
  */
-public class SimpleFileChooser {
+public class StampList extends AbstractList<ImageItem> {
+
+	/**
+	 * Receives the stamps of a list from forEachStamp().
+	 */
+	public interface Visitor {
+		void visit(BufferedImage image, int centerX, int centerY, int order);
+	}
+
+	public static final int MAX_CHUNK = 256;   // The largest number of stamps in a chunk.
+	private static final int MIN_CHUNK = 16;   // The capacity of a new last chunk.
+
+	/**
+	 * A set of stamps.  A chunk can be used by several nodes, in different lists, that
+	 * use different numbers of its slots.  The slots below filled are never changed, so a
+	 * node whose count equals filled can add a stamp by writing the next slot, and any
+	 * other node that wants to add a stamp must copy the chunk.
+	 */
+	private static class Chunk {
+		final int[] imageIds, xs, ys, orders;
+		private int filled;  // Number of slots that have been written.
+		Chunk(int capacity) {
+			imageIds = new int[capacity];
+			xs = new int[capacity];
+			ys = new int[capacity];
+			orders = new int[capacity];
+		}
+		Chunk(Chunk source, int count, int capacity) {
+			imageIds = Arrays.copyOf(source.imageIds, capacity);
+			xs = Arrays.copyOf(source.xs, capacity);
+			ys = Arrays.copyOf(source.ys, capacity);
+			orders = Arrays.copyOf(source.orders, capacity);
+			filled = count;
+		}
+		synchronized boolean tryAppend(int count, int imageId, int x, int y, int order) {
+			if (count != filled || count == xs.length)
+				return false;
+			imageIds[count] = imageId;
+			xs[count] = x;
+			ys[count] = y;
+			orders[count] = order;
+			filled++;
+			return true;
+		}
+		Chunk without(int slot, int count) {
+			Chunk c = new Chunk(this, slot, count - 1);
+			System.arraycopy(imageIds, slot + 1, c.imageIds, slot, count - slot - 1);
+			System.arraycopy(xs, slot + 1, c.xs, slot, count - slot - 1);
+			System.arraycopy(ys, slot + 1, c.ys, slot, count - slot - 1);
+			System.arraycopy(orders, slot + 1, c.orders, slot, count - slot - 1);
+			c.filled = count - 1;
+			return c;
+		}
+	}
 
-	private JFileChooser dialog;  // The dialog, which is created when needed.
+	/**
+	 * A node of an AVL tree whose in-order traversal gives the list:  the stamps of the
+	 * left subtree, then the first count stamps of the chunk, then the stamps of the
+	 * right subtree.  Nodes are never modified after they are created.
+	 */
+	private static class Node {
+		final Node left, right;
+		final Chunk chunk;
+		final int count;   // Number of stamps of the chunk that belong to this node; at least 1.
+		final int size;    // Number of stamps in this subtree.
+		final int height;  // Height of this subtree; a leaf has height 1.
+		Node(Node left, Chunk chunk, int count, Node right) {
+			this.left = left;
+			this.chunk = chunk;
+			this.count = count;
+			this.right = right;
+			size = size(left) + size(right) + count;
+			height = Math.max(height(left), height(right)) + 1;
+		}
+	}
+
+	public static final StampList EMPTY = new StampList(null, new BufferedImage[0]);
+
+	private final Node root;
+	private final BufferedImage[] images;  // The image table; the image numbers of the stamps are indexes into it.
+
+	private StampList(Node root, BufferedImage[] images) {
+		this.root = root;
+		this.images = images;
+	}
 
 	/**
-	 * Reset the default directory in the dialog box to the user's home 
-	 * directory.  The next time the dialog appears, it will show the 
-	 * contents of that directory.
+	 * Returns a StampList containing the items of a list, in the same order.  If the list
+	 * is already a StampList, it is returned.  Takes O(n) time.
 	 */
-	public void setDefaultDirectory() {
-		if (dialog != null)
-			dialog.setCurrentDirectory(null);
+	public static StampList copyOf(List<ImageItem> items) {
+		if (items instanceof StampList)
+			return (StampList)items;
+		IdentityHashMap<BufferedImage,Integer> numbers = new IdentityHashMap<BufferedImage,Integer>();
+		BufferedImage[] table = new BufferedImage[0];
+		int count = items.size();
+		int[] imageIds = new int[count];
+		int[] xs = new int[count];
+		int[] ys = new int[count];
+		int i = 0;
+		for (ImageItem item : items) {
+			Integer n = numbers.get(item.getImage());
+			if (n == null) {
+				n = table.length;
+				numbers.put(item.getImage(), n);
+				table = Arrays.copyOf(table, n + 1);
+				table[n] = item.getImage();
+			}
+			imageIds[i] = n;
+			xs[i] = item.getCenterX();
+			ys[i] = item.getCenterY();
+			i++;
+		}
+		return of(table, imageIds, xs, ys);
 	}
 
 	/**
-	 * Set the default directory for the dialog box.  The next time the 
-	 * dialog appears, it will show the contents of that directory.
-	 * @param directoryName A File object that specifies the directory name.
-	 * If this name is null, then the user's home directory will be used.
+	 * Returns a StampList whose stamp number i shows images[imageIds[i]] centered at
+	 * (xs[i],ys[i]).  The arrays are copied.  Takes O(n) time.
+	 * @throws IllegalArgumentException if the arrays don't have the same length, or if an
+	 *    image number is not a valid index in images, or if an image is null.
 	 */
-	public void setDefaultDirectory(String directoryName) {
-		if (dialog == null)
-			dialog = new JFileChooser();
-		dialog.setCurrentDirectory(new File(directoryName));
+	public static StampList of(BufferedImage[] images, int[] imageIds, int[] xs, int[] ys) {
+		int count = imageIds.length;
+		if (xs.length != count || ys.length != count)
+			throw new IllegalArgumentException("Arrays must have the same length");
+		for (BufferedImage image : images) {
+			if (image == null)
+				throw new IllegalArgumentException("Null image not allowed");
+		}
+		for (int id : imageIds) {
+			if (id < 0 || id >= images.length)
+				throw new IllegalArgumentException("Image number out of range: " + id);
+		}
+		Node[] nodes = new Node[(count + MAX_CHUNK - 1) / MAX_CHUNK];
+		for (int n = 0; n < nodes.length; n++) {
+			int from = n * MAX_CHUNK;
+			int size = Math.min(MAX_CHUNK, count - from);
+			Chunk c = new Chunk(size);
+			System.arraycopy(imageIds, from, c.imageIds, 0, size);
+			System.arraycopy(xs, from, c.xs, 0, size);
+			System.arraycopy(ys, from, c.ys, 0, size);
+			for (int i = 0; i < size; i++)
+				c.orders[i] = from + i;
+			c.filled = size;
+			nodes[n] = new Node(null, c, size, null);
+		}
+		return new StampList(build(nodes, 0, nodes.length), images.clone());
 	}
 
 	/**
-	 * Set the default directory for the dialog box.  The next time the 
-	 * dialog appears, it will show the contents of that directory.
-	 * @param directoryName The name of the new default directory.  If the 
-	 * name is null, then the user's home directory will be used.
+	 * Returns a StampList containing the stamps of several lists, one list after the
+	 * other, numbered from 0.  Takes O(n) time.
 	 */
-	public void setDefaultDirectory(File directory) {
-		if (dialog == null)
-			dialog = new JFileChooser();
-		dialog.setCurrentDirectory(directory);
+	public static StampList concat(List<StampList> lists) {
+		if (lists.size() == 1)
+			return lists.get(0);
+		final IdentityHashMap<BufferedImage,Integer> numbers = new IdentityHashMap<BufferedImage,Integer>();
+		final ArrayList<BufferedImage> table = new ArrayList<BufferedImage>();
+		int count = 0;
+		for (StampList list : lists)
+			count += list.size();
+		final int[] imageIds = new int[count];
+		final int[] xs = new int[count];
+		final int[] ys = new int[count];
+		Visitor collector = new Visitor() {
+			int i;
+			public void visit(BufferedImage image, int centerX, int centerY, int order) {
+				Integer n = numbers.get(image);
+				if (n == null) {
+					n = table.size();
+					numbers.put(image, n);
+					table.add(image);
+				}
+				imageIds[i] = n;
+				xs[i] = centerX;
+				ys[i] = centerY;
+				i++;
+			}
+		};
+		for (StampList list : lists)
+			list.forEachStamp(collector);
+		return of(table.toArray(new BufferedImage[table.size()]), imageIds, xs, ys);
 	}
-	
+
+	public int size() {
+		return size(root);
+	}
+
+	public ImageItem get(int index) {
+		checkIndex(index);
+		Node n = root;
+		while (true) {
+			int leftSize = size(n.left);
+			if (index < leftSize)
+				n = n.left;
+			else if (index < leftSize + n.count)
+				return item(n.chunk, index - leftSize);
+			else {
+				index -= leftSize + n.count;
+				n = n.right;
+			}
+		}
+	}
+
 	/**
-	 * Show a dialog box where the user can select a file for reading.
-	 * This method simply returns <code>getInputFile(null,null)</code>.
-	 * @see #getInputFile(Component, String)
-	 * @return the selected file, or null if the user did not select a file.
+	 * Returns the order of the stamp at a given position.
 	 */
-	public File getInputFile() {
-		return getInputFile(null,null);
+	public int getOrder(int index) {
+		checkIndex(index);
+		Node n = root;
+		while (true) {
+			int leftSize = size(n.left);
+			if (index < leftSize)
+				n = n.left;
+			else if (index < leftSize + n.count)
+				return n.chunk.orders[index - leftSize];
+			else {
+				index -= leftSize + n.count;
+				n = n.right;
+			}
+		}
 	}
 
 	/**
-	 * Show a dialog box where the user can select a file for reading.
-	 * This method simply returns <code>getInputFile(parent,null)</code>.
-	 * @see #getInputFile(Component, String)
-	 * @return the selected file, or null if the user did not select a file.
+	 * Returns the position of the stamp with a given order, or -1 if there is no such
+	 * stamp in this list.  Takes O(log n) time.
 	 */
-	public File getInputFile(Component parent) {
-		return getInputFile(parent,null);
+	public int indexOfOrder(int order) {
+		Node n = root;
+		int offset = 0;
+		while (n != null) {
+			int[] orders = n.chunk.orders;
+			if (order < orders[0])
+				n = n.left;
+			else if (order > orders[n.count - 1]) {
+				offset += size(n.left) + n.count;
+				n = n.right;
+			}
+			else {
+				int slot = Arrays.binarySearch(orders, 0, n.count, order);
+				return slot < 0 ? -1 : offset + size(n.left) + slot;
+			}
+		}
+		return -1;
 	}
 
 	/**
-	 * Show a dialog box where the user can select a file for reading.
-	 * If the user cancels the dialog by clicking its "Cancel" button or
-	 * the Close button in the title bar, then the return value of this
-	 * method is null.  Otherwise, the return value is the selected file.
-	 * Note that the file has to exist, but it is not guaranteed that the
-	 * user is allowed to read the file.
-	 * @param parent If the parent is non-null, then the window that contains
-	 * the parent component becomes the parent window of the dialog box.  This
-	 * means that the window is "blocked" until the dialog is dismissed.  Also,
-	 * the dialog box's position on the screen should be based on the position of
-	 * the window.  Generally, you should pass your application's main window or
-	 * panel as the value of this parameter.
-	 * @param dialogTitle  a title to be displayed in the title bar of the dialog
-	 * box.  If the value of this parameter is null, then the dialog title will
-	 * be "Select Input File".
-	 * @return the selected file, or null if the user did not select a file.
+	 * Returns a list with an item added at the end.  This list is not changed.
 	 */
-	public File getInputFile(Component parent, String dialogTitle) {
-		if (dialog == null)
-			dialog = new JFileChooser();
-		if (dialogTitle != null)
-			dialog.setDialogTitle(dialogTitle);
-		else
-			dialog.setDialogTitle("Select Input File");
-		int option = dialog.showOpenDialog(parent);
-		if (option != JFileChooser.APPROVE_OPTION)
-			return null;  // User canceled or clicked the dialog's close box.
-		File selectedFile = dialog.getSelectedFile();
-		return selectedFile;
+	public StampList plus(ImageItem item) {
+		return plus(item.getImage(), item.getCenterX(), item.getCenterY());
 	}
-	
+
 	/**
-	 * Show a dialog box where the user can select a file for writing.
-	 * This method simply calls <code>getOutputFile(null,null,null)</code>
-	 * @see #getOutputFile(Component, String, String)
-	 * @return the selcted file, or null if no file was selected.
+	 * Returns a list with a stamp added at the end.  This list is not changed.  The image
+	 * is looked up in the image table by a linear search, which is fast for the few
+	 * different images that are normally used as stamps.
 	 */
-	public File getOutputFile() {
-		return getOutputFile(null,null,null);
+	public StampList plus(BufferedImage image, int centerX, int centerY) {
+		if (image == null)
+			throw new IllegalArgumentException("Null image not allowed");
+		BufferedImage[] table = images;
+		int id = 0;
+		while (id < table.length && table[id] != image)
+			id++;
+		if (id == table.length) {
+			table = Arrays.copyOf(table, id + 1);
+			table[id] = image;
+		}
+		int order = 0;
+		if (root != null) {
+			Node last = root;
+			while (last.right != null)
+				last = last.right;
+			order = last.chunk.orders[last.count - 1] + 1;
+		}
+		return new StampList(append(root, id, centerX, centerY, order), table);
 	}
 
 	/**
-	 * Show a dialog box where the user can select a file for writing.
-	 * This method simply calls <code>getOutputFile(null,null,null)</code>
-	 * @see #getOutputFile(Component, String, String)
-	 * @return the selcted file, or null if no file was selected.
+	 * Returns a list without the item at a given position.  This list is not changed.
 	 */
-	public File getOutputFile(Component parent) {
-		return getOutputFile(parent,null,null);
+	public StampList minus(int index) {
+		checkIndex(index);
+		return new StampList(delete(root, index), images);
 	}
 
 	/**
-	 * Show a dialog box where the user can select a file for writing.
-	 * This method calls <code>getOutputFile(parent,dialogTitle,null)</code>
-	 * @see #getOutputFile(Component, String, String)
-	 * @return the selcted file, or null if no file was selected.
+	 * Draw all of the stamps, in order.  This is the same as calling draw(g) on each item,
+	 * without making the items.
 	 */
-	public File getOutputFile(Component parent, String dialogTitle) {
-		return getOutputFile(parent,dialogTitle,null);
+	public void draw(Graphics g) {
+		draw(g, root);
 	}
 
+	/**
+	 * Call visitor.visit() for each stamp, in order.
+	 */
+	public void forEachStamp(Visitor visitor) {
+		forEachStamp(visitor, root);
+	}
 
 	/**
-	 * Show a dialog box where the user can select a file for writing.
-	 * If the user cancels the dialog by clicking its "Cancel" button or
-	 * the Close button in the title bar, then the return value of this
-	 * method is null.  A non-null value indicates that the user specified
-	 * a file name and that, if the file exists, then the user wants to
-	 * replace that file.  (If the user selects a file that already exists, 
-	 * then the user will be asked whether to replace the existing file.)
-	 * Note that it is not quaranteed that the selected file is actually
-	 * writable; the user might not have permission to create or modify the file.
-	 * @param parent If the parent is non-null, then the window that contains
-	 * the parent component becomes the parent window of the dialog box.  This
-	 * means that the window is "blocked" until the dialog is dismissed.  Also,
-	 * the dialog box's position on the screen should be based on the position of
-	 * the window.  Generally, you should pass your application's main window or
-	 * panel as the value of this parameter.
-	 * @param dialogTitle  a title to be displayed in the title bar of the dialog
-	 * box.  If the value of this parameter is null, then the dialog title will
-	 * be "Select Input File".
-	 * @param defaultFile when the dialog appears, this name will be filled in
-	 * as the name of the selected file.  If the value of this parameter is null,
-	 * then the file name box will be empty.
-	 * @return the selected file, or null if the user did not select a file.
+	 * Returns an iterator that walks the tree directly, rather than calling get() for
+	 * each position.
 	 */
-	public File getOutputFile(Component parent, 
-	                                 String dialogTitle, String defaultFile) {
-		if (dialog == null)
-			dialog = new JFileChooser();
-		if (dialogTitle != null)
-			dialog.setDialogTitle(dialogTitle);
-		else
-			dialog.setDialogTitle("Select Output File");
-		if (defaultFile == null)
-			dialog.setSelectedFile(null);
-		else
-			dialog.setSelectedFile(new File(defaultFile));
-		while (true) {
-			int option = dialog.showSaveDialog(parent);
-			if (option != JFileChooser.APPROVE_OPTION)
-				return null;  // User canceled or clicked the dialog's close box.
-			File selectedFile = dialog.getSelectedFile();
-			if ( ! selectedFile.exists() ) 
-				return selectedFile;
-			else {  // Ask the user whether to replace the file.
-				int response = JOptionPane.showConfirmDialog( parent,
-						"The file \"" + selectedFile.getName()
-						+ "\" already exists.\nDo you want to replace it?", 
-						"Confirm Save",
-						JOptionPane.YES_NO_CANCEL_OPTION, 
-						JOptionPane.WARNING_MESSAGE );
-				if (response == JOptionPane.CANCEL_OPTION)
-					return null;  // User does not want to select a file.
-				if (response == JOptionPane.YES_OPTION)
-					return selectedFile;  // User wants to replace the file
-				// A "No" response will cause the file dialog to be shown again.
+	public Iterator<ImageItem> iterator() {
+		return new Iterator<ImageItem>() {
+			final ArrayDeque<Node> path = new ArrayDeque<Node>();  // Nodes whose chunk and right subtree are still to come.
+			Node current;  // The node whose chunk is being read, and the next slot to read.
+			int slot;
+			{
+				pushLeft(root);
+			}
+			void pushLeft(Node n) {
+				for (; n != null; n = n.left)
+					path.push(n);
+			}
+			public boolean hasNext() {
+				return current != null || !path.isEmpty();
+			}
+			public ImageItem next() {
+				if (current == null) {
+					if (path.isEmpty())
+						throw new NoSuchElementException();
+					current = path.pop();
+					slot = 0;
+					pushLeft(current.right);
+				}
+				ImageItem item = item(current.chunk, slot++);
+				if (slot == current.count)
+					current = null;
+				return item;
+			}
+		};
+	}
+
+	private ImageItem item(Chunk c, int slot) {
+		return new ImageItem(images[c.imageIds[slot]], c.xs[slot], c.ys[slot]);
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+	}
+
+	private void draw(Graphics g, Node n) {
+		for (; n != null; n = n.right) {
+			draw(g, n.left);
+			Chunk c = n.chunk;
+			for (int i = 0; i < n.count; i++) {
+				BufferedImage image = images[c.imageIds[i]];
+				g.drawImage(image, c.xs[i] - image.getWidth()/2, c.ys[i] - image.getHeight()/2, null);
 			}
 		}
 	}
 
+	private void forEachStamp(Visitor visitor, Node n) {
+		for (; n != null; n = n.right) {
+			forEachStamp(visitor, n.left);
+			Chunk c = n.chunk;
+			for (int i = 0; i < n.count; i++)
+				visitor.visit(images[c.imageIds[i]], c.xs[i], c.ys[i], c.orders[i]);
+		}
+	}
+
+	private static int size(Node n) {
+		return n == null ? 0 : n.size;
+	}
+
+	private static int height(Node n) {
+		return n == null ? 0 : n.height;
+	}
+
+	private static Node build(Node[] leaves, int from, int to) {
+		if (from >= to)
+			return null;
+		int mid = (from + to) >>> 1;
+		return new Node(build(leaves, from, mid), leaves[mid].chunk, leaves[mid].count, build(leaves, mid + 1, to));
+	}
+
+	private static Node append(Node n, int imageId, int x, int y, int order) {
+		if (n == null) {
+			Chunk c = new Chunk(MIN_CHUNK);
+			c.tryAppend(0, imageId, x, y, order);
+			return new Node(null, c, 1, null);
+		}
+		if (n.right != null)
+			return balance(n.left, n.chunk, n.count, append(n.right, imageId, x, y, order));
+		if (n.chunk.tryAppend(n.count, imageId, x, y, order))
+			return new Node(n.left, n.chunk, n.count + 1, null);
+		if (n.count < MAX_CHUNK) {
+			Chunk c = new Chunk(n.chunk, n.count, Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, 2 * n.count)));
+			c.tryAppend(n.count, imageId, x, y, order);
+			return new Node(n.left, c, n.count + 1, null);
+		}
+		return balance(n.left, n.chunk, n.count, append(null, imageId, x, y, order));
+	}
+
+	private static Node delete(Node n, int index) {
+		int leftSize = size(n.left);
+		if (index < leftSize)
+			return balance(delete(n.left, index), n.chunk, n.count, n.right);
+		if (index >= leftSize + n.count)
+			return balance(n.left, n.chunk, n.count, delete(n.right, index - leftSize - n.count));
+		if (n.count > 1)
+			return new Node(n.left, n.chunk.without(index - leftSize, n.count), n.count - 1, n.right);
+		if (n.left == null)
+			return n.right;
+		if (n.right == null)
+			return n.left;
+		Node first = n.right;  // Replace the chunk by the first chunk of the right subtree.
+		while (first.left != null)
+			first = first.left;
+		return balance(n.left, first.chunk, first.count, deleteFirst(n.right));
+	}
+
+	private static Node deleteFirst(Node n) {
+		if (n.left == null)
+			return n.right;
+		return balance(deleteFirst(n.left), n.chunk, n.count, n.right);
+	}
+
+	/**
+	 * Make a node from two subtrees whose heights differ by at most 2, rotating if
+	 * necessary so that the result is balanced.
+	 */
+	private static Node balance(Node left, Chunk chunk, int count, Node right) {
+		int diff = height(left) - height(right);
+		if (diff > 1) {
+			if (height(left.left) >= height(left.right))
+				return new Node(left.left, left.chunk, left.count, new Node(left.right, chunk, count, right));
+			else
+				return new Node(new Node(left.left, left.chunk, left.count, left.right.left), left.right.chunk, left.right.count,
+						new Node(left.right.right, chunk, count, right));
+		}
+		if (diff < -1) {
+			if (height(right.right) >= height(right.left))
+				return new Node(new Node(left, chunk, count, right.left), right.chunk, right.count, right.right);
+			else
+				return new Node(new Node(left, chunk, count, right.left.left), right.left.chunk, right.left.count,
+						new Node(right.left.right, right.chunk, right.count, right.right));
+		}
+		return new Node(left, chunk, count, right);
+	}
+
 }
 
 
@@ -930,8 +7640,8 @@ public class SimpleFileChooser {
 package guidemo;
 
 import java.awt.*;
-import java.util.ArrayList;
-import java.util.Scanner;
+import java.awt.font.FontRenderContext;
+import java.util.Arrays;
 
 /**
  * Represents a multiline text, with various properties that can be
@@ -953,11 +7663,107 @@ public class TextItem {
 	private String fontName = "Serif";
 	private int justify = LEFT;
 
-	private String[] lines = { "Hello", "World" }; // same as text, but broken into individual lines.
+	private char[] chars = text.toCharArray();  // The characters of text.  Line number i consists of
+	private int[] lineStarts = { 0, 6 };        //    the characters from lineStarts[i] up to, but not
+	private int[] lineEnds = { 5, 11 };         //    including, lineEnds[i].
+	private int lineCount = 2;
+
+	private int version;  // Incremented whenever a property changes, so users can tell that the text must be redrawn.
+
+	private Font layoutFont;  // The layout of the text, computed by computeLayout() and reused by draw() until
+	private FontRenderContext layoutContext;  // one of the properties that affect it is changed.  When that
+	private int[] layoutWidths;               // happens, layoutFont is set to null.  (The color and justification
+	private int layoutTotalWidth;             // don't affect the layout.)  The layout also depends on the
+	private int layoutTotalHeight;            // FontRenderContext of the graphics context, which is checked
+	private int layoutAscent;                 // in draw().
+	private int layoutDescent;
+	private double layoutLineHeight;
+
+	private final Rectangle clipBounds = new Rectangle();  // For getting the clip in draw() without allocating an object.
+
+	/**
+	 * Create a TextItem with the default properties, showing "Hello World" on two lines.
+	 */
+	public TextItem() {
+	}
+
+	/**
+	 * Create a TextItem with the same text and properties as another TextItem.
+	 */
+	public TextItem(TextItem other) {
+		text = other.text;
+		color = other.color;
+		lineHeightMultiplier = other.lineHeightMultiplier;
+		bold = other.bold;
+		italic = other.italic;
+		fontSize = other.fontSize;
+		fontName = other.fontName;
+		justify = other.justify;
+		chars = other.chars;  // The line data is never modified, so it can be shared.
+		lineStarts = other.lineStarts;
+		lineEnds = other.lineEnds;
+		lineCount = other.lineCount;
+		layoutFont = other.layoutFont;  // Neither is the layout; computeLayout() makes a new one.
+		layoutContext = other.layoutContext;
+		layoutWidths = other.layoutWidths;
+		layoutTotalWidth = other.layoutTotalWidth;
+		layoutTotalHeight = other.layoutTotalHeight;
+		layoutAscent = other.layoutAscent;
+		layoutDescent = other.layoutDescent;
+		layoutLineHeight = other.layoutLineHeight;
+	}
 	
 	public void draw(Graphics g, int centerX, int centerY) {
 		Color saveColor = g.getColor();
 		Font saveFont = g.getFont();
+		layOut(g);
+		g.setFont(layoutFont);
+		if (color != null)
+			g.setColor(color);
+		int top = centerY - layoutTotalHeight/2;
+		int first = 0;
+		int last = lineCount - 1;
+		clipBounds.setBounds(0, 0, -1, -1);
+		g.getClipBounds(clipBounds);  // Leaves clipBounds unchanged if there is no clip.
+		if (clipBounds.width >= 0 && layoutLineHeight > 0) {
+			// Draw only the lines that can intersect the clip.  Line i extends from about
+			// top + i*lineHeight to top + i*lineHeight + ascent + descent; an extra line is
+			// included on each side, for glyphs that extend outside that range.
+			double clipTop = clipBounds.y - top - layoutAscent - layoutDescent;
+			double clipBottom = clipBounds.y + clipBounds.height - top;
+			first = Math.max(first, (int)Math.floor(clipTop / layoutLineHeight) - 1);
+			last = Math.min(last, (int)Math.ceil(clipBottom / layoutLineHeight) + 1);
+		}
+		for (int i = first; i <= last; i++) {
+			int x;
+			if (justify == CENTER)
+				x = centerX - layoutWidths[i]/2;
+			else if (justify == LEFT)
+				x = centerX - layoutTotalWidth/2;
+			else
+				x = centerX + layoutTotalWidth/2 - layoutWidths[i];
+			int y = top + layoutAscent + (int)(i*layoutLineHeight);
+			g.drawChars(chars, lineStarts[i], lineEnds[i] - lineStarts[i], x, y);
+		}
+		g.setColor(saveColor);
+		g.setFont(saveFont);
+	}
+
+	/**
+	 * Make sure that the layout is valid for drawing in g.  draw() does this itself; calling
+	 * it beforehand lets copies of this TextItem that are drawn in graphics contexts with
+	 * the same FontRenderContext share the layout instead of each computing it.
+	 */
+	void layOut(Graphics g) {
+		FontRenderContext context = (g instanceof Graphics2D) ? ((Graphics2D)g).getFontRenderContext() : null;
+		if (layoutFont == null || (context != layoutContext && (context == null || !context.equals(layoutContext))))
+			computeLayout(g, context);
+	}
+
+	/**
+	 * Create the font and measure the lines of text, for use by draw().
+	 */
+	private void computeLayout(Graphics g, FontRenderContext context) {
 		int style;
 		if (italic && bold)
 			style = Font.BOLD | Font.ITALIC;
@@ -968,54 +7774,118 @@ public class TextItem {
 		else
 			style = Font.PLAIN;
 		Font font = new Font(fontName, style, fontSize);
-		g.setFont(font);
 		FontMetrics fm = g.getFontMetrics(font);
-		double lineHeight = fm.getHeight() * lineHeightMultiplier;
-		int totalHeight = (int)(lineHeight*(lines.length-1)) + fm.getAscent() + fm.getDescent();
-		if (color != null)
-			g.setColor(color);
-		int[] widths = new int[lines.length];
-		int totalWidth = 0;
-		for (int i = 0; i < lines.length; i++) {
-			widths[i] = fm.stringWidth(lines[i]);
-			if (widths[i] > totalWidth)
-				totalWidth = widths[i];
-		}
-		for (int i = 0; i < lines.length; i++) {
-			int x;
-			if (justify == CENTER)
-				x = centerX - widths[i]/2;
-			else if (justify == LEFT)
-				x = centerX - totalWidth/2;
-			else
-				x = centerX + totalWidth/2 - fm.stringWidth(lines[i]);
-			int y = centerY - totalHeight/2 + fm.getAscent() + (int)(i*lineHeight);
-			g.drawString(lines[i],x,y);
+		layoutLineHeight = fm.getHeight() * lineHeightMultiplier;
+		layoutTotalHeight = (int)(layoutLineHeight*(lineCount-1)) + fm.getAscent() + fm.getDescent();
+		layoutAscent = fm.getAscent();
+		layoutDescent = fm.getDescent();
+		layoutWidths = new int[lineCount];
+		layoutTotalWidth = 0;
+		for (int i = 0; i < lineCount; i++) {
+			layoutWidths[i] = fm.charsWidth(chars, lineStarts[i], lineEnds[i] - lineStarts[i]);
+			if (layoutWidths[i] > layoutTotalWidth)
+				layoutTotalWidth = layoutWidths[i];
 		}
-		g.setColor(saveColor);
-		g.setFont(saveFont);
+		layoutContext = context;
+		layoutFont = font;
 	}
 	
+	/**
+	 * Returns a number that changes each time one of the properties of this TextItem
+	 * is changed.  This makes it possible to tell whether a cached picture of the
+	 * text is still valid.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
 	public String getText() {
 		return text;
 	}
 
+	/**
+	 * Set the text.  The text is broken into lines at line terminators (the same ones that
+	 * are recognized by Scanner.nextLine()), and blank lines are removed from the start and
+	 * end.  This takes time proportional to the length of the text, and the lines are
+	 * recorded as positions in a single array of characters, so very long texts can be used.
+	 * @throws IllegalArgumentException if the text contains only blank lines.
+	 */
 	public void setText(String newText) {
-		Scanner reader = new Scanner(newText);
-		ArrayList<String> s = new ArrayList<String>();
-		while (reader.hasNextLine()) {
-			s.add(reader.nextLine());
-		}
-		while (s.size() > 0 && s.get(0).trim().length() == 0)
-			s.remove(0);  // remove blank lines from front
-		while (s.size() > 0 && s.get(s.size()-1).trim().length() == 0)
-			s.remove(s.size()-1);  // remove blank lines from end
-		if (s.size() == 0)
+		char[] data = newText.toCharArray();
+		int count = 0;
+		int pos = 0;
+		while (pos < data.length) {
+			count++;
+			pos = nextLineStart(data, lineEnd(data, pos));
+		}
+		int[] starts = new int[count];
+		int[] ends = new int[count];
+		pos = 0;
+		for (int i = 0; i < count; i++) {
+			starts[i] = pos;
+			ends[i] = lineEnd(data, pos);
+			pos = nextLineStart(data, ends[i]);
+		}
+		int first = 0;
+		while (first < count && isBlank(data, starts[first], ends[first]))
+			first++;  // skip blank lines at the front
+		int last = count - 1;
+		while (last >= first && isBlank(data, starts[last], ends[last]))
+			last--;  // skip blank lines at the end
+		if (first > last)
 			throw new IllegalArgumentException("Text can't be empty.");
-		lines = new String[s.size()];
-		for (int i = 0; i < lines.length; i++)
-			lines[i] = s.get(i);
+		if (first > 0 || last < count - 1) {
+			starts = Arrays.copyOfRange(starts, first, last + 1);
+			ends = Arrays.copyOfRange(ends, first, last + 1);
+		}
+		chars = data;
+		lineStarts = starts;
+		lineEnds = ends;
+		lineCount = last - first + 1;
 		text = newText;
+		version++;
+		layoutFont = null;
+	}
+
+	/**
+	 * Returns the number of lines in the text, not counting blank lines at the start and end.
+	 */
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	private static boolean isLineTerminator(char ch) {
+		return ch == '\n' || ch == '\r' || ch == '\u2028' || ch == '\u2029' || ch == '\u0085';
+	}
+
+	/**
+	 * Returns the position of the line terminator that ends the line starting at pos,
+	 * or the length of the data if the line is not terminated.
+	 */
+	private static int lineEnd(char[] data, int pos) {
+		while (pos < data.length && !isLineTerminator(data[pos]))
+			pos++;
+		return pos;
+	}
+
+	/**
+	 * Returns the position following the line terminator at position end.  A carriage
+	 * return followed by a newline counts as a single terminator.
+	 */
+	private static int nextLineStart(char[] data, int end) {
+		if (end >= data.length)
+			return data.length;
+		if (data[end] == '\r' && end + 1 < data.length && data[end+1] == '\n')
+			return end + 2;
+		return end + 1;
+	}
+
+	private static boolean isBlank(char[] data, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (data[i] > ' ')  // The same test that is used by String.trim().
+				return false;
+		}
+		return true;
 	}
 
 	public Color getColor() {
@@ -1024,6 +7894,7 @@ public class TextItem {
 	
 	public void setColor(Color color) {
 		this.color = color;
+		version++;
 	}
 	
 	public double getLineHeightMultiplier() {
@@ -1034,6 +7905,8 @@ public class TextItem {
 		if (lineHeightMultiplier < 0)
 			throw new IllegalArgumentException("Line height multiplier cannot be negative.");
 		this.lineHeightMultiplier = lineHeightMultiplier;
+		version++;
+		layoutFont = null;
 	}
 	
 	public boolean isBold() {
@@ -1042,6 +7915,8 @@ public class TextItem {
 	
 	public void setBold(boolean bold) {
 		this.bold = bold;
+		version++;
+		layoutFont = null;
 	}
 	
 	public boolean isItalic() {
@@ -1050,6 +7925,8 @@ public class TextItem {
 	
 	public void setItalic(boolean italic) {
 		this.italic = italic;
+		version++;
+		layoutFont = null;
 	}
 	
 	public int getFontSize() {
@@ -1060,6 +7937,8 @@ public class TextItem {
 		if (fontSize <= 0)
 			throw new IllegalArgumentException("Font size must be positive.");
 		this.fontSize = fontSize;
+		version++;
+		layoutFont = null;
 	}
 	
 	public String getFontName() {
@@ -1068,6 +7947,8 @@ public class TextItem {
 	
 	public void setFontName(String fontName) {
 		this.fontName = fontName;
+		version++;
+		layoutFont = null;
 	}
 
 	public int getJustify() {
@@ -1078,6 +7959,7 @@ public class TextItem {
 		if (justify != CENTER && justify != RIGHT && justify != LEFT)
 			throw new IllegalArgumentException("Justify can only be CENTER, LEFT, or RIGHT");
 		this.justify = justify;
+		version++;
 	}
 
 
@@ -1091,7 +7973,12 @@ package guidemo;
 import java.awt.*;
 import java.awt.event.*;
 
-import javax.swing.*;;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+
+import javax.swing.*;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 
 /**
  * A menu full of commands that affect the text shown
@@ -1113,12 +8000,14 @@ public class TextMenu extends JMenu {
     public TextMenu(DrawPanel owner) {
         super("Text");
         this.panel = owner;
+        FontCatalog.preload();  // The font list is needed only when a font menu is opened.
         final JMenuItem change = new JMenuItem("Change Text...");
         change.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent evt) {
                 String currentText = panel.getTextItem().getText();
                 String newText = GetTextDialog.showDialog(panel, currentText);
                 if (newText != null && newText.trim().length() > 0) {
+                    panel.saveUndoState();
                     panel.getTextItem().setText(newText);
                     panel.repaint();
                 }
@@ -1132,7 +8021,10 @@ public class TextMenu extends JMenu {
                 if (s != null && s.trim().length() > 0) {
                     try {
                         int newSize = Integer.parseInt(s.trim()); // can throw NumberFormatException
-                        panel.getTextItem().setFontSize(newSize); // can throw IllegalArgumentException
+                        if (newSize <= 0)
+                            throw new IllegalArgumentException(); // checked here so that no undo state is saved
+                        panel.saveUndoState();
+                        panel.getTextItem().setFontSize(newSize);
                         panel.repaint();
                     } catch (Exception e) {
                         JOptionPane.showMessageDialog(panel, s + " is not a legal text size.\n"
@@ -1149,7 +8041,10 @@ public class TextMenu extends JMenu {
                 if (s != null && s.trim().length() > 0) {
                     try {
                         int newLineHeight = Integer.parseInt(s.trim()); // can throw NumberFormatException
-                        panel.getTextItem().setLineHeightMultiplier(newLineHeight); // can throw IllegalArgumentException
+                        if (newLineHeight < 0)
+                            throw new IllegalArgumentException(); // checked here so that no undo state is saved
+                        panel.saveUndoState();
+                        panel.getTextItem().setLineHeightMultiplier(newLineHeight);
                         panel.repaint();
                     } catch (Exception e) {
                         JOptionPane.showMessageDialog(panel, s + " is not a legal line height size.\n"
@@ -1164,6 +8059,7 @@ public class TextMenu extends JMenu {
                 Color currentColor = panel.getTextItem().getColor();
                 Color newColor = JColorChooser.showDialog(panel, "Select Text Color", currentColor);
                 if (newColor != null) {
+                    panel.saveUndoState();
                     panel.getTextItem().setColor(newColor);
                     panel.repaint();
                 }
@@ -1172,6 +8068,7 @@ public class TextMenu extends JMenu {
         italic = new JCheckBoxMenuItem("Italic");
         italic.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent evt) {
+                panel.saveUndoState();
                 panel.getTextItem().setItalic(italic.isSelected());
                 panel.repaint();
             }
@@ -1179,13 +8076,32 @@ public class TextMenu extends JMenu {
         bold = new JCheckBoxMenuItem("Bold");
         bold.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent evt) {
+                panel.saveUndoState();
                 panel.getTextItem().setBold(bold.isSelected());
                 panel.repaint();
             }
         });
 
+        final JMenuItem chooseFont = new JMenuItem("Choose Font...");
+        chooseFont.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                String family = FontPickerDialog.showDialog(panel, panel.getTextItem().getFontName());
+                if (family != null) {
+                    panel.saveUndoState();
+                    panel.getTextItem().setFontName(family);
+                    panel.repaint();
+                }
+            }
+        });
+
         justify = makeJustifySubmenu();
 
+        panel.addPropertyChangeListener(DrawPanel.HISTORY_PROPERTY, new PropertyChangeListener() {
+            public void propertyChange(PropertyChangeEvent evt) {
+                updateFromText();  // An undo or redo might have changed the text.
+            }
+        });
+
         add(change);
         addSeparator();
         add(size);
@@ -1195,6 +8111,7 @@ public class TextMenu extends JMenu {
         add(bold);
         addSeparator();
 		add(justify);
+		add(chooseFont);
 		add(makeFontNameSubmenu());
     }
 
@@ -1212,9 +8129,23 @@ public class TextMenu extends JMenu {
 
     }
 
+    /**
+     * Set the italic and bold checkboxes and the justify buttons to match the text
+     * that is shown in the panel.  This is called automatically after an undo or redo,
+     * and should be called by the main program when it replaces the panel's scene.
+     */
+    public void updateFromText() {
+        TextItem text = panel.getTextItem();
+        italic.setSelected(text.isItalic());
+        bold.setSelected(text.isBold());
+        int item = text.getJustify() == TextItem.LEFT ? 0 : text.getJustify() == TextItem.CENTER ? 1 : 2;
+        justify.getItem(item).setSelected(true);
+    }
+
     private JMenu makeJustifySubmenu() {
         ActionListener justifyContentAction = evt -> {
         	String cmd = evt.getActionCommand();
+        	panel.saveUndoState();
         	switch (cmd) {
 				case "Left":
 					panel.getTextItem().setJustify(TextItem.LEFT);
@@ -1246,73 +8177,464 @@ public class TextMenu extends JMenu {
      * Create a menu containing a list of all available fonts.
      * (It turns out this can be very messy, at least on Linux, but
      * it does show the use what is available and lets the user try
-     * everything!)
+     * everything!)  The menu is empty until it is first opened; the
+     * list of fonts is read in the background when the program starts
+     * (see FontCatalog), and the items are made only when needed.
      */
     private JMenu makeFontNameSubmenu() {
-        ActionListener setFontAction = new ActionListener() {
+        final ActionListener setFontAction = new ActionListener() {
             public void actionPerformed(ActionEvent evt) {
+                panel.saveUndoState();
                 panel.getTextItem().setFontName(evt.getActionCommand());
                 panel.repaint();
             }
         };
-        JMenu menu = new JMenu("Font Name");
+        final JMenu menu = new JMenu("Font Name");
+        fillWhenOpened(menu, new Runnable() {
+            public void run() {
+                fillFontNameSubmenu(menu, setFontAction);
+            }
+        });
+        return menu;
+    }
+
+    private void fillFontNameSubmenu(JMenu menu, final ActionListener setFontAction) {
         String[] basic = {"Serif", "SansSerif", "Monospace"};
         for (String f : basic) {
             JMenuItem m = new JMenuItem(f + " Default");
             m.setActionCommand(f);
             m.addActionListener(setFontAction);
-            m.setFont(new Font(f, Font.PLAIN, 12));
+            m.setFont(FontCatalog.getPreviewFont(f));
             menu.add(m);
         }
         menu.addSeparator();
-        String[] fonts = GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
+        final String[] fonts = FontCatalog.getFamilyNames();
         if (fonts.length <= 20) {
-            for (String f : fonts) {
-                JMenuItem m = new JMenuItem(f);
-                m.addActionListener(setFontAction);
-                m.setFont(new Font(f, Font.PLAIN, 12));
-                menu.add(m);
-            }
+            addFontItems(menu, fonts, 0, fonts.length, setFontAction);
         } else { //Too many items for one menu; divide them into several sub-sub-menus.
             char ch1 = 'A';
             char ch2 = 'A';
-            JMenu m = new JMenu();
+            int start = 0;
             int i = 0;
             while (i < fonts.length) {
                 while (i < fonts.length && (Character.toUpperCase(fonts[i].charAt(0)) <= ch2 || ch2 == 'Z')) {
-                    JMenuItem item = new JMenuItem(fonts[i]);
-                    item.addActionListener(setFontAction);
-                    item.setFont(new Font(fonts[i], Font.PLAIN, 12));
-                    m.add(item);
                     i++;
                 }
-                if (i == fonts.length || (m.getMenuComponentCount() >= 12 && i < fonts.length - 4)) {
-                    if (ch1 == ch2)
-                        m.setText("" + ch1);
-                    else
-                        m.setText(ch1 + " to " + ch2);
+                if (i == fonts.length || (i - start >= 12 && i < fonts.length - 4)) {
+                    final JMenu m = new JMenu(ch1 == ch2 ? "" + ch1 : ch1 + " to " + ch2);
+                    final int from = start;
+                    final int to = i;
+                    fillWhenOpened(m, new Runnable() {
+                        public void run() {
+                            addFontItems(m, fonts, from, to, setFontAction);
+                        }
+                    });
                     menu.add(m);
-                    if (i < fonts.length)
-                        m = new JMenu();
+                    start = i;
                     ch2++;
                     ch1 = ch2;
                 } else
                     ch2++;
             }
         }
-        return menu;
     }
+
+    /**
+     * Add items for fonts[from] through fonts[to-1] to a menu, each shown in its own font.
+     */
+    private static void addFontItems(JMenu menu, String[] fonts, int from, int to, ActionListener setFontAction) {
+        for (int i = from; i < to; i++) {
+            JMenuItem item = new JMenuItem(fonts[i]);
+            item.addActionListener(setFontAction);
+            item.setFont(FontCatalog.getPreviewFont(fonts[i]));
+            menu.add(item);
+        }
+    }
+
+    /**
+     * Arrange for a menu to be filled in by a given task the first time it is opened.
+     */
+    private static void fillWhenOpened(final JMenu menu, final Runnable fill) {
+        menu.addMenuListener(new MenuListener() {
+            boolean filled;
+            public void menuSelected(MenuEvent evt) {
+                if (!filled) {
+                    filled = true;
+                    fill.run();
+                }
+            }
+            public void menuDeselected(MenuEvent evt) {
+            }
+            public void menuCanceled(MenuEvent evt) {
+            }
+        });
+    }
+}
+
+// src/guidemo/TiledExporter.java
+
+package guidemo;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+/**
+ * Renders a Scene at any size, for example at a resolution suitable for printing.
+ * The text and stamps are scaled along with the picture, and the background image is
+ * scaled directly from the original image (or, for a Mandelbrot background, computed
+ * at the output size).  The picture is divided into square tiles,
+ * which are rendered in parallel in a ForkJoinPool, one row of tiles at a time.
+ * <p>The picture is made available as a RenderedImage (see getImage()) that renders
+ * rows of tiles as they are requested, so that an ImageWriter that asks for the image
+ * a few rows at a time, as the PNG writer does, never needs the whole picture in memory;
+ * only the row of tiles that is being written and the next one, which is rendered while
+ * the previous one is encoded, are kept.  (Writers that ask for all of the data at once,
+ * such as the JPEG writer, still get it, assembled from the rows of tiles.)
+ */
+public class TiledExporter {
+
+	private final Scene scene;
+	private final int width, height;  // Size of the output picture.
+	private final double scaleX, scaleY;
+	private final Image background;
+	private final MandelbrotRenderer mandelbrot;  // If non-null, used instead of the background image.
+	private final GradientOverlay overlay;
+	private final TextItem text;  // Laid out for the tiles, so that the copy that each tile draws needn't do it.
+	private final StampList stamps;
+	private final StampIndex stampIndex = new StampIndex();
+	private int tileSize = 256;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * Create an exporter for a scene.  The scene should not be modified while it is being
+	 * exported.
+	 * @param scene the scene.  Its size is the size at which the text and stamps are laid out.
+	 * @param width the width of the output picture.
+	 * @param height the height of the output picture.
+	 */
+	public TiledExporter(Scene scene, int width, int height) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Width and height must be positive.");
+		this.scene = scene;
+		this.width = width;
+		this.height = height;
+		scaleX = (double)width / scene.getWidth();
+		scaleY = (double)height / scene.getHeight();
+		Image bg = scene.getBackgroundImage();
+		if (bg != null && !(bg instanceof BufferedImage))
+			bg = new ImageIcon(bg).getImage();  // Makes sure that the image has been completely loaded.
+		background = bg;
+		mandelbrot = scene.getMandelbrot();
+		overlay = scene.getGradientOverlay();
+		text = new TextItem(scene.getTextItem());
+		BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scratch.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.scale(scaleX, scaleY);  // The same FontRenderContext as in renderTile(), which ignores the translation.
+		text.layOut(g);
+		g.dispose();
+		stamps = StampList.copyOf(scene.getStamps());
+		stampIndex.addAll(stamps);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Set the width and height of the tiles.  The default is 256.
+	 */
+	public void setTileSize(int tileSize) {
+		if (tileSize <= 0)
+			throw new IllegalArgumentException("Tile size must be positive.");
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Set the pool that renders the tiles.  The default is the common ForkJoinPool.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Render the complete picture into a BufferedImage of type TYPE_INT_RGB.
+	 */
+	public BufferedImage render() {
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(tileTasks(image, 0, height));
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Write the picture to a file, rendering it as the writer asks for it.
+	 * @param format the name of an ImageIO format, such as "PNG" or "JPEG".
+	 */
+	public void write(String format, File file) throws IOException {
+		Profiling.ExportEvent event = Profiling.ExportEvent.start();
+		if (!ImageIO.write(getImage(), format, file))
+			throw new IOException("No writer for " + format);
+		event.record(format, file.getPath(), width, height, file.length());
+	}
+
+	/**
+	 * Returns the picture as a RenderedImage that renders its pixels when they are
+	 * requested.  The image can be passed to an ImageWriter.  It should be used by only
+	 * one thread.
+	 */
+	public RenderedImage getImage() {
+		return new StreamedImage();
+	}
+
+	/**
+	 * Make tasks that render the tiles covering rows top to bottom - 1 of the picture into
+	 * an image that holds those rows.
+	 */
+	private List<RecursiveAction> tileTasks(final BufferedImage image, final int top, final int bottom) {
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int y = top; y < bottom; y += tileSize) {
+			for (int x = 0; x < width; x += tileSize) {
+				final Rectangle tile = new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, bottom - y));
+				tasks.add(new RecursiveAction() {
+					protected void compute() {
+						BufferedImage part = image.getSubimage(tile.x, tile.y - top, tile.width, tile.height);
+						Graphics2D g = part.createGraphics();
+						renderTile(g, tile);
+						g.dispose();
+					}
+				});
+			}
+		}
+		return tasks;
+	}
+
+	/**
+	 * Draw one tile.  The graphics context draws into an image of the same size as the
+	 * tile.  The steps are the same as in DrawPanel.paintComponent, except that the
+	 * background and overlay are drawn at the output resolution, and the text and stamps
+	 * are drawn with a scaling transform.
+	 */
+	private void renderTile(Graphics2D g, Rectangle tile) {
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		if (scaleX != 1 || scaleY != 1)
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.translate(-tile.x, -tile.y);
+		g.setClip(tile);
+		g.setColor(scene.getBackgroundColor());
+		g.fillRect(tile.x, tile.y, tile.width, tile.height);
+		if (mandelbrot != null)
+			g.drawImage(mandelbrot.createRaster(width, height, tile.x, tile.y, tile.width, tile.height), tile.x, tile.y, null);
+		else if (background != null)
+			g.drawImage(background, 0, 0, width, height, null);
+		if (overlay != null)
+			g.drawImage(overlay.createRaster(width, height, tile.x, tile.y, tile.width, tile.height), tile.x, tile.y, null);
+		g.scale(scaleX, scaleY);
+		TextItem tileText = new TextItem(text);  // TextItem is not thread-safe, so each tile needs its own.
+		tileText.draw(g, scene.getWidth()/2, scene.getHeight()/2);
+		int left = (int)Math.floor(tile.x / scaleX) - 1;
+		int top = (int)Math.floor(tile.y / scaleY) - 1;
+		int right = (int)Math.ceil((tile.x + tile.width) / scaleX) + 1;
+		int bottom = (int)Math.ceil((tile.y + tile.height) / scaleY) + 1;
+		for (int order : stampIndex.getOrdersIntersecting(new Rectangle(left, top, right - left, bottom - top)))
+			stamps.get(stamps.indexOfOrder(order)).draw(g);
+	}
+
+	/**
+	 * The picture as a RenderedImage whose data is produced one row of tiles at a time.
+	 * The image consists of a single tile, as far as its users are concerned; the tiling
+	 * is only used internally.
+	 */
+	private class StreamedImage implements RenderedImage {
+
+		private final ColorModel colorModel = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getColorModel();
+		private final SampleModel sampleModel = colorModel.createCompatibleSampleModel(width, height);
+
+		private int currentRow = -1;             // The row of tiles that was used most recently,
+		private Raster currentRaster;            //    and its pixels.
+		private int nextRow = -1;                // The next row of tiles, which is rendered
+		private ForkJoinTask<Raster> nextTask;   //    in the background.
+
+		/**
+		 * Get the pixels for a row of tiles, and start rendering the next row.
+		 */
+		private Raster getRow(int row) {
+			if (row != currentRow) {
+				if (row == nextRow)
+					currentRaster = nextTask.join();
+				else {
+					if (nextTask != null)
+						nextTask.cancel(false);
+					currentRaster = pool.submit(renderRow(row)).join();
+				}
+				currentRow = row;
+				if ((row + 1) * tileSize < height) {
+					nextRow = row + 1;
+					nextTask = pool.submit(renderRow(nextRow));
+				}
+				else {
+					nextRow = -1;
+					nextTask = null;
+				}
+			}
+			return currentRaster;
+		}
+
+		private Callable<Raster> renderRow(final int row) {
+			return new Callable<Raster>() {
+				public Raster call() {
+					int top = row * tileSize;
+					int bottom = Math.min(height, top + tileSize);
+					BufferedImage image = new BufferedImage(width, bottom - top, BufferedImage.TYPE_INT_RGB);
+					ForkJoinTask.invokeAll(tileTasks(image, top, bottom));
+					return image.getRaster().createTranslatedChild(0, top);
+				}
+			};
+		}
+
+		public Raster getData(Rectangle rect) {
+			WritableRaster raster = Raster.createWritableRaster(
+					sampleModel.createCompatibleSampleModel(rect.width, rect.height), new Point(rect.x, rect.y));
+			copyData(raster);
+			return raster;
+		}
+
+		public WritableRaster copyData(WritableRaster raster) {
+			if (raster == null)
+				raster = colorModel.createCompatibleWritableRaster(width, height);
+			int firstRow = Math.max(0, raster.getMinY()) / tileSize;
+			int lastRow = Math.min(height - 1, raster.getMinY() + raster.getHeight() - 1) / tileSize;
+			for (int row = firstRow; row <= lastRow; row++)
+				raster.setRect(getRow(row));
+			return raster;
+		}
+
+		public Raster getData() {
+			return getData(new Rectangle(0, 0, width, height));
+		}
+
+		public Raster getTile(int tileX, int tileY) {
+			return getData();
+		}
+
+		public Vector<RenderedImage> getSources() {
+			return null;
+		}
+
+		public Object getProperty(String name) {
+			return Image.UndefinedProperty;
+		}
+
+		public String[] getPropertyNames() {
+			return null;
+		}
+
+		public ColorModel getColorModel() {
+			return colorModel;
+		}
+
+		public SampleModel getSampleModel() {
+			return sampleModel;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getMinX() {
+			return 0;
+		}
+
+		public int getMinY() {
+			return 0;
+		}
+
+		public int getNumXTiles() {
+			return 1;
+		}
+
+		public int getNumYTiles() {
+			return 1;
+		}
+
+		public int getMinTileX() {
+			return 0;
+		}
+
+		public int getMinTileY() {
+			return 0;
+		}
+
+		public int getTileWidth() {
+			return width;
+		}
+
+		public int getTileHeight() {
+			return height;
+		}
+
+		public int getTileGridXOffset() {
+			return 0;
+		}
+
+		public int getTileGridYOffset() {
+			return 0;
+		}
+	}
+
 }
 
+
 // src/guidemo/Util.java
 
 package guidemo;
 
 import java.applet.AudioClip;
+import java.awt.AlphaComposite;
 import java.awt.Cursor;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.Point;
 import java.awt.Toolkit;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
 import java.net.URL;
 
@@ -1336,33 +8658,89 @@ public class Util {
 	 * @return the image, or null if the resource can't be located.
 	 */
 	public static Image getImageResource(String pathToResource) {
+		Profiling.LoadEvent event = Profiling.LoadEvent.start();
 		ClassLoader cl = Util.class.getClassLoader();
 		URL loc = cl.getResource(pathToResource);
 		if (loc == null)
 			return null;
 		Image img = Toolkit.getDefaultToolkit().createImage(loc);
+		event.record("image resource", pathToResource, -1, -1, 0, false);
 		return img;
 	}
 	
 	/**
 	 * Load a buffered image from a resource.  In this case, the method
 	 * does not return until the image data has been read and stored
-	 * in memory.
+	 * in memory.  The image is kept in the shared ImageCache, so it is
+	 * only decoded again if it has been dropped from the cache.  It
+	 * is shared and must not be modified.
 	 * @param pathToResource the path to the resource.
 	 * @return the image, or null if the resource can't be loaded.
 	 */
 	public static BufferedImage getBufferedImageResource(String pathToResource) {
+		Profiling.LoadEvent event = Profiling.LoadEvent.start();
+		ImageCache cache = ImageCache.getShared();
+		String key = ImageCache.resourceKey(pathToResource);
+		BufferedImage cached = cache.get(key);
+		if (cached != null) {
+			event.record("image resource", pathToResource, cached.getWidth(), cached.getHeight(), 0, true);
+			return cached;
+		}
 		ClassLoader cl = Util.class.getClassLoader();
 		URL loc = cl.getResource(pathToResource);
 		if (loc == null)
 			return null;
 		try {
-			return ImageIO.read(loc);
+			BufferedImage img = ImageIO.read(loc);
+			if (img == null)
+				return null;
+			img = toCompatibleImage(img);
+			cache.put(key, img);
+			event.record("image resource", pathToResource, img.getWidth(), img.getHeight(), 0, false);
+			return img;
 		} 
 		catch (Exception e) {
 			return null;
 		}
 	}
+
+	/**
+	 * Returns an image with the same content as a given image, but stored in the pixel
+	 * format that can be drawn most quickly on the screen.  Images read by ImageIO are
+	 * often in a format such as TYPE_3BYTE_BGR or TYPE_BYTE_INDEXED that has to be converted
+	 * pixel by pixel every time the image is drawn.  If there is a screen, the format is
+	 * the one used by its default GraphicsConfiguration; in a headless environment it is
+	 * TYPE_INT_ARGB_PRE for images with transparency and TYPE_INT_RGB for opaque images.
+	 * The new image is filled by drawing the original into it, not by accessing its data
+	 * buffer, so that Java2D can still cache it in video memory (as a "managed image").
+	 * @param image the image to convert; can't be null.
+	 * @return the converted image, or the image itself if it already has the right format.
+	 */
+	public static BufferedImage toCompatibleImage(BufferedImage image) {
+		int transparency = image.getColorModel().getTransparency();
+		int width = image.getWidth();
+		int height = image.getHeight();
+		BufferedImage copy;
+		if (GraphicsEnvironment.isHeadless()) {
+			int type = transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB_PRE;
+			if (image.getType() == type)
+				return image;
+			copy = new BufferedImage(width, height, type);
+		}
+		else {
+			GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+					.getDefaultScreenDevice().getDefaultConfiguration();
+			if (image.getType() != BufferedImage.TYPE_CUSTOM
+					&& image.getColorModel().equals(gc.getColorModel(transparency)))
+				return image;
+			copy = gc.createCompatibleImage(width, height, transparency);
+		}
+		Graphics2D g = copy.createGraphics();
+		g.setComposite(AlphaComposite.Src);
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return copy;
+	}
 	
 	/**
 	 * Create an ImageIcon from an image that is stored as a resource.
@@ -1385,9 +8763,11 @@ public class Util {
 	 */
 	public static void playSoundResource(String pathToResource) {
 		try {
+			Profiling.LoadEvent event = Profiling.LoadEvent.start();
 			ClassLoader cl = Util.class.getClassLoader();
 			URL loc = cl.getResource(pathToResource);
 			AudioClip sound = JApplet.newAudioClip(loc);
+			event.record("sound resource", pathToResource, -1, -1, 0, false);
 			sound.play();
 		}
 		catch (Exception e) {
@@ -1402,12 +8782,15 @@ public class Util {
 	 * @return the audio clip, or null if the resource can't be loaded.
 	 */
 	public static AudioClip getSound(String pathToResource) {
+		Profiling.LoadEvent event = Profiling.LoadEvent.start();
 		ClassLoader cl = Util.class.getClassLoader();
 		URL loc = cl.getResource(pathToResource);
 		if (loc == null)
 			return null;
 		try {
-			return JApplet.newAudioClip(loc);
+			AudioClip sound = JApplet.newAudioClip(loc);
+			event.record("sound resource", pathToResource, -1, -1, 0, false);
+			return sound;
 		}
 		catch (Exception e) {
 			return null;
@@ -1463,4 +8846,225 @@ public class Util {
 	
 	
 	
+}
+
+
+// src/jmh/java/guidemo/HotPathBenchmarks.java
+
+package guidemo;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH versions of the cases in Benchmarks.hotPaths(), for regression tracking with a
+ * real harness.  Build and run them with "mvn -Pjmh package" and
+ * "java -jar target/benchmarks.jar -prof gc"; the gc profiler reports the allocation
+ * per call as gc.alloc.rate.norm.  Every benchmark runs headless.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class HotPathBenchmarks {
+
+	/**
+	 * A panel showing a test scene, for copyImage (which paints the whole panel).
+	 */
+	@State(Scope.Thread)
+	public static class PanelState {
+		@Param({ "400x300", "800x600", "1600x1200" })
+		String size;
+		@Param({ "0", "1000", "100000" })
+		int stamps;
+		DrawPanel panel;
+
+		@Setup
+		public void setUp() {
+			int width = Integer.parseInt(size.substring(0, size.indexOf('x')));
+			int height = Integer.parseInt(size.substring(size.indexOf('x') + 1));
+			panel = new DrawPanel();
+			panel.setScene(Benchmarks.makeTestScene(width, height, stamps));
+			panel.setSize(width, height);
+		}
+	}
+
+	@Benchmark
+	public BufferedImage copyImage(PanelState state) {
+		return state.panel.copyImage();
+	}
+
+	/**
+	 * A TextItem and an antialiased graphics context to draw it in, for a short text and
+	 * for a 1 MB text.
+	 */
+	@State(Scope.Thread)
+	public static class TextState {
+		@Param({ "short", "1MB" })
+		String text;
+		String value;
+		TextItem item;
+		Graphics2D g;
+
+		@Setup
+		public void setUp() {
+			value = text.equals("short")
+					? "Too bad but it's the life you lead\nYou're so ahead of yourself that you forgot what you need"
+					: Benchmarks.makeTestText(1024 * 1024);
+			item = new TextItem();
+			item.setText(value);
+			g = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB).createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setClip(0, 0, 800, 600);
+		}
+
+		@TearDown
+		public void tearDown() {
+			g.dispose();
+		}
+	}
+
+	@Benchmark
+	public void textSetText(TextState state) {
+		state.item.setText(state.value);
+	}
+
+	@Benchmark
+	public void textDraw(TextState state) {
+		state.item.draw(state.g, 400, 300);
+	}
+
+	/**
+	 * 10,000 stamps, as ImageItems and in a StampIndex.  Both benchmarks look up a random
+	 * point, so the cost of choosing it is included in both.
+	 */
+	@State(Scope.Thread)
+	public static class HitTestState {
+		List<ImageItem> items;
+		StampIndex index;
+		Random rand;
+
+		@Setup
+		public void setUp() {
+			items = new ArrayList<ImageItem>(Benchmarks.makeTestScene(800, 600, 10_000).getStamps());
+			index = new StampIndex();
+			index.addAll(StampList.copyOf(items));
+			rand = new Random(11);
+		}
+	}
+
+	@Benchmark
+	public int containsScan(HitTestState state) {
+		List<ImageItem> items = state.items;
+		int x = state.rand.nextInt(800), y = state.rand.nextInt(600);
+		for (int i = items.size() - 1; i >= 0; i--) {
+			if (items.get(i).contains(x, y))
+				return i;
+		}
+		return -1;
+	}
+
+	@Benchmark
+	public int stampIndexFindTopmost(HitTestState state) {
+		return state.index.findTopmost(state.rand.nextInt(800), state.rand.nextInt(600));
+	}
+
+	/**
+	 * A GradientOverlay of each kind.
+	 */
+	@State(Scope.Thread)
+	public static class GradientState {
+		@Param({ "linear", "radial", "multi-stop" })
+		String mode;
+		GradientOverlay overlay;
+
+		@Setup
+		public void setUp() {
+			if (mode.equals("linear"))
+				overlay = new GradientOverlay(GradientOverlay.LINEAR, Color.BLUE, 0, 200, false);
+			else if (mode.equals("radial"))
+				overlay = new GradientOverlay(GradientOverlay.RADIAL, Color.BLUE, 0, 200, false);
+			else
+				overlay = new GradientOverlay(GradientOverlay.MULTI_STOP, new float[] { 0, 0.5f, 1 },
+						new Color[] { new Color(255,0,0,100), new Color(0,255,0,50), new Color(0,0,255,200) }, true);
+		}
+	}
+
+	@Benchmark
+	public BufferedImage gradientRaster(GradientState state) {
+		return state.overlay.createRaster(800, 600);
+	}
+
+	/**
+	 * A 256-by-256 PNG, for the decoding that Util.getBufferedImageResource does when an
+	 * image is not in the cache.
+	 */
+	@State(Scope.Thread)
+	public static class DecodeState {
+		byte[] png;
+
+		@Setup
+		public void setUp() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ImageIO.write(Benchmarks.makeTestImage(BufferedImage.TYPE_INT_ARGB, 256, 256), "PNG", bytes);
+			png = bytes.toByteArray();
+		}
+	}
+
+	@Benchmark
+	public BufferedImage decodePng(DecodeState state) throws IOException {
+		return Util.toCompatibleImage(ImageIO.read(new ByteArrayInputStream(state.png)));
+	}
+
+	/**
+	 * An 800-by-600 picture of a scene with 1000 stamps, to be encoded.
+	 */
+	@State(Scope.Thread)
+	public static class EncodeState {
+		@Param({ "PNG", "JPEG" })
+		String format;
+		BufferedImage picture;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		@Setup
+		public void setUp() {
+			DrawPanel panel = new DrawPanel();
+			panel.setScene(Benchmarks.makeTestScene(800, 600, 1000));
+			panel.setSize(800, 600);
+			picture = panel.copyImage();
+		}
+	}
+
+	@Benchmark
+	public int encode(EncodeState state) throws IOException {
+		state.bytes.reset();
+		ImageIO.write(state.picture, state.format, state.bytes);
+		return state.bytes.size();
+	}
+
 }
\ No newline at end of file